@@ -0,0 +1,82 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Manifest level hot paths: friend list lookup and update on the raw
+ * manifest bytes
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FriendListBenchmark {
+
+    private static final List<String> MODULE_KEYS = Arrays.asList("com.viettel.vep.tools", "com.kenai.redmineNB");
+    @Param({"4", "40", "400"})
+    public int friends;
+    private Attributes attributes;
+    private byte[] manifest;
+
+    @Setup
+    public void generate() throws IOException {
+        File jar = File.createTempFile("friendlizer-benchmark", ".jar");
+        try {
+            JarShape.SMALL.generate(jar);
+            JarFile jarFile = new JarFile(jar);
+            try {
+                attributes = jarFile.getManifest().getMainAttributes();
+            } finally {
+                jarFile.close();
+            }
+        } finally {
+            jar.delete();
+        }
+
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < friends; i++) {
+            list.append(i == 0 ? "" : ", ").append("org.netbeans.modules.friend").append(i);
+        }
+        attributes.putValue(JarShape.FRIEND_KEY, list.toString());
+
+        Manifest withFriends = new Manifest();
+        withFriends.getMainAttributes().putAll(attributes);
+        ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        withFriends.write(manifestBytes);
+        manifest = manifestBytes.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] addFriends() {
+        return new ManifestEditor(manifest).addFriends(MODULE_KEYS);
+    }
+
+    @Benchmark
+    public Set<String> getMissingFriends() {
+        return new ManifestEditor(manifest).getMissingFriends(MODULE_KEYS);
+    }
+}
@@ -0,0 +1,148 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Jar level hot paths: whole patch of a jar, hit of the patched copies cache
+ * and copy of its entries
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JarPatchBenchmark {
+
+    private static final String MODULE_KEY = "com.viettel.vep.tools";
+    @Param({"SMALL", "NETBEANS", "LARGE"})
+    public JarShape shape;
+    private File folder;
+    private File original;
+    private File jar;
+    private File copy;
+    private JarFile jarFile;
+    private byte[] manifest;
+    private PatchListener listener;
+    private PatchOptions copyOptions;
+    private PatchOptions inPlaceOptions;
+    private PatchOptions cachedOptions;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        folder = File.createTempFile("friendlizer-benchmark", "");
+        folder.delete();
+        folder.mkdirs();
+        original = new File(folder, "original.jar");
+        jar = new File(folder, "module.jar");
+        copy = new File(folder, "copy.jar");
+        shape.generate(original);
+
+        jarFile = new JarFile(original);
+        ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        jarFile.getManifest().write(manifestBytes);
+        manifest = new ManifestEditor(manifestBytes.toByteArray()).addFriends(Collections.singleton(MODULE_KEY));
+
+        listener = PatchListener.NONE;
+        // Measure patches, not hits of the cache in the user folder
+        copyOptions = new PatchOptions();
+        copyOptions.setUseIndex(false);
+        copyOptions.setCache(false);
+        inPlaceOptions = PatchOptions.copyOf(copyOptions);
+        inPlaceOptions.setInPlace(true);
+
+        // Cache of its own, filled by one patch
+        cachedOptions = new PatchOptions();
+        cachedOptions.setUseIndex(false);
+        cachedOptions.setCacheFolder(new File(folder, "cache"));
+        resetJar();
+        FriendlizerUtilities.patchingModuleJarFile(jar.getPath(), Collections.singleton(MODULE_KEY), cachedOptions,
+                listener, new JarMetrics());
+    }
+
+    /**
+     * Every patch starts from the unpatched jar, the copy is not measured
+     */
+    @Setup(Level.Invocation)
+    public void resetJar() throws IOException {
+        FileInputStream in = new FileInputStream(original);
+        FileOutputStream out = new FileOutputStream(jar);
+        try {
+            FileChannel source = in.getChannel();
+            source.transferTo(0, source.size(), out.getChannel());
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        jarFile.close();
+        Files.walkFileTree(folder.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Benchmark
+    public JarPatchResult.Status patchingModuleJarFile() {
+        return FriendlizerUtilities.patchingModuleJarFile(jar.getPath(), Collections.singleton(MODULE_KEY),
+                copyOptions, listener, new JarMetrics());
+    }
+
+    @Benchmark
+    public JarPatchResult.Status patchingModuleJarFileInPlace() {
+        return FriendlizerUtilities.patchingModuleJarFile(jar.getPath(), Collections.singleton(MODULE_KEY),
+                inPlaceOptions, listener, new JarMetrics());
+    }
+
+    @Benchmark
+    public JarPatchResult.Status patchingModuleJarFileCached() {
+        return FriendlizerUtilities.patchingModuleJarFile(jar.getPath(), Collections.singleton(MODULE_KEY),
+                cachedOptions, listener, new JarMetrics());
+    }
+
+    @Benchmark
+    public boolean copyAllJarEntries() {
+        return FriendlizerUtilities.copyAllJarEntries(jarFile, manifest, copy.getPath(), listener,
+                new JarMetrics());
+    }
+}
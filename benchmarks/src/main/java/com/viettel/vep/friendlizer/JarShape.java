@@ -0,0 +1,68 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Shapes of generated module jars used by the benchmarks
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public enum JarShape {
+
+    /** Small library module: 20 entries, about 15 KB */
+    SMALL(20, 1024),
+    /** Typical NetBeans module: 600 entries, about 1 MB */
+    NETBEANS(600, 3 * 1024),
+    /** Very large platform jar: 8000 entries, about 20 MB */
+    LARGE(8000, 5 * 1024);
+    static final String FRIEND_KEY = "OpenIDE-Module-Friends";
+    private final int entries;
+    private final int entrySize;
+
+    private JarShape(int entries, int entrySize) {
+        this.entries = entries;
+        this.entrySize = entrySize;
+    }
+
+    /**
+     * Generate a module jar of this shape. Entry content is half random and
+     * half repeated, so that it compresses about like class files.
+     *
+     * @param jar file to write
+     * @throws IOException writing error
+     */
+    public void generate(File jar) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue("OpenIDE-Module", "org.netbeans.modules.benchmark." + name().toLowerCase());
+        attributes.putValue("OpenIDE-Module-Specification-Version", "1.42");
+        attributes.putValue("OpenIDE-Module-Implementation-Version", "201210061300");
+        attributes.putValue(FRIEND_KEY, "org.netbeans.modules.web.core, org.netbeans.modules.web.jsf, "
+                + "org.netbeans.modules.html.editor, org.netbeans.modules.css.editor");
+
+        Random random = new Random(entries);
+        byte[] content = new byte[entrySize];
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest);
+        try {
+            for (int i = 0; i < entries; i++) {
+                random.nextBytes(content);
+                for (int j = entrySize / 2; j < entrySize; j++) {
+                    content[j] = content[j % 64];
+                }
+                out.putNextEntry(new JarEntry("org/netbeans/modules/benchmark/p" + (i / 50) + "/C" + i + ".class"));
+                out.write(content);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
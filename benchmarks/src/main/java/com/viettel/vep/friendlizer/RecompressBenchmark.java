@@ -0,0 +1,85 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import java.util.zip.Deflater;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Recompression of a whole jar by the parallel writer, by number of
+ * deflating threads (0: number of processors)
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecompressBenchmark {
+
+    @Param({"NETBEANS", "LARGE"})
+    public JarShape shape;
+    @Param({"1", "0"})
+    public int threads;
+    private File folder;
+    private File copy;
+    private JarFile jarFile;
+    private byte[] manifest;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        folder = File.createTempFile("friendlizer-benchmark", "");
+        folder.delete();
+        folder.mkdirs();
+        File original = new File(folder, "original.jar");
+        copy = new File(folder, "copy.jar");
+        shape.generate(original);
+
+        jarFile = new JarFile(original);
+        ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        jarFile.getManifest().write(manifestBytes);
+        manifest = new ManifestEditor(manifestBytes.toByteArray())
+                .addFriends(Collections.singleton("com.viettel.vep.tools"));
+        if (threads == 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        jarFile.close();
+        new File(folder, "original.jar").delete();
+        copy.delete();
+        folder.delete();
+    }
+
+    @Benchmark
+    public long rewrite() throws IOException {
+        FileOutputStream out = new FileOutputStream(copy);
+        try {
+            return new ParallelJarWriter(Deflater.DEFAULT_COMPRESSION, threads).rewrite(jarFile, manifest,
+                    out.getChannel());
+        } finally {
+            out.close();
+        }
+    }
+}
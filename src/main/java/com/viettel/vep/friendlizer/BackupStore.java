@@ -0,0 +1,282 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Content addressed store of original jars, shared by all NetBeans
+ * installations. A jar is stored once per content under its SHA-1, as a hard
+ * link when the store and the installation are on the same file system, and
+ * every installation records which content each of its jars had before this
+ * tool last patched it from something else than its own output.
+ *
+ * Jars are restored as copies, not links: Auto Update and patching in place
+ * write jars in place and would change the stored original through a link.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class BackupStore {
+
+    private static final String OBJECTS_FOLDER = "objects";
+    private static final String INSTALLS_FOLDER = "installs";
+    private static final String PATH_KEY = "netbeans.path";
+    private final Path storeFolder;
+    private final Path netbeansFolder;
+    private final Path installFile;
+    private final PatchIndex index;
+    private final Properties originals = new Properties();
+    private boolean modified;
+
+    private BackupStore(Path storeFolder, Path netbeansFolder, PatchIndex index) {
+        this.storeFolder = storeFolder;
+        this.netbeansFolder = netbeansFolder;
+        this.index = index;
+        this.installFile = storeFolder.resolve(INSTALLS_FOLDER).resolve(
+                FileFingerprint.hash(netbeansFolder.toString()) + ".properties");
+    }
+
+    /**
+     * Open the backup of an installation
+     *
+     * @param storeFolder backup store folder, created if needed
+     * @param netbeansFolder NetBeans installation folder
+     * @return installation backup
+     * @throws IOException store can not be read or created
+     */
+    public static BackupStore open(File storeFolder, File netbeansFolder) throws IOException {
+        return open(storeFolder, netbeansFolder, null);
+    }
+
+    /**
+     * Open the backup of an installation about to be patched
+     *
+     * @param storeFolder backup store folder, created if needed
+     * @param netbeansFolder NetBeans installation folder
+     * @param index patch index of the installation, it knows the jars this
+     * tool wrote; null if there is none
+     * @return installation backup
+     * @throws IOException store can not be read or created
+     */
+    public static BackupStore open(File storeFolder, File netbeansFolder, PatchIndex index) throws IOException {
+        BackupStore store = new BackupStore(storeFolder.toPath().toAbsolutePath(),
+                netbeansFolder.toPath().toAbsolutePath().normalize(), index);
+        Files.createDirectories(store.storeFolder.resolve(OBJECTS_FOLDER));
+        Files.createDirectories(store.storeFolder.resolve(INSTALLS_FOLDER));
+        if (Files.isRegularFile(store.installFile)) {
+            InputStream stream = Files.newInputStream(store.installFile);
+            try {
+                store.originals.load(stream);
+            } finally {
+                stream.close();
+            }
+            store.originals.remove(PATH_KEY);
+        }
+        return store;
+    }
+
+    /**
+     * Keep the original of a jar about to be patched, the state restore goes
+     * back to. A jar still holding the output of this tool keeps its recorded
+     * original; a jar replaced by something else since, a module update for
+     * instance, gets its new content recorded. Without index the output of
+     * this tool is not known and the first recorded content is kept.
+     *
+     * @param dependency jar path relative to the installation
+     * @param jar jar file, still the original
+     * @param hash SHA-1 of the jar, null to read it from the jar
+     * @param inPlace true if the jar itself is about to be appended to
+     * @throws IOException the jar can not be backed up, it must not be patched
+     */
+    public void backup(String dependency, File jar, String hash, boolean inPlace) throws IOException {
+        if (hash == null) {
+            hash = FileFingerprint.hash(jar);
+        }
+        Path object = getObject(hash);
+        if (!Files.exists(object)) {
+            // A linked object would be modified with the jar patched in place
+            if (inPlace) {
+                copy(jar.toPath(), object);
+            } else {
+                link(jar.toPath(), object);
+            }
+        } else if (inPlace) {
+            // Jar linked to the store, by an earlier restore for instance
+            PatchJournal.detach(jar.toPath());
+        }
+
+        synchronized (originals) {
+            String recorded = originals.getProperty(dependency);
+            if (recorded == null || (!recorded.equals(hash) && !isOutput(dependency, hash))) {
+                originals.setProperty(dependency, hash);
+                modified = true;
+            }
+        }
+    }
+
+    /**
+     * Whether a jar content may be the output of this tool: the index
+     * recorded it, or there is no index to tell
+     */
+    private boolean isOutput(String dependency, String hash) {
+        if (index == null) {
+            return true;
+        }
+        String output = index.getHash(dependency);
+        return output == null || output.equals(hash);
+    }
+
+    /**
+     * Bring every backed up jar of the installation back to its original
+     * content, copied from the store.
+     *
+     * @param listener receive progress messages
+     * @return restored jars relative to the installation
+     * @throws IOException a jar can not be restored
+     */
+    public List<String> restore(PatchListener listener) throws IOException {
+        List<String> restored = new ArrayList<String>();
+        for (String dependency : new TreeSet<String>(originals.stringPropertyNames())) {
+            String hash = originals.getProperty(dependency);
+            Path object = getObject(hash);
+            Path jar = netbeansFolder.resolve(dependency);
+            if (!Files.exists(object)) {
+                listener.message("Backup of " + dependency + " is missing");
+                continue;
+            }
+            if (Files.exists(jar) && (Files.isSameFile(object, jar) || (Files.size(object) == Files.size(jar)
+                    && FileFingerprint.hash(jar.toFile()).equals(hash)))) {
+                continue;
+            }
+
+            copy(object, jar);
+            listener.message("Restored " + dependency);
+            restored.add(dependency);
+        }
+        return restored;
+    }
+
+    /**
+     * Save the installation record
+     *
+     * @throws IOException writing error
+     */
+    public void save() throws IOException {
+        synchronized (originals) {
+            if (!modified) {
+                return;
+            }
+            originals.setProperty(PATH_KEY, netbeansFolder.toString());
+            Path temporary = installFile.resolveSibling(installFile.getFileName() + ".tmp");
+            OutputStream stream = Files.newOutputStream(temporary);
+            try {
+                originals.store(stream, "Module Friendlizer original jars: dependency=sha1");
+            } finally {
+                stream.close();
+            }
+            PatchJournal.move(temporary, installFile);
+            originals.remove(PATH_KEY);
+            modified = false;
+        }
+    }
+
+    /**
+     * Space used by the store and saved by sharing contents between jars and
+     * installations
+     *
+     * @param storeFolder backup store folder
+     * @return one line summary
+     * @throws IOException reading error
+     */
+    public static String getSummary(File storeFolder) throws IOException {
+        Path store = storeFolder.toPath();
+        int installs = 0;
+        int jars = 0;
+        long referenced = 0;
+        Set<String> hashes = new HashSet<String>();
+        if (Files.isDirectory(store.resolve(INSTALLS_FOLDER))) {
+            DirectoryStream<Path> stream = Files.newDirectoryStream(store.resolve(INSTALLS_FOLDER), "*.properties");
+            try {
+                for (Path installFile : stream) {
+                    Properties install = new Properties();
+                    InputStream in = Files.newInputStream(installFile);
+                    try {
+                        install.load(in);
+                    } finally {
+                        in.close();
+                    }
+                    installs++;
+                    install.remove(PATH_KEY);
+                    for (String dependency : install.stringPropertyNames()) {
+                        Path object = getObject(store, install.getProperty(dependency));
+                        if (Files.exists(object)) {
+                            jars++;
+                            referenced += Files.size(object);
+                            hashes.add(install.getProperty(dependency));
+                        }
+                    }
+                }
+            } finally {
+                stream.close();
+            }
+        }
+
+        long stored = 0;
+        for (String hash : hashes) {
+            stored += Files.size(getObject(store, hash));
+        }
+        return "Backup store: " + jars + " jars of " + installs + " installations in " + hashes.size()
+                + " files, " + stored + " bytes stored, " + (referenced - stored) + " bytes saved by sharing";
+    }
+
+    private Path getObject(String hash) {
+        return getObject(storeFolder, hash);
+    }
+
+    private static Path getObject(Path store, String hash) {
+        return store.resolve(OBJECTS_FOLDER).resolve(hash.substring(0, 2)).resolve(hash + ".jar");
+    }
+
+    /**
+     * Hard link a file, copy it where links are not supported
+     */
+    private static void link(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, source);
+        } catch (UnsupportedOperationException e) {
+            copy(source, target);
+        } catch (FileSystemException e) {
+            copy(source, target);
+        }
+    }
+
+    /**
+     * Copy a file through a temporary file, the target is complete or absent.
+     * Installations of a fleet back up the same contents at the same time,
+     * each copy has its own temporary file.
+     */
+    private static void copy(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path temporary = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            Files.copy(source, temporary, StandardCopyOption.REPLACE_EXISTING);
+            PatchJournal.move(temporary, target);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Command line Module Friendlizer, for headless machines and scripts. The
+ * result of a command is its exit code. Commands can also be sent to a
+ * running PatchDaemon, which keeps configurations and module indexes in
+ * memory between commands.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class CliFriendlizerApp {
+
+    /** Command done, every jar patched or already patched */
+    public static final int EXIT_OK = 0;
+    /** Some jars could not be patched or restored */
+    public static final int EXIT_FAILED = 1;
+    /** Invalid command line */
+    public static final int EXIT_USAGE = 2;
+    /** Configuration can not be read or is invalid */
+    public static final int EXIT_CONFIGURATION = 3;
+    /** NetBeans folder, journal or backup store error */
+    public static final int EXIT_IO = 4;
+    /** Daemon not running or refusing the command */
+    public static final int EXIT_DAEMON = 5;
+    private static final String USAGE = "Usage: module-friendlizer [options] <command> [NetBeans folder]\n"
+            + "Commands:\n"
+            + "  patch <folder>...  add the configured modules to the friend lists of their dependencies,\n"
+            + "                     several folders or quoted glob patterns are patched as one fleet\n"
+            + "  plan <folder>      show what patch would do, nothing is written\n"
+            + "  rollback <folder>  undo the last patch run\n"
+            + "  restore <folder>   bring back the original jars from the backup store\n"
+            + "  patch-zip <zip> <patched zip>  patch the jars of a distribution zip into a new zip\n"
+            + "  watch <folder>...  patch, then patch again the jars replaced by Auto Update until killed\n"
+            + "  daemon             serve commands on a local socket\n"
+            + "  stop               stop the daemon (with --connect)\n"
+            + "Options:\n"
+            + "  --config <paths>   external configuration files or folders, separated by '"
+            + File.pathSeparator + "'\n"
+            + "  --parallelism <n>  number of jars patched at the same time\n"
+            + "  --device-parallelism <n>  number of jars patched at the same time per disk in a fleet\n"
+            + "  --quiet            only print run totals\n"
+            + "  --connect          send the command to the running daemon\n"
+            + "  --port <port>      daemon port, " + PatchDaemon.DEFAULT_PORT + " by default\n"
+            + "Exit codes: 0 done, 1 some jars failed, 2 usage, 3 configuration, 4 I/O, 5 daemon";
+    private final Map<String, ModuleConfiguration> configurations = new HashMap<String, ModuleConfiguration>();
+
+    public static void main(String[] args) {
+        System.exit(new CliFriendlizerApp().run(args, System.out, System.err));
+    }
+
+    /**
+     * Run a command
+     *
+     * @param args command line arguments
+     * @param out receive progress and results
+     * @param err receive errors
+     * @return exit code
+     */
+    public int run(String[] args, PrintStream out, PrintStream err) {
+        Arguments arguments;
+        try {
+            arguments = Arguments.parse(args);
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        if (arguments.help) {
+            out.println(USAGE);
+            return EXIT_OK;
+        }
+        String command = arguments.command;
+        List<String> folders = arguments.folders;
+        String config = arguments.config;
+        Integer parallelism = arguments.parallelism;
+        Integer deviceParallelism = arguments.deviceParallelism;
+        boolean quiet = arguments.quiet;
+        boolean connect = arguments.connect;
+        int port = arguments.port;
+
+        if (connect) {
+            return PatchDaemon.send(port, absolute(args), out, err);
+        }
+        if ("daemon".equals(command)) {
+            return PatchDaemon.serve(port, this, out, err);
+        }
+        if ("stop".equals(command)) {
+            err.println("stop is only sent to a daemon, with --connect");
+            return EXIT_USAGE;
+        }
+
+        String folder = folders.isEmpty() ? null : folders.get(0);
+        PatchListener listener = new StreamPatchListener(out, quiet);
+        if ("rollback".equals(command) || "restore".equals(command)) {
+            PatchOptions options;
+            try {
+                options = getConfiguration(config).getPatchOptions();
+            } catch (IOException e) {
+                err.println("Loading configuration error: " + e.getMessage());
+                return EXIT_CONFIGURATION;
+            }
+            try {
+                PatchEngine engine = new PatchEngine(options, listener);
+                if ("rollback".equals(command)) {
+                    engine.rollback(folder);
+                } else {
+                    engine.restore(folder);
+                }
+                return EXIT_OK;
+            } catch (IOException e) {
+                err.println(command + " error: " + e.getMessage());
+                return EXIT_IO;
+            }
+        }
+
+        if (!"patch".equals(command) && !"plan".equals(command) && !"watch".equals(command)
+                && !"patch-zip".equals(command)) {
+            err.println("Unknown command " + command);
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        ModuleConfiguration configuration;
+        try {
+            configuration = getConfiguration(config);
+        } catch (IOException e) {
+            err.println("Loading configuration error: " + e.getMessage());
+            return EXIT_CONFIGURATION;
+        }
+        if ("patch-zip".equals(command)) {
+            try {
+                PatchRun run = FriendlizerUtilities.patchingDistribution(folders.get(0), folders.get(1),
+                        configuration.getModules(), configuration.getPatchOptions(), listener);
+                return run.isSuccessful() ? EXIT_OK : EXIT_FAILED;
+            } catch (IOException e) {
+                err.println("Patching " + folders.get(0) + " error: " + e.getMessage());
+                return EXIT_IO;
+            }
+        }
+        for (String netbeansPath : folders) {
+            if (!PatchFleet.isPattern(netbeansPath) && !new File(netbeansPath).isDirectory()) {
+                err.println("Not a directory: " + netbeansPath);
+                return EXIT_IO;
+            }
+        }
+        PatchOptions options = configuration.getPatchOptions();
+        if (parallelism != null || deviceParallelism != null) {
+            options = PatchOptions.copyOf(options);
+            if (parallelism != null) {
+                options.setParallelism(parallelism);
+            }
+            if (deviceParallelism != null) {
+                options.setDeviceParallelism(deviceParallelism);
+            }
+        }
+
+        if ("plan".equals(command)) {
+            for (JarPlanResult result : FriendlizerUtilities.planningNetBeans(folder, configuration.getModules(),
+                    options, listener)) {
+                if (result.getStatus() == JarPatchResult.Status.FAILED) {
+                    return EXIT_FAILED;
+                }
+            }
+            return EXIT_OK;
+        }
+        if ("watch".equals(command)) {
+            try {
+                new PatchWatcher(options, listener).watch(folders, configuration.getModules());
+                return EXIT_OK;
+            } catch (IOException e) {
+                err.println("Watching error: " + e.getMessage());
+                return EXIT_IO;
+            }
+        }
+        if (folders.size() > 1 || PatchFleet.isPattern(folder)) {
+            try {
+                FleetRun fleet = FriendlizerUtilities.patchingFleet(folders, configuration.getModules(), options,
+                        listener);
+                if (fleet.getRuns().isEmpty()) {
+                    err.println("No NetBeans folder to patch");
+                    return EXIT_IO;
+                }
+                return fleet.isSuccessful() ? EXIT_OK : EXIT_FAILED;
+            } catch (IOException e) {
+                err.println("Patching fleet error: " + e.getMessage());
+                return EXIT_IO;
+            }
+        }
+        PatchRun run = FriendlizerUtilities.patchingNetBeans(folder, configuration.getModules(), options, listener);
+        return run.isSuccessful() ? EXIT_OK : EXIT_FAILED;
+    }
+
+    /**
+     * Configuration of the given sources, kept while none of them changes
+     */
+    private ModuleConfiguration getConfiguration(String config) throws IOException {
+        synchronized (configurations) {
+            ModuleConfiguration configuration = configurations.get(config);
+            if (configuration == null || configuration.isModified()) {
+                List<File> sources = new ArrayList<File>();
+                for (String source : config.split(Pattern.quote(File.pathSeparator))) {
+                    if (!source.trim().isEmpty()) {
+                        sources.add(new File(source.trim()));
+                    }
+                }
+                configuration = new ModuleConfiguration(sources);
+                configurations.put(config, configuration);
+            }
+            return configuration;
+        }
+    }
+
+    /**
+     * Arguments with the NetBeans folder and configuration paths made
+     * absolute, for a daemon running in another folder
+     */
+    private static String[] absolute(String[] args) {
+        String[] absolute = args.clone();
+        boolean commandSeen = false;
+        for (int i = 0; i < absolute.length; i++) {
+            if ("--config".equals(absolute[i]) && i + 1 < absolute.length) {
+                StringBuilder paths = new StringBuilder();
+                for (String source : absolute[++i].split(Pattern.quote(File.pathSeparator))) {
+                    if (!source.trim().isEmpty()) {
+                        paths.append(paths.length() == 0 ? "" : File.pathSeparator)
+                                .append(new File(source.trim()).getAbsolutePath());
+                    }
+                }
+                absolute[i] = paths.toString();
+            } else if (Arguments.hasValue(absolute[i])) {
+                i++;
+            } else if (!absolute[i].startsWith("--")) {
+                if (commandSeen) {
+                    absolute[i] = new File(absolute[i]).getAbsolutePath();
+                }
+                commandSeen = true;
+            }
+        }
+        return absolute;
+    }
+
+    /**
+     * Parsed command line, shared with the daemon choosing the installations
+     * to lock
+     */
+    static class Arguments {
+
+        String command;
+        final List<String> folders = new ArrayList<String>();
+        String config = System.getProperty(ModuleConfiguration.CONFIGURATION_SOURCES_PROPERTY, "");
+        Integer parallelism;
+        Integer deviceParallelism;
+        boolean quiet;
+        boolean connect;
+        boolean help;
+        int port = PatchDaemon.DEFAULT_PORT;
+
+        /**
+         * @param args command line arguments
+         * @return parsed arguments
+         * @throws IllegalArgumentException invalid command line
+         */
+        static Arguments parse(String[] args) {
+            Arguments arguments = new Arguments();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if ("--config".equals(arg)) {
+                    arguments.config = value(args, ++i, arg);
+                } else if ("--parallelism".equals(arg)) {
+                    arguments.parallelism = number(args, ++i, arg, 1);
+                } else if ("--device-parallelism".equals(arg)) {
+                    arguments.deviceParallelism = number(args, ++i, arg, 0);
+                } else if ("--port".equals(arg)) {
+                    arguments.port = number(args, ++i, arg, 1);
+                    if (arguments.port > 0xFFFF) {
+                        throw new IllegalArgumentException("Invalid value for " + arg + ": " + arguments.port);
+                    }
+                } else if ("--quiet".equals(arg)) {
+                    arguments.quiet = true;
+                } else if ("--connect".equals(arg)) {
+                    arguments.connect = true;
+                } else if ("--help".equals(arg) || "help".equals(arg)) {
+                    arguments.help = true;
+                    return arguments;
+                } else if (arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                } else if (arguments.command == null) {
+                    arguments.command = arg;
+                } else if (arguments.folders.isEmpty() || "watch".equals(arguments.command)
+                        || "patch".equals(arguments.command)
+                        || "patch-zip".equals(arguments.command) && arguments.folders.size() < 2) {
+                    arguments.folders.add(arg);
+                } else {
+                    throw new IllegalArgumentException("Unexpected argument " + arg);
+                }
+            }
+            if (arguments.command == null) {
+                throw new IllegalArgumentException("No command");
+            }
+            boolean needsFolder = !"daemon".equals(arguments.command) && !"stop".equals(arguments.command);
+            if (needsFolder == arguments.folders.isEmpty()) {
+                throw new IllegalArgumentException(needsFolder ? "No NetBeans folder"
+                        : "Unexpected argument " + arguments.folders.get(0));
+            }
+            if ("patch-zip".equals(arguments.command) && arguments.folders.size() != 2) {
+                throw new IllegalArgumentException("No patched zip");
+            }
+            return arguments;
+        }
+
+        /**
+         * @param option command line argument
+         * @return true if the option is followed by a value
+         */
+        static boolean hasValue(String option) {
+            return "--config".equals(option) || "--parallelism".equals(option)
+                    || "--device-parallelism".equals(option) || "--port".equals(option);
+        }
+
+        private static String value(String[] args, int i, String option) {
+            if (i >= args.length) {
+                throw new IllegalArgumentException("No value for " + option);
+            }
+            return args[i];
+        }
+
+        private static int number(String[] args, int i, String option, int min) {
+            String value = value(args, i, option);
+            try {
+                int number = Integer.parseInt(value);
+                if (number >= min) {
+                    return number;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+        }
+    }
+}
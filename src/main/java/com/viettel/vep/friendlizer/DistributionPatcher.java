@@ -0,0 +1,360 @@
+package com.viettel.vep.friendlizer;
+
+import com.viettel.vep.friendlizer.ZipDirectory.Entry;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Patch the module jars nested in a NetBeans distribution zip, writing the
+ * patched distribution in one sequential pass over the original: no jar is
+ * extracted to disk. Only the central directory is read first; entries are
+ * then copied in file order, as raw bytes, except the jars of the plan whose
+ * manifest is patched in memory and which are compressed again the way they
+ * were stored.
+ *
+ * Jar paths of the plan are relative to the installation, they match the
+ * entries under any root folder of the zip (netbeans/ide/modules/... for
+ * ide/modules/...). Module code names can not be resolved in a zip and are
+ * reported MISSING.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class DistributionPatcher {
+
+    private static final int DATA_DESCRIPTOR_FLAG = 0x08;
+    private final PatchOptions options;
+    private final PatchListener listener;
+
+    public DistributionPatcher(PatchOptions options, PatchListener listener) {
+        this.options = options;
+        this.listener = listener;
+    }
+
+    /**
+     * Write a patched copy of a distribution zip
+     *
+     * @param distribution original distribution zip
+     * @param target patched distribution zip, replaced once complete
+     * @param plan jars and module keys to add to their friend lists
+     * @return one result per jar in plan order, with run totals
+     * @throws IOException the distribution can not be read or written, target
+     * is left untouched
+     */
+    public PatchRun patch(File distribution, File target, PatchPlan plan) throws IOException {
+        long startTime = System.currentTimeMillis();
+        long start = System.nanoTime();
+        listener.runStarted(distribution.getPath(), plan.size());
+        Map<String, JarPatchResult> results = new LinkedHashMap<String, JarPatchResult>();
+        for (String dependency : plan.getDependencies()) {
+            results.put(dependency, null);
+        }
+
+        File temporary = new File(target.getPath() + FriendlizerUtilities.SUBFIX_VEP_TOOL_TEMPLATE_ZIP_FILE);
+        FileInputStream in = new FileInputStream(distribution);
+        try {
+            FileOutputStream out = new FileOutputStream(temporary);
+            try {
+                copy(in.getChannel(), out.getChannel(), plan, results);
+            } finally {
+                out.close();
+            }
+            PatchJournal.move(temporary.toPath(), target.toPath());
+        } finally {
+            in.close();
+            temporary.delete();
+        }
+
+        List<JarPatchResult> list = new ArrayList<JarPatchResult>();
+        for (Map.Entry<String, JarPatchResult> result : results.entrySet()) {
+            JarPatchResult jar = result.getValue();
+            if (jar == null) {
+                listener.message("Not found in " + distribution.getName() + ": " + result.getKey());
+                jar = new JarPatchResult(result.getKey(), JarPatchResult.Status.MISSING);
+                listener.jarFinished(jar);
+            }
+            list.add(jar);
+        }
+        PatchRun run = new PatchRun(distribution.getPath(), startTime, System.nanoTime() - start, list);
+        listener.runFinished(run);
+        return run;
+    }
+
+    /**
+     * Copy all entries in file order, patching the jars of the plan, then
+     * write the new central directory
+     */
+    private void copy(FileChannel source, FileChannel target, PatchPlan plan, Map<String, JarPatchResult> results)
+            throws IOException {
+        ZipDirectory directory = ZipDirectory.read(source);
+        List<Entry> entries = new ArrayList<Entry>(directory.getEntries());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return Long.compare(o1.getLocalOffset(), o2.getLocalOffset());
+            }
+        });
+
+        Map<Entry, PatchedEntry> patched = new HashMap<Entry, PatchedEntry>();
+        Map<Entry, Long> offsets = new HashMap<Entry, Long>();
+        long copyFrom = entries.isEmpty() ? 0 : entries.get(0).getLocalOffset();
+        long written = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            long localEnd = i + 1 < entries.size() ? entries.get(i + 1).getLocalOffset()
+                    : directory.getCentralOffset();
+            String dependency = findDependency(entry.getName(), results);
+            PatchedEntry jar = dependency == null ? null
+                    : patchJar(source, directory, entry, dependency, plan.getFriendKeys(dependency), results);
+            if (jar == null) {
+                offsets.put(entry, written + entry.getLocalOffset() - copyFrom);
+                continue;
+            }
+
+            // Raw copy of the entries before this jar, as one transfer
+            written += RawJarWriter.transfer(source, copyFrom, entry.getLocalOffset() - copyFrom, target);
+            offsets.put(entry, written);
+            patched.put(entry, jar);
+            written += RawJarWriter.write(target, ByteBuffer.wrap(jar.local));
+            written += RawJarWriter.write(target, ByteBuffer.wrap(jar.data, 0, jar.length));
+            copyFrom = localEnd;
+        }
+        written += RawJarWriter.transfer(source, copyFrom, directory.getCentralOffset() - copyFrom, target);
+        RawJarWriter.write(target, central(directory, offsets, patched, written));
+    }
+
+    /**
+     * Dependency of the plan an entry is the jar of, not patched yet
+     */
+    private static String findDependency(String name, Map<String, JarPatchResult> results) {
+        if (!name.endsWith(".jar")) {
+            return null;
+        }
+        int slash = -1;
+        do {
+            String dependency = name.substring(slash + 1);
+            if (results.containsKey(dependency) && results.get(dependency) == null) {
+                return dependency;
+            }
+            slash = name.indexOf('/', slash + 1);
+        } while (slash >= 0);
+        return null;
+    }
+
+    /**
+     * Patch the manifest of a nested jar in memory
+     *
+     * @return new local header and data of the entry, null to copy the entry
+     * as it is
+     */
+    private PatchedEntry patchJar(FileChannel source, ZipDirectory directory, Entry entry, String dependency,
+            Set<String> moduleKeys, Map<String, JarPatchResult> results) {
+        listener.jarStarted(dependency);
+        listener.message("Examining " + entry.getName());
+        long start = System.nanoTime();
+        JarMetrics metrics = new JarMetrics();
+        JarPatchResult.Status status;
+        PatchedEntry patched = null;
+        try {
+            long dataOffset = directory.getDataOffset(source, entry);
+            byte[] content = readData(source, entry, dataOffset);
+            metrics.addBytesRead(entry.getCompressedSize());
+            ByteBuffer jar = ByteBuffer.wrap(content);
+            ZipDirectory nested = ZipDirectory.read(jar);
+            Entry manifestEntry = nested.find(RawJarWriter.META_INF_MANIFEST_ENTRY);
+            byte[] manifest = manifestEntry == null ? null : new ManifestEditor(ManifestScanner.read(jar, nested,
+                    manifestEntry)).addFriends(moduleKeys);
+            if (manifestEntry == null) {
+                listener.message("Just ignore file without Manifest: " + entry.getName());
+                status = JarPatchResult.Status.IGNORED;
+            } else if (manifest == null) {
+                listener.message("Nothing patched for: " + entry.getName());
+                status = JarPatchResult.Status.UNCHANGED;
+            } else {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + manifest.length);
+                RawJarWriter.rewrite(jar, nested, manifest, Channels.newChannel(out));
+                byte[] newJar = out.toByteArray();
+                if (options.isVerify()) {
+                    check(newJar, moduleKeys);
+                }
+                patched = compress(newJar, entry, ZipDirectory.readFully(source, entry.getLocalOffset(),
+                        (int) (dataOffset - entry.getLocalOffset())));
+                metrics.addEntriesCopied(nested.getEntries().size());
+                metrics.addBytesWritten(patched.local.length + patched.length);
+                status = JarPatchResult.Status.PATCHED;
+            }
+        } catch (IOException e) {
+            listener.message("Patching " + entry.getName() + " error (" + e.getMessage() + "), copied as it is");
+            status = JarPatchResult.Status.FAILED;
+            patched = null;
+        } catch (RuntimeException e) {
+            listener.message("Patching " + entry.getName() + " error (" + e + "), copied as it is");
+            status = JarPatchResult.Status.FAILED;
+            patched = null;
+        }
+
+        metrics.setTotalNanos(System.nanoTime() - start);
+        JarPatchResult result = new JarPatchResult(dependency, status, metrics);
+        results.put(dependency, result);
+        listener.jarFinished(result);
+        return patched;
+    }
+
+    /**
+     * Uncompressed content of a nested jar
+     */
+    private static byte[] readData(FileChannel source, Entry entry, long dataOffset) throws IOException {
+        if (entry.getCompressedSize() > Integer.MAX_VALUE || entry.getSize() > Integer.MAX_VALUE) {
+            throw new ZipException("Entry too large: " + entry.getName());
+        }
+        ByteBuffer data = ZipDirectory.readFully(source, dataOffset, (int) entry.getCompressedSize());
+        byte[] compressed = new byte[data.remaining()];
+        data.get(compressed);
+        byte[] content;
+        if (entry.getMethod() == ZipEntry.STORED) {
+            content = compressed;
+        } else if (entry.getMethod() == ZipEntry.DEFLATED) {
+            content = ManifestScanner.inflate(compressed, (int) entry.getSize(), entry.getName());
+        } else {
+            throw new ZipException("Unsupported compression method " + entry.getMethod() + ": " + entry.getName());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        if (crc.getValue() != entry.getCrc()) {
+            throw new ZipException("CRC-32 mismatch: " + entry.getName());
+        }
+        return content;
+    }
+
+    /**
+     * Check the patched jar reads back with the new friends
+     */
+    private static void check(byte[] newJar, Set<String> moduleKeys) throws IOException {
+        ByteBuffer jar = ByteBuffer.wrap(newJar);
+        ZipDirectory directory = ZipDirectory.read(jar);
+        ManifestEditor editor = new ManifestEditor(ManifestScanner.read(jar, directory,
+                RawJarWriter.findManifest(directory)));
+        Set<String> missing = editor.getMissingFriends(moduleKeys);
+        if (!editor.hasFriendList() || !missing.isEmpty()) {
+            throw new ZipException("Friend list of the new manifest misses " + missing);
+        }
+    }
+
+    /**
+     * Compress the patched jar with the method of the original entry, under a
+     * copy of its local header with the new CRC-32 and sizes
+     */
+    private PatchedEntry compress(byte[] newJar, Entry entry, ByteBuffer header) {
+        CRC32 crc = new CRC32();
+        crc.update(newJar);
+        PatchedEntry patched = new PatchedEntry();
+        patched.crc = crc.getValue();
+        patched.size = newJar.length;
+        if (entry.getMethod() == ZipEntry.STORED) {
+            patched.data = newJar;
+            patched.length = newJar.length;
+        } else {
+            Deflater deflater = new Deflater(options.getCompressionLevel(), true);
+            try {
+                deflater.setInput(newJar);
+                deflater.finish();
+                byte[] data = new byte[newJar.length + newJar.length / 1000 + 64];
+                while (!deflater.finished()) {
+                    if (patched.length == data.length) {
+                        byte[] larger = new byte[data.length * 2];
+                        System.arraycopy(data, 0, larger, 0, patched.length);
+                        data = larger;
+                    }
+                    patched.length += deflater.deflate(data, patched.length, data.length - patched.length);
+                }
+                patched.data = data;
+            } finally {
+                deflater.end();
+            }
+        }
+        patched.flags = entry.getFlags() & ~DATA_DESCRIPTOR_FLAG;
+
+        ByteBuffer local = ByteBuffer.allocate(header.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        local.put(header);
+        local.putShort(6, (short) patched.flags);
+        local.putInt(14, (int) patched.crc);
+        local.putInt(18, patched.length);
+        local.putInt(22, patched.size);
+        patched.local = local.array();
+        return patched;
+    }
+
+    /**
+     * Central directory and end record, with the new offsets of all entries
+     * and the new CRC-32 and sizes of the patched jars
+     */
+    private static ByteBuffer central(ZipDirectory directory, Map<Entry, Long> offsets,
+            Map<Entry, PatchedEntry> patched, long centralOffset) throws ZipException {
+        if (centralOffset > 0xFFFFFFFFL) {
+            throw new ZipException("Patched distribution needs ZIP64, not supported");
+        }
+        ByteBuffer source = directory.getCentral();
+        byte[] comment = directory.getComment();
+        int size = source.limit();
+        ByteBuffer buffer = ByteBuffer.allocate(size + ZipDirectory.END_HEADER_SIZE + comment.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (Entry entry : directory.getEntries()) {
+            int record = buffer.position();
+            source.limit(entry.getRecordOffset() + entry.getRecordLength());
+            source.position(entry.getRecordOffset());
+            buffer.put(source);
+            buffer.putInt(record + ZipDirectory.CENTRAL_OFFSET_FIELD, (int) offsets.get(entry).longValue());
+            PatchedEntry jar = patched.get(entry);
+            if (jar != null) {
+                buffer.putShort(record + 8, (short) jar.flags);
+                buffer.putInt(record + 16, (int) jar.crc);
+                buffer.putInt(record + 20, jar.length);
+                buffer.putInt(record + 24, jar.size);
+            }
+        }
+
+        int count = directory.getEntries().size();
+        buffer.putInt(ZipDirectory.END_SIGNATURE);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) count);
+        buffer.putShort((short) count);
+        buffer.putInt(size);
+        buffer.putInt((int) centralOffset);
+        buffer.putShort((short) comment.length);
+        buffer.put(comment);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Patched jar entry of the distribution
+     */
+    private static class PatchedEntry {
+
+        private byte[] local;
+        private byte[] data;
+        private int length;
+        private int size;
+        private long crc;
+        private int flags;
+    }
+}
@@ -0,0 +1,116 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Size, modification time and content hash of a file
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class FileFingerprint {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private final long size;
+    private final long lastModified;
+    private final String hash;
+
+    public FileFingerprint(long size, long lastModified, String hash) {
+        this.size = size;
+        this.lastModified = lastModified;
+        this.hash = hash;
+    }
+
+    /**
+     * Fingerprint of a file, reading its whole content
+     *
+     * @param file file to fingerprint
+     * @return fingerprint
+     * @throws IOException reading error
+     */
+    public static FileFingerprint of(File file) throws IOException {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        return new FileFingerprint(size, lastModified, hash(file));
+    }
+
+    /**
+     * SHA-1 of a file content
+     *
+     * @param file file to hash
+     * @return lower case hexadecimal hash
+     * @throws IOException reading error
+     */
+    public static String hash(File file) throws IOException {
+        MessageDigest digest = sha1();
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            fis.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * SHA-1 of a string, UTF-8 encoded
+     *
+     * @param text text to hash
+     * @return lower case hexadecimal hash
+     */
+    public static String hash(String text) {
+        return toHex(sha1().digest(text.getBytes(ZipDirectory.UTF8)));
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Check size and modification time only
+     *
+     * @param file file to check
+     * @return true if the file looks unchanged
+     */
+    public boolean isSameStat(File file) {
+        return file.length() == size && file.lastModified() == lastModified;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+}
@@ -0,0 +1,97 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Results of patching a fleet of NetBeans installations in one run
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class FleetRun {
+
+    private final long startTime;
+    private final long wallNanos;
+    private final int devices;
+    private final List<PatchRun> runs;
+
+    public FleetRun(long startTime, long wallNanos, int devices, List<PatchRun> runs) {
+        this.startTime = startTime;
+        this.wallNanos = wallNanos;
+        this.devices = devices;
+        this.runs = Collections.unmodifiableList(runs);
+    }
+
+    /**
+     * @return start of the run, in milliseconds since the epoch
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    /**
+     * @return number of disks the installations are on
+     */
+    public int getDevices() {
+        return devices;
+    }
+
+    /**
+     * @return one run per installation, in the order of the installations
+     */
+    public List<PatchRun> getRuns() {
+        return runs;
+    }
+
+    /**
+     * @return false if any jar of any installation failed or was cancelled
+     */
+    public boolean isSuccessful() {
+        for (PatchRun run : runs) {
+            if (!run.isSuccessful()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Consolidated run: the results of all installations, jar paths prefixed
+     * with their installation folder, and the wall time of the fleet
+     *
+     * @return run of the whole fleet
+     */
+    public PatchRun getTotal() {
+        StringBuilder netbeansPaths = new StringBuilder();
+        List<JarPatchResult> results = new ArrayList<JarPatchResult>();
+        for (PatchRun run : runs) {
+            netbeansPaths.append(netbeansPaths.length() == 0 ? "" : File.pathSeparator).append(run.getNetbeansPath());
+            String prefix = run.getNetbeansPath().endsWith("/") ? run.getNetbeansPath() : run.getNetbeansPath() + "/";
+            for (JarPatchResult result : run.getResults()) {
+                results.add(new JarPatchResult(prefix + result.getDependency(), result.getStatus(),
+                        result.getMetrics()));
+            }
+        }
+        return new PatchRun(netbeansPaths.toString(), startTime, wallNanos, results);
+    }
+
+    /**
+     * @return one line summary of the fleet, with its aggregate throughput;
+     * the totals are the summary of getTotal
+     */
+    public String getSummary() {
+        long bytes = 0;
+        for (PatchRun run : runs) {
+            bytes += run.getBytesRead() + run.getBytesWritten();
+        }
+        double seconds = wallNanos / 1e9;
+        return String.format("%d installations on %d disks, %.1f MB/s", runs.size(), devices,
+                seconds > 0 ? bytes / seconds / (1024 * 1024) : 0.0);
+    }
+}
@@ -1,16 +1,26 @@
 package com.viettel.vep.friendlizer;
 
 import com.viettel.vep.friendlizer.ModuleConfiguration.Module;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.jar.Attributes;
+import java.util.List;
+import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 
 /**
  * Make selected module friendly with Viettel Enterprise Platform Tools
@@ -20,52 +30,172 @@ import javax.swing.JTextArea;
 public class FriendlizerUtilities {
 
     static private final String NEWLINE = "\n";
-    private static final String NETBEANS_MODULE_FRIEND_KEY = "OpenIDE-Module-Friends";
     private static final int BUFFER_SIZE = 4096 * 2;
     private static final String META_INF_MANIFESTM_ENTRY = "META-INF/MANIFEST.MF";
-    private static final String SUBFIX_VEP_TOOL_TEMPLATE_ZIP_FILE = "_vep_tool_template.zip";
+    static final String SUBFIX_VEP_TOOL_TEMPLATE_ZIP_FILE = "_vep_tool_template.zip";
 
     public static boolean patchingNetBeans(String netbeansPath, Module moduleCfg, JTextArea logger) {
-        Log(logger, "Viettel Enterprise Platform - Module Friendlizer");
+        return patchingNetBeans(netbeansPath, moduleCfg, new PatchOptions(), logger);
+    }
 
-        File netbeansFolder = new File(netbeansPath);
-        if (netbeansFolder.exists() && netbeansFolder.isDirectory()) {
+    /**
+     * Patch all dependencies of a module, see PatchEngine for per-jar results.
+     *
+     * @return false if any of the dependency jars failed
+     */
+    public static boolean patchingNetBeans(String netbeansPath, Module moduleCfg, PatchOptions options,
+            JTextArea logger) {
+        return patchingNetBeans(netbeansPath, new Module[]{moduleCfg}, options, logger);
+    }
 
-            String ideFolder = netbeansPath.endsWith("/") ? netbeansPath : netbeansPath + "/";
-            for (String dependency : moduleCfg.getDependences()) {
-                Log(logger, "Examining " + dependency);
+    /**
+     * Patch all dependencies of all modules, every jar is rewritten once with
+     * the keys of all modules depending on it.
+     *
+     * @return false if any of the dependency jars failed
+     */
+    public static boolean patchingNetBeans(String netbeansPath, Module[] modules, PatchOptions options,
+            JTextArea logger) {
+        return patchingNetBeans(netbeansPath, modules, options, new TextAreaPatchListener(logger)).isSuccessful();
+    }
 
-                String dependencyPath = ideFolder + dependency;
-                if ((new File(dependencyPath)).isFile()) {
-                    if (!patchingModuleJarFile(dependencyPath, moduleCfg.getKey(), logger)) {
-                        return false;
-                    }
-                } else {
-                    Log(logger, "Not a file");
+    /**
+     * Patch all dependencies of all modules, every jar is rewritten once with
+     * the keys of all modules depending on it.
+     *
+     * @param listener receive progress messages, per-jar results and totals
+     * @return results and metrics of the run
+     */
+    public static PatchRun patchingNetBeans(String netbeansPath, Module[] modules, PatchOptions options,
+            PatchListener listener) {
+        listener.message("Viettel Enterprise Platform - Module Friendlizer");
+
+        PatchRun run = new PatchEngine(options, listener).patch(netbeansPath, PatchPlan.of(modules));
+        for (JarPatchResult result : run.getResults()) {
+            if (result.isFailed()) {
+                listener.message("Patching fail: " + result.getDependency());
+            }
+        }
+        return run;
+    }
+
+    /**
+     * Patch all dependencies of all modules in many installations, see
+     * PatchFleet for the scheduling across disks.
+     *
+     * @param roots installation folders or glob patterns of them
+     * @param listener receive progress messages, per-jar results and the
+     * consolidated totals
+     * @return one run per installation with the consolidated totals
+     * @throws IOException a pattern folder can not be read
+     */
+    public static FleetRun patchingFleet(List<String> roots, Module[] modules, PatchOptions options,
+            PatchListener listener) throws IOException {
+        listener.message("Viettel Enterprise Platform - Module Friendlizer");
+
+        List<String> netbeansPaths = PatchFleet.expand(roots, listener);
+        if (netbeansPaths.isEmpty()) {
+            return new FleetRun(System.currentTimeMillis(), 0, 0, Collections.<PatchRun>emptyList());
+        }
+        FleetRun fleet = new PatchFleet(options, listener).patch(netbeansPaths, PatchPlan.of(modules));
+        for (PatchRun run : fleet.getRuns()) {
+            for (JarPatchResult result : run.getResults()) {
+                if (result.isFailed()) {
+                    listener.message("Patching fail: " + new File(run.getNetbeansPath(), result.getDependency()));
                 }
             }
         }
-        return true;
+        return fleet;
     }
 
     /**
-     * Log message to a logger.
+     * Dry run over all dependencies of all modules: log which jars would get
+     * which module keys, nothing is written.
+     *
+     * @return plan results, one per jar
+     */
+    public static List<JarPlanResult> planningNetBeans(String netbeansPath, Module[] modules, PatchOptions options,
+            JTextArea logger) {
+        return planningNetBeans(netbeansPath, modules, options, new TextAreaPatchListener(logger));
+    }
+
+    /**
+     * Dry run over all dependencies of all modules: log which jars would get
+     * which module keys, nothing is written.
+     *
+     * @return plan results, one per jar
+     */
+    public static List<JarPlanResult> planningNetBeans(String netbeansPath, Module[] modules, PatchOptions options,
+            PatchListener listener) {
+        listener.message("Viettel Enterprise Platform - Module Friendlizer (dry run)");
+
+        List<JarPlanResult> results = new PatchEngine(options, listener).plan(netbeansPath, PatchPlan.of(modules));
+        int toPatch = 0;
+        long bytesToWrite = 0;
+        for (JarPlanResult result : results) {
+            listener.message(result.toString());
+            if (result.getStatus() == JarPatchResult.Status.PATCHED) {
+                toPatch++;
+                bytesToWrite += result.getBytesToWrite();
+            }
+        }
+        listener.message(toPatch + " of " + results.size() + " jars to patch, about " + bytesToWrite
+                + " bytes to write");
+        return results;
+    }
+
+    /**
+     * Patch all dependencies of all modules inside a NetBeans distribution
+     * zip, writing a patched distribution zip without extracting it.
+     *
+     * @param distributionPath distribution zip
+     * @param targetPath patched distribution zip to write
+     * @param listener receive progress messages, per-jar results and totals
+     * @return results and metrics of the run
+     * @throws IOException the distribution can not be read or written
+     */
+    public static PatchRun patchingDistribution(String distributionPath, String targetPath, Module[] modules,
+            PatchOptions options, PatchListener listener) throws IOException {
+        listener.message("Viettel Enterprise Platform - Module Friendlizer");
+
+        PatchRun run = new DistributionPatcher(options, listener).patch(new File(distributionPath),
+                new File(targetPath), PatchPlan.of(modules));
+        for (JarPatchResult result : run.getResults()) {
+            if (result.isFailed()) {
+                listener.message("Patching fail: " + result.getDependency());
+            }
+        }
+        return run;
+    }
+
+    /**
+     * Log message to a logger. May be called from any thread, the text area
+     * is only updated on the event dispatch thread.
      *
      * @param logger logger, in this example it is a JTextArea
      * @param message message to be logged
      */
-    public static void Log(JTextArea logger, String message) {
-        logger.append(message + NEWLINE);
-        logger.setCaretPosition(logger.getDocument().getLength());
+    public static void Log(final JTextArea logger, final String message) {
+        if (SwingUtilities.isEventDispatchThread()) {
+            logger.append(message + NEWLINE);
+            logger.setCaretPosition(logger.getDocument().getLength());
+        } else {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    Log(logger, message);
+                }
+            });
+        }
     }
 
     /**
-     * Replace file
+     * Replace file by an atomic move, the target is never missing
      *
      * @param targetPath target path
      * @param newPath new file path
      */
-    private static boolean replaceFile(String targetPath, String newPath, JTextArea logger) {
+    private static boolean replaceFile(String targetPath, String newPath, PatchListener listener) {
         File targetFile = new File(targetPath);
         File newFile = new File(newPath);
 
@@ -74,17 +204,16 @@ public class FriendlizerUtilities {
                 && newFile.exists()
                 && newFile.canRead()) {
 
-            targetFile.delete();
             try {
-                Log(logger, "start replace");
-                targetFile.createNewFile();
-                return newFile.renameTo(targetFile);
+                listener.message("start replace");
+                PatchJournal.move(newFile.toPath(), targetFile.toPath());
+                return true;
             } catch (IOException e) {
-                Log(logger, "replace error: " + e.getMessage());
+                listener.message("replace error: " + e.getMessage());
                 return false;
             }
         } else {
-            Log(logger, "invalid input");
+            listener.message("invalid input");
             return false;
         }
     }
@@ -94,31 +223,130 @@ public class FriendlizerUtilities {
      * http://javahowto.blogspot.com/2011/07/how-to-programmatically-copy-jar-files.html
      *
      * @param filename jar file to patch
-     * @throws IOException error occur
+     * @param moduleKeys module keys to add to the friend list
+     * @param options patching options
+     * @param metrics receive the measures taken on the jar
+     * @return patching outcome
+     */
+    static JarPatchResult.Status patchingModuleJarFile(String filename, Collection<String> moduleKeys,
+            PatchOptions options, PatchListener listener, JarMetrics metrics) {
+        return patchingModuleJarFile(filename, moduleKeys, options, listener, metrics, null);
+    }
+
+    /**
+     * Patching module jar file procedure, the original jar is kept in the
+     * journal before it is modified.
+     *
+     * @param journal rollback journal of the run, null for none
+     * @return patching outcome
      */
-    private static boolean patchingModuleJarFile(String filename, String moduleKey, JTextArea logger) {
+    static JarPatchResult.Status patchingModuleJarFile(String filename, Collection<String> moduleKeys,
+            PatchOptions options, PatchListener listener, JarMetrics metrics, PatchJournal journal) {
+        PatchCache.Slot slot = new PatchCache.Slot();
+        JarPatchResult.Status status = copyingModuleJarFile(filename, moduleKeys, options, listener, metrics,
+                journal, slot);
+        if (status != null) {
+            return status;
+        }
+        return replacingModuleJarFile(filename, moduleKeys, options, listener, metrics, slot);
+    }
+
+    /**
+     * First half of patchingModuleJarFile: patch the jar in place, or write
+     * the patched copy next to it.
+     *
+     * @param journal rollback journal of the run, null for none
+     * @param slot receive the cache entry of the patched copy, for
+     * replacingModuleJarFile
+     * @return patching outcome, null if the patched copy is written and waits
+     * for replacingModuleJarFile
+     */
+    static JarPatchResult.Status copyingModuleJarFile(String filename, Collection<String> moduleKeys,
+            PatchOptions options, PatchListener listener, JarMetrics metrics, PatchJournal journal,
+            PatchCache.Slot slot) {
 
         String temporatyFile = filename + SUBFIX_VEP_TOOL_TEMPLATE_ZIP_FILE;
 
+        /* Same jar already patched with the same keys: copy it from the cache */
+        PatchCache cache = null;
+        String cacheKey = null;
+        // Read once for the cache key and the backup store
+        String hash = null;
+        if (options.isCache() && !options.isInPlace()) {
+            cache = PatchCache.open(options.getCacheFolder());
+            try {
+                long start = System.nanoTime();
+                hash = FileFingerprint.hash(new File(filename));
+                cacheKey = PatchCache.key(hash, moduleKeys, options);
+                if (cache.isUnchanged(cacheKey)) {
+                    listener.message("Nothing patched for: " + filename + " (cached)");
+                    return JarPatchResult.Status.UNCHANGED;
+                }
+                if (cache.fetch(cacheKey, new File(temporatyFile))) {
+                    if (journal != null) {
+                        journal.snapshot(new File(filename), hash);
+                    }
+                    slot.set(cache, cacheKey, true);
+                    metrics.addBytesWritten(new File(temporatyFile).length());
+                    metrics.addCopyNanos(System.nanoTime() - start);
+                    listener.message("Patched copy taken from the cache: " + filename);
+                    return null;
+                }
+            } catch (IOException e) {
+                listener.message("Patch cache error: " + e.getMessage());
+                new File(temporatyFile).delete();
+                cache = null;
+            }
+        }
+
         /* Start make new temporary file */
         JarFile jarfile = null;
         boolean ret;
         try {
+            long start = System.nanoTime();
             jarfile = new JarFile(filename);
-            if (jarfile.getManifest() == null) {
-                Log(logger, "Just ignore file without Manifest: " + filename);
-                return true;
+            metrics.addOpenNanos(System.nanoTime() - start);
+
+            start = System.nanoTime();
+            JarEntry manifestEntry = jarfile.getJarEntry(META_INF_MANIFESTM_ENTRY);
+            if (manifestEntry == null) {
+                listener.message("Just ignore file without Manifest: " + filename);
+                return JarPatchResult.Status.IGNORED;
             }
-            if (updateManifestFriendList(jarfile.getManifest().getMainAttributes(), moduleKey)) {
-                ret = copyAllJarEntries(jarfile, temporatyFile, logger);
+            byte[] manifest = new ManifestEditor(readEntry(jarfile, manifestEntry)).addFriends(moduleKeys);
+            metrics.addManifestNanos(System.nanoTime() - start);
+
+            if (manifest != null) {
+                if (options.isInPlace()) {
+                    jarfile.close();
+                    jarfile = null;
+                    if (journal != null) {
+                        journal.recordAppend(new File(filename), hash);
+                    }
+                    if (appendManifestEntry(filename, manifest, moduleKeys, options, listener, metrics)) {
+                        return JarPatchResult.Status.PATCHED;
+                    }
+                    jarfile = new JarFile(filename);
+                }
+                if (journal != null) {
+                    journal.snapshot(new File(filename), hash);
+                }
+                ret = copyAllJarEntries(jarfile, manifest, temporatyFile, options, listener, metrics);
             } else {
-                Log(logger, "Nothing patched for: " + filename);
-                return true;
+                listener.message("Nothing patched for: " + filename);
+                if (cache != null) {
+                    try {
+                        cache.storeUnchanged(cacheKey);
+                    } catch (IOException e) {
+                        listener.message("Patch cache error: " + e.getMessage());
+                    }
+                }
+                return JarPatchResult.Status.UNCHANGED;
             }
 
         } catch (IOException e) {
             ret = false;
-            Log(logger, "Create temporaty file error: " + e.getMessage());
+            listener.message("Create temporaty file error: " + e.getMessage());
         } finally {
             if (jarfile != null) {
                 try {
@@ -128,37 +356,327 @@ public class FriendlizerUtilities {
             }
         }
 
-        /* If we have new file, using it to replace the old one */
         if (ret) {
-            Log(logger, "Replace old file");
-            if (replaceFile(filename, temporatyFile, logger)) {
-                Log(logger, "Replace successful!");
-                return true;
-            } else {
-                Log(logger, "Can't replace file " + filename + " with file " + temporatyFile);
+            if (cache != null) {
+                slot.set(cache, cacheKey, false);
             }
-        } else {
-            Log(logger, "No temporary file created.");
+            return null;
         }
-        return false;
+        listener.message("No temporary file created for: " + filename);
+        new File(temporatyFile).delete();
+        return JarPatchResult.Status.FAILED;
     }
 
     /**
-     * Copy all jarFile entries to new file
+     * Second half of patchingModuleJarFile: verify the patched copy against
+     * the jar, then replace the jar with it. A copy that fails verification
+     * is deleted and the jar is left untouched; a replaced jar is stored in
+     * the patch cache.
+     *
+     * @param filename jar file whose patched copy was written
+     * @param moduleKeys module keys the new friend list must hold
+     * @param slot cache entry of the patched copy, from copyingModuleJarFile
+     * @return PATCHED or FAILED
+     */
+    static JarPatchResult.Status replacingModuleJarFile(String filename, Collection<String> moduleKeys,
+            PatchOptions options, PatchListener listener, JarMetrics metrics, PatchCache.Slot slot) {
+        String temporatyFile = filename + SUBFIX_VEP_TOOL_TEMPLATE_ZIP_FILE;
+        if (options.isVerify()) {
+            long start = System.nanoTime();
+            try {
+                metrics.addBytesVerified(JarVerifier.verify(new File(filename), new File(temporatyFile),
+                        moduleKeys));
+            } catch (IOException e) {
+                listener.message("Verifying " + filename + " failed: " + e.getMessage());
+                new File(temporatyFile).delete();
+                try {
+                    slot.failed();
+                } catch (IOException ex) {
+                    listener.message("Patch cache error: " + ex.getMessage());
+                }
+                return JarPatchResult.Status.FAILED;
+            } finally {
+                metrics.addVerifyNanos(System.nanoTime() - start);
+            }
+        }
+
+        /* If we have new file, using it to replace the old one */
+        listener.message("Replace old file " + filename);
+        long start = System.nanoTime();
+        boolean replaced = replaceFile(filename, temporatyFile, listener);
+        metrics.addReplaceNanos(System.nanoTime() - start);
+        if (replaced) {
+            listener.message("Replace successful: " + filename);
+            try {
+                slot.patched(new File(filename));
+            } catch (IOException e) {
+                listener.message("Patch cache error: " + e.getMessage());
+            }
+            return JarPatchResult.Status.PATCHED;
+        }
+        listener.message("Can't replace file " + filename + " with file " + temporatyFile);
+        return JarPatchResult.Status.FAILED;
+    }
+
+    /**
+     * Dry run of patchingModuleJarFile: only the central directory and the
+     * manifest entry are read. A jar that can not be read is FAILED.
+     *
+     * @param filename jar file to examine
+     * @param dependency jar path relative to NetBeans folder
+     * @param moduleKeys module keys to add to the friend list
+     * @param options patching options
+     * @return what patching would do
+     */
+    static JarPlanResult planningModuleJarFile(String filename, String dependency, Collection<String> moduleKeys,
+            PatchOptions options, PatchListener listener) {
+        try {
+            ManifestScanner.Result scanned = ManifestScanner.scan(new File(filename));
+            if (scanned.getManifest() == null) {
+                return new JarPlanResult(dependency, JarPatchResult.Status.IGNORED);
+            }
+
+            ManifestEditor editor = new ManifestEditor(scanned.getManifest());
+            Set<String> missingKeys = editor.getMissingFriends(moduleKeys);
+            if (missingKeys.isEmpty()) {
+                return new JarPlanResult(dependency, JarPatchResult.Status.UNCHANGED);
+            }
+
+            byte[] manifest = editor.addFriends(missingKeys);
+            ZipDirectory directory = scanned.getDirectory();
+            // In place: manifest (upper bound), headers and new central directory
+            long bytesToWrite = options.isInPlace()
+                    ? manifest.length + directory.getCentralSize() + 128
+                    : new File(filename).length() + manifest.length - scanned.getEntry().getCompressedSize();
+            return new JarPlanResult(dependency, JarPatchResult.Status.PATCHED, missingKeys, bytesToWrite);
+
+        } catch (IOException e) {
+            listener.message("Scanning " + filename + " error: " + e.getMessage());
+            return new JarPlanResult(dependency, JarPatchResult.Status.FAILED);
+        } catch (RuntimeException e) {
+            listener.message("Scanning " + filename + " error: " + e);
+            return new JarPlanResult(dependency, JarPatchResult.Status.FAILED);
+        }
+    }
+
+    /**
+     * Append new manifest entry and central directory to the jar file itself.
+     * The appended jar is verified against the original central directory if
+     * the options ask for it. The file is truncated back to its original size
+     * if anything goes wrong.
+     *
+     * @param filename jar file to patch
+     * @param manifest new manifest bytes
+     * @param moduleKeys module keys the new friend list must hold
+     * @return true if the jar is patched, false if it has to be copied instead
+     */
+    private static boolean appendManifestEntry(String filename, byte[] manifest, Collection<String> moduleKeys,
+            PatchOptions options, PatchListener listener, JarMetrics metrics) {
+        RandomAccessFile file = null;
+        long originalSize = -1;
+        long start = System.nanoTime();
+        try {
+            // Never append through a link to the backup store
+            PatchJournal.detach(new File(filename).toPath());
+            file = new RandomAccessFile(filename, "rw");
+            FileChannel channel = file.getChannel();
+            ZipDirectory directory = ZipDirectory.read(channel);
+            metrics.addBytesRead(directory.getBytesRead());
+            originalSize = channel.size();
+            long appended = RawJarWriter.append(channel, directory, manifest);
+            if (options.isVerify()) {
+                // The live jar: a bad append is truncated away below
+                long verifyStart = System.nanoTime();
+                try {
+                    metrics.addBytesVerified(JarVerifier.verify(directory, channel, moduleKeys));
+                } finally {
+                    metrics.addVerifyNanos(System.nanoTime() - verifyStart);
+                }
+            }
+            channel.force(false);
+            metrics.addBytesWritten(appended);
+            listener.message("Patched in place, " + appended + " bytes appended");
+            return true;
+
+        } catch (IOException e) {
+            listener.message("Patch in place not possible (" + e.getMessage() + "), copying jar");
+            if (originalSize >= 0) {
+                try {
+                    file.getChannel().truncate(originalSize);
+                } catch (IOException ex) {
+                    listener.message("Truncate " + filename + " error: " + ex.getMessage());
+                }
+            }
+            return false;
+
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                }
+            }
+            metrics.addCopyNanos(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Copy all jarFile entries to new file with the given manifest. Entries
+     * are copied compressed as they are, only the manifest is written again.
+     * Jar files that can not be copied that way (ZIP64...) are recompressed.
+     *
+     * @param jarfile original jar file
+     * @param manifest manifest bytes of the new file
+     * @param newFile new file path
+     * @param metrics receive entries and bytes copied
+     * @return true if the new file is written
+     */
+    static boolean copyAllJarEntries(JarFile jarfile, byte[] manifest, String newFile, PatchListener listener,
+            JarMetrics metrics) {
+        return copyAllJarEntries(jarfile, manifest, newFile, new PatchOptions(), listener, metrics);
+    }
+
+    /**
+     * Copy all jarFile entries to new file with the given manifest, entries
+     * are recompressed if the options ask for it.
+     *
+     * @param options patching options
+     * @return true if the new file is written
+     */
+    static boolean copyAllJarEntries(JarFile jarfile, byte[] manifest, String newFile, PatchOptions options,
+            PatchListener listener, JarMetrics metrics) {
+        if (options.isRecompress()) {
+            return recompressAllJarEntries(jarfile, manifest, newFile, options, listener, metrics);
+        }
+
+        FileInputStream fis = null;
+        FileOutputStream fos = null;
+        long start = System.nanoTime();
+        try {
+            fis = new FileInputStream(jarfile.getName());
+            fos = new FileOutputStream(newFile);
+            FileChannel source = fis.getChannel();
+            ZipDirectory directory = ZipDirectory.read(source);
+            long written = RawJarWriter.rewrite(source, directory, manifest, fos.getChannel());
+            fos.close();
+            metrics.addEntriesCopied(directory.getEntries().size() - 1);
+            metrics.addBytesRead(directory.getBytesRead() + directory.getCentralOffset());
+            metrics.addBytesWritten(written);
+            return true;
+
+        } catch (ZipException e) {
+            listener.message("Raw copy not possible (" + e.getMessage() + "), recompressing all entries");
+            return recompressAllJarEntries(jarfile, manifest, newFile, options, listener, metrics);
+
+        } catch (IOException e) {
+            listener.message("Copy jarEntries to file " + newFile + " error: " + e.getMessage());
+            return false;
+
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                }
+            }
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                }
+            }
+            metrics.addCopyNanos(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Copy all jarFile entries to new file by inflating and deflating them
+     * again, deflating on all parallelism threads. Jars too large for a plain
+     * zip file are copied through a ZipOutputStream.
+     *
+     * @return true if the new file is written
+     */
+    static boolean recompressAllJarEntries(JarFile jarfile, byte[] manifest, String newFile, PatchOptions options,
+            PatchListener listener, JarMetrics metrics) {
+        FileOutputStream fos = null;
+        long start = System.nanoTime();
+        try {
+            fos = new FileOutputStream(newFile);
+            ParallelJarWriter writer = ParallelJarWriter.shared(options.getCompressionLevel());
+            long written = writer.rewrite(jarfile, manifest, fos.getChannel());
+            fos.close();
+            metrics.addEntriesCopied(writer.getEntriesCopied());
+            metrics.addBytesRead(writer.getBytesRead());
+            metrics.addBytesWritten(written);
+            return true;
+
+        } catch (ZipException e) {
+            listener.message("Parallel recompression not possible (" + e.getMessage() + "), copying entries");
+            return streamCopyAllJarEntries(jarfile, manifest, newFile, listener, metrics);
+
+        } catch (IOException e) {
+            listener.message("Recompress jarEntries to file " + newFile + " error: " + e.getMessage());
+            return false;
+
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                }
+            }
+            metrics.addCopyNanos(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Read a whole jar entry
+     *
+     * @param jarfile jar file
+     * @param entry entry to read
+     * @return uncompressed entry content
+     * @throws IOException reading error
+     */
+    private static byte[] readEntry(JarFile jarfile, JarEntry entry) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream(
+                entry.getSize() > 0 ? (int) entry.getSize() : BUFFER_SIZE);
+        InputStream entryIs = jarfile.getInputStream(entry);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = entryIs.read(buffer)) != -1) {
+                content.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            entryIs.close();
+        }
+        return content.toByteArray();
+    }
+
+    /**
+     * Copy all jarFile entries to new file by inflating and deflating them
+     * again. The edited manifest bytes are written as they are, the first
+     * entry of the new file.
      *
      * @param jarfile
+     * @param manifest
      * @param newFile
+     * @param metrics
      * @return
      * @throws IOException
      */
-    private static boolean copyAllJarEntries(JarFile jarfile, String newFile, JTextArea logger) {
+    private static boolean streamCopyAllJarEntries(JarFile jarfile, byte[] manifest, String newFile,
+            PatchListener listener, JarMetrics metrics) {
         byte[] buffer = new byte[BUFFER_SIZE];
 
         FileOutputStream fos = null;
-        JarOutputStream jaros = null;
+        ZipOutputStream jaros = null;
         try {
             fos = new FileOutputStream(newFile);
-            jaros = new JarOutputStream(fos, jarfile.getManifest());
+            jaros = new ZipOutputStream(fos);
+            jaros.putNextEntry(new ZipEntry(META_INF_MANIFESTM_ENTRY));
+            jaros.write(manifest);
+            jaros.closeEntry();
 
             Enumeration<JarEntry> jarEntries = jarfile.entries();
             while (jarEntries.hasMoreElements()) {
@@ -168,7 +686,7 @@ public class FriendlizerUtilities {
                 if (!jarEntry.getName().equalsIgnoreCase(META_INF_MANIFESTM_ENTRY)) {
 
                     InputStream entryIs = jarfile.getInputStream(jarEntry);
-                    jaros.putNextEntry(new JarEntry(jarEntry.getName()));
+                    jaros.putNextEntry(new ZipEntry(jarEntry.getName()));
 
                     int bytesRead;
                     while ((bytesRead = entryIs.read(buffer)) != -1) {
@@ -177,16 +695,19 @@ public class FriendlizerUtilities {
                     entryIs.close();
                     jaros.flush();
                     jaros.closeEntry();
+                    metrics.addEntriesCopied(1);
+                    metrics.addBytesRead(jarEntry.getCompressedSize());
                 }
             }
 
             jaros.flush();
             jaros.close();
             fos.close();
+            metrics.addBytesWritten(new File(newFile).length());
             return true;
 
         } catch (IOException e) {
-            Log(logger, "Copy jarEntries to file " + newFile + " error: " + e.getMessage());
+            listener.message("Copy jarEntries to file " + newFile + " error: " + e.getMessage());
             return false;
 
         } finally {
@@ -206,63 +727,4 @@ public class FriendlizerUtilities {
             }
         }
     }
-
-    /**
-     * Update manifest attributes
-     *
-     * @param att Manifest Main Attributes
-     * @return true if the Attributes need to modified (already modified)
-     */
-    private static boolean updateManifestFriendList(Attributes att, String moduleKey) {
-        for (Object key : att.keySet()) {
-
-            if (key instanceof Attributes.Name) {
-                Attributes.Name friendKey = (Attributes.Name) key;
-
-                // Looking for friends key
-                if (friendKey.toString().equalsIgnoreCase(NETBEANS_MODULE_FRIEND_KEY)) {
-                    Object value = att.get(key);
-                    if (value instanceof String) {
-
-                        // Get old friend list
-                        String oldFriendList = (String) value;
-
-                        // Make new friend list
-                        String newFriendList = putViettelTooltoFriendList(oldFriendList, moduleKey);
-
-                        // Put new list in-place
-                        att.put(key, newFriendList);
-
-                        return true;
-                    }
-                }
-            }
-        }
-
-        return false;
-    }
-
-    /**
-     * Put Viettel Enterprise Platform Tools to friend list
-     *
-     * @param oldFriendList old friend list string
-     * @return new friend list string
-     */
-    private static String putViettelTooltoFriendList(String oldFriendList, String moduleKey) {
-        if (oldFriendList == null || oldFriendList.isEmpty()) {
-            return moduleKey;
-        }
-
-        if (oldFriendList.contains(moduleKey)) {
-            return oldFriendList;
-        } else {
-            String newFriendList = oldFriendList.trim();
-            if (newFriendList.endsWith(",")) {
-                newFriendList += " " + moduleKey;
-            } else {
-                newFriendList += ", " + moduleKey;
-            }
-            return newFriendList;
-        }
-    }
 }
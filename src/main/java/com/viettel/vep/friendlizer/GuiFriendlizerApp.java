@@ -34,6 +34,8 @@ import com.viettel.vep.friendlizer.ModuleConfiguration.Module;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 import javax.swing.*;
 
 /**
@@ -41,10 +43,12 @@ import javax.swing.*;
  */
 public class GuiFriendlizerApp extends JPanel implements ActionListener {
 
-    private JButton openButton, patchButton;
+    private JButton openButton, planButton, patchButton, cancelButton;
     private JTextArea logger;
+    private JProgressBar progressBar;
+    private PatchWorker patchWorker;
     private JFileChooser fc;
-    private String selectedNetBeansPath = null;
+    private List<String> selectedNetBeansPaths = new ArrayList<String>();
     private ModuleConfiguration moduleConfiguration;
 
     public GuiFriendlizerApp() {
@@ -82,6 +86,7 @@ public class GuiFriendlizerApp extends JPanel implements ActionListener {
         //Create a file chooser
         fc = new JFileChooser();
         fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        fc.setMultiSelectionEnabled(true);
 
         //Create the open button.  We use the image from the JLF
         //Graphics Repository (but we extracted it from the jar).
@@ -94,14 +99,32 @@ public class GuiFriendlizerApp extends JPanel implements ActionListener {
         patchButton.addActionListener(GuiFriendlizerApp.this);
         patchButton.setEnabled(false);
 
+        //Create the dry run button, it only reports what would be patched.
+        planButton = new JButton("Show Plan");
+        planButton.addActionListener(GuiFriendlizerApp.this);
+        planButton.setEnabled(false);
+
         //For layout purposes, put the buttons in a separate panel
         JPanel buttonPanel = new JPanel(); //use FlowLayout        
         buttonPanel.add(openButton);
+        buttonPanel.add(planButton);
         buttonPanel.add(patchButton);
 
+        //Progress of the running patch and its cancel button
+        progressBar = new JProgressBar();
+        progressBar.setStringPainted(true);
+        progressBar.setString("");
+        cancelButton = new JButton("Cancel");
+        cancelButton.addActionListener(GuiFriendlizerApp.this);
+        cancelButton.setEnabled(false);
+        JPanel progressPanel = new JPanel(new BorderLayout());
+        progressPanel.add(progressBar, BorderLayout.CENTER);
+        progressPanel.add(cancelButton, BorderLayout.LINE_END);
+
         //Add the buttons and the logger to this panel.
         add(buttonPanel, BorderLayout.PAGE_START);
         add(logScrollPane, BorderLayout.CENTER);
+        add(progressPanel, BorderLayout.PAGE_END);
     }
 
     @Override
@@ -112,40 +135,145 @@ public class GuiFriendlizerApp extends JPanel implements ActionListener {
             int returnVal = fc.showOpenDialog(GuiFriendlizerApp.this);
 
             if (returnVal == JFileChooser.APPROVE_OPTION) {
-                File file = fc.getSelectedFile();
-                selectedNetBeansPath = file.getAbsolutePath();
-                //This is where a real application would open the file.
-                FriendlizerUtilities.Log(logger, "Selected: " + selectedNetBeansPath + ".");
+                selectedNetBeansPaths = new ArrayList<String>();
+                for (File file : fc.getSelectedFiles()) {
+                    selectedNetBeansPaths.add(file.getAbsolutePath());
+                    //This is where a real application would open the file.
+                    FriendlizerUtilities.Log(logger, "Selected: " + file.getAbsolutePath() + ".");
+                }
+                planButton.setEnabled(true);
                 patchButton.setEnabled(true);
             } else {
+                planButton.setEnabled(false);
                 patchButton.setEnabled(false);
             }
 
+            //Handle plan button action.
+        } else if (e.getSource() == planButton) {
+            if (selectedNetBeansPaths.isEmpty()) {
+                FriendlizerUtilities.Log(logger, "Not in valid state");
+            } else {
+                setRunning(true);
+                final List<String> netbeansPaths = selectedNetBeansPaths;
+                new SwingWorker<Void, String>() {
+                    @Override
+                    protected Void doInBackground() {
+                        // Lines are appended in batches, as the patch worker does
+                        PatchListener listener = new PatchListener() {
+                            @Override
+                            public void message(String message) {
+                                publish(message);
+                            }
+
+                            @Override
+                            public void runStarted(String netbeansPath, int jars) {
+                            }
+
+                            @Override
+                            public void jarStarted(String dependency) {
+                            }
+
+                            @Override
+                            public void jarFinished(JarPatchResult result) {
+                            }
+
+                            @Override
+                            public void runFinished(PatchRun run) {
+                                publish(run.getSummary());
+                            }
+                        };
+                        for (String netbeansPath : netbeansPaths) {
+                            FriendlizerUtilities.planningNetBeans(netbeansPath, moduleConfiguration.getModules(),
+                                    moduleConfiguration.getPatchOptions(), listener);
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    protected void process(List<String> lines) {
+                        StringBuilder text = new StringBuilder();
+                        for (String line : lines) {
+                            text.append(line).append('\n');
+                        }
+                        logger.append(text.toString());
+                        logger.setCaretPosition(logger.getDocument().getLength());
+                    }
+
+                    @Override
+                    protected void done() {
+                        setRunning(false);
+                        patchButton.setEnabled(true);
+                    }
+                }.execute();
+            }
+
             //Handle save button action.
         } else if (e.getSource() == patchButton) {
-            if (selectedNetBeansPath == null || selectedNetBeansPath.isEmpty()) {
+            if (selectedNetBeansPaths.isEmpty()) {
                 FriendlizerUtilities.Log(logger, "Not in valid state");
             } else {
 
-                boolean patched = true;
                 for (Module moduleCfg : moduleConfiguration.getModules()) {
                     FriendlizerUtilities.Log(logger, "Patching for:\n\t"
                             + moduleCfg.getKey() + "\n\t"
                             + moduleCfg.getDescription());
-                    patched &= FriendlizerUtilities.patchingNetBeans(selectedNetBeansPath, moduleCfg, logger);
                 }
 
-                if (patched) {
-                    FriendlizerUtilities.Log(logger, "All modules are patched successful!");
-                    patchButton.setEnabled(false);
-                } else {
-                    patchButton.setEnabled(false);
-                    FriendlizerUtilities.Log(logger, "Patching fail, please re-select netbeans IDE");
-                }
+                patchWorker = new PatchWorker(selectedNetBeansPaths, PatchPlan.of(moduleConfiguration.getModules()),
+                        moduleConfiguration.getPatchOptions(), logger, progressBar) {
+                    @Override
+                    protected void done() {
+                        super.done();
+                        patchFinished(this);
+                    }
+                };
+                setRunning(true);
+                patchWorker.execute();
+            }
+
+            //Handle cancel button action.
+        } else if (e.getSource() == cancelButton) {
+            if (patchWorker != null) {
+                patchWorker.cancelPatch();
+                cancelButton.setEnabled(false);
             }
         }
     }
 
+    /**
+     * Enable the buttons matching the running state
+     */
+    private void setRunning(boolean running) {
+        openButton.setEnabled(!running);
+        planButton.setEnabled(!running);
+        patchButton.setEnabled(false);
+        cancelButton.setEnabled(running && patchWorker != null);
+    }
+
+    /**
+     * Report the end of a background patch, on the event dispatch thread
+     */
+    private void patchFinished(PatchWorker worker) {
+        patchWorker = null;
+        setRunning(false);
+        boolean patched;
+        try {
+            patched = worker.get().isSuccessful();
+        } catch (Exception ex) {
+            FriendlizerUtilities.Log(logger, "Patching error: " + ex.getMessage());
+            patched = false;
+        }
+
+        if (patched) {
+            FriendlizerUtilities.Log(logger, "All modules are patched successful!");
+        } else if (worker.isPatchCancelled()) {
+            FriendlizerUtilities.Log(logger, "Patching cancelled, remaining jars are untouched");
+            patchButton.setEnabled(true);
+        } else {
+            FriendlizerUtilities.Log(logger, "Patching fail, please re-select netbeans IDE");
+        }
+    }
+
     /**
      * Returns an ImageIcon, or null if the path was invalid.
      */
@@ -177,6 +305,12 @@ public class GuiFriendlizerApp extends JPanel implements ActionListener {
     }
 
     public static void main(String[] args) {
+        //Command line arguments or no display: run headless
+        if (args.length > 0 || GraphicsEnvironment.isHeadless()) {
+            CliFriendlizerApp.main(args);
+            return;
+        }
+
         //Schedule a job for the event dispatch thread:
         //creating and showing this application's GUI.
         SwingUtilities.invokeLater(new Runnable() {
@@ -0,0 +1,134 @@
+package com.viettel.vep.friendlizer;
+
+/**
+ * Measures taken while patching one jar. Filled by the worker patching the
+ * jar, read once the jar is done.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class JarMetrics {
+
+    private long openNanos;
+    private long manifestNanos;
+    private long copyNanos;
+    private long verifyNanos;
+    private long replaceNanos;
+    private long totalNanos;
+    private int entriesCopied;
+    private long bytesRead;
+    private long bytesWritten;
+    private long bytesVerified;
+
+    public JarMetrics() {
+    }
+
+    /**
+     * @return time to open the jar and read its central directory
+     */
+    public long getOpenNanos() {
+        return openNanos;
+    }
+
+    void addOpenNanos(long nanos) {
+        openNanos += nanos;
+    }
+
+    /**
+     * @return time to parse the manifest and update its friend list
+     */
+    public long getManifestNanos() {
+        return manifestNanos;
+    }
+
+    void addManifestNanos(long nanos) {
+        manifestNanos += nanos;
+    }
+
+    /**
+     * @return time to write the new jar, or to append to it in place
+     */
+    public long getCopyNanos() {
+        return copyNanos;
+    }
+
+    void addCopyNanos(long nanos) {
+        copyNanos += nanos;
+    }
+
+    /**
+     * @return time to verify the new jar against the original one
+     */
+    public long getVerifyNanos() {
+        return verifyNanos;
+    }
+
+    void addVerifyNanos(long nanos) {
+        verifyNanos += nanos;
+    }
+
+    /**
+     * @return time to replace the original jar with the new one
+     */
+    public long getReplaceNanos() {
+        return replaceNanos;
+    }
+
+    void addReplaceNanos(long nanos) {
+        replaceNanos += nanos;
+    }
+
+    /**
+     * @return time spent on the jar from start to end
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    void setTotalNanos(long totalNanos) {
+        this.totalNanos = totalNanos;
+    }
+
+    /**
+     * @return number of entries copied to the new jar, without the manifest
+     */
+    public int getEntriesCopied() {
+        return entriesCopied;
+    }
+
+    void addEntriesCopied(int entries) {
+        entriesCopied += entries;
+    }
+
+    /**
+     * @return bytes read from the original jar by the copy or append
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    void addBytesRead(long bytes) {
+        bytesRead += bytes;
+    }
+
+    /**
+     * @return bytes written to the new jar, or appended in place
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    void addBytesWritten(long bytes) {
+        bytesWritten += bytes;
+    }
+
+    /**
+     * @return bytes read from both jars to verify the new one
+     */
+    public long getBytesVerified() {
+        return bytesVerified;
+    }
+
+    void addBytesVerified(long bytes) {
+        bytesVerified += bytes;
+    }
+}
@@ -0,0 +1,64 @@
+package com.viettel.vep.friendlizer;
+
+/**
+ * Result of patching one dependency jar
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class JarPatchResult {
+
+    /**
+     * Patching outcome
+     */
+    public enum Status {
+
+        /** Friend list updated */
+        PATCHED,
+        /** Friend list already contains the module key, or no friend list */
+        UNCHANGED,
+        /** Already patched according to the installation index, not opened */
+        SKIPPED,
+        /** Jar without manifest */
+        IGNORED,
+        /** Dependency is not a file in the NetBeans folder */
+        MISSING,
+        /** Patching error, the jar is left untouched */
+        FAILED,
+        /** Run cancelled before the jar was started, the jar is untouched */
+        CANCELLED
+    }
+    private final String dependency;
+    private final Status status;
+    private final JarMetrics metrics;
+
+    public JarPatchResult(String dependency, Status status) {
+        this(dependency, status, new JarMetrics());
+    }
+
+    public JarPatchResult(String dependency, Status status, JarMetrics metrics) {
+        this.dependency = dependency;
+        this.status = status;
+        this.metrics = metrics;
+    }
+
+    public String getDependency() {
+        return dependency;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public JarMetrics getMetrics() {
+        return metrics;
+    }
+
+    public boolean isFailed() {
+        return status == Status.FAILED;
+    }
+
+    @Override
+    public String toString() {
+        return dependency + ": " + status;
+    }
+}
@@ -0,0 +1,60 @@
+package com.viettel.vep.friendlizer;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Dry run result of one dependency jar: what patching it would do
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class JarPlanResult {
+
+    private final String dependency;
+    private final JarPatchResult.Status status;
+    private final Set<String> missingKeys;
+    private final long bytesToWrite;
+
+    public JarPlanResult(String dependency, JarPatchResult.Status status) {
+        this(dependency, status, Collections.<String>emptySet(), 0);
+    }
+
+    public JarPlanResult(String dependency, JarPatchResult.Status status, Set<String> missingKeys,
+            long bytesToWrite) {
+        this.dependency = dependency;
+        this.status = status;
+        this.missingKeys = Collections.unmodifiableSet(missingKeys);
+        this.bytesToWrite = bytesToWrite;
+    }
+
+    public String getDependency() {
+        return dependency;
+    }
+
+    /**
+     * @return PATCHED if the jar would be patched
+     */
+    public JarPatchResult.Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return module keys which would be added to the friend list
+     */
+    public Set<String> getMissingKeys() {
+        return missingKeys;
+    }
+
+    /**
+     * @return estimated number of bytes patching would write
+     */
+    public long getBytesToWrite() {
+        return bytesToWrite;
+    }
+
+    @Override
+    public String toString() {
+        return dependency + ": " + status
+                + (missingKeys.isEmpty() ? "" : " " + missingKeys + ", " + bytesToWrite + " bytes");
+    }
+}
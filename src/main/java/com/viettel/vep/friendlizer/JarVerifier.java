@@ -0,0 +1,266 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Check a patched jar against its original before it replaces it. Only the
+ * central directories and local headers are read: every entry but the
+ * manifest must have the same name, size and CRC-32 in both jars, so
+ * unchanged entries are never inflated. The new manifest is inflated, checked
+ * against its CRC-32 and parsed, and its friend list must hold the module
+ * keys.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class JarVerifier {
+
+    private static final int DATA_DESCRIPTOR_FLAG = 0x08;
+
+    private JarVerifier() {
+    }
+
+    /**
+     * Verify a patched jar
+     *
+     * @param original original jar
+     * @param patched patched copy of the jar
+     * @param moduleKeys module keys the new friend list must hold
+     * @return bytes read to verify the jar, 0 for jars verified through
+     * ZipFile
+     * @throws IOException reading error, ZipException describing the first
+     * difference found
+     */
+    public static long verify(File original, File patched, Collection<String> moduleKeys) throws IOException {
+        ZipDirectory originalDirectory;
+        FileChannel channel = FileChannel.open(original.toPath(), StandardOpenOption.READ);
+        try {
+            originalDirectory = ZipDirectory.read(channel);
+        } catch (ZipException e) {
+            // ZIP64 and other jars the raw copy does not support were recompressed
+            return verifyEntries(original, patched, moduleKeys);
+        } finally {
+            channel.close();
+        }
+
+        channel = FileChannel.open(patched.toPath(), StandardOpenOption.READ);
+        try {
+            return verify(originalDirectory, channel, moduleKeys);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Verify a patched jar against the central directory of its original, a
+     * jar patched in place for instance
+     *
+     * @param originalDirectory central directory of the original jar
+     * @param channel patched jar
+     * @param moduleKeys module keys the new friend list must hold
+     * @return bytes read to verify the jar
+     * @throws IOException reading error, ZipException describing the first
+     * difference found
+     */
+    static long verify(ZipDirectory originalDirectory, FileChannel channel, Collection<String> moduleKeys)
+            throws IOException {
+        Map<String, ZipDirectory.Entry> originals = new HashMap<String, ZipDirectory.Entry>(
+                originalDirectory.getEntries().size() * 2);
+        for (ZipDirectory.Entry entry : originalDirectory.getEntries()) {
+            originals.put(entry.getName(), entry);
+        }
+
+        ZipDirectory directory = ZipDirectory.read(channel);
+        long bytesRead = originalDirectory.getBytesRead() + directory.getBytesRead();
+        boolean manifestFound = false;
+        for (ZipDirectory.Entry entry : directory.getEntries()) {
+            ZipDirectory.Entry originalEntry = originals.remove(entry.getName());
+            long dataOffset = checkLocalHeader(channel, directory, entry);
+            bytesRead += ZipDirectory.LOCAL_HEADER_SIZE;
+            if (entry.getName().equalsIgnoreCase(RawJarWriter.META_INF_MANIFEST_ENTRY)) {
+                checkManifest(readData(channel, entry, dataOffset), moduleKeys);
+                bytesRead += entry.getCompressedSize();
+                manifestFound = true;
+            } else if (originalEntry == null) {
+                if (entry.getName().endsWith("/") && entry.getSize() == 0) {
+                    continue;
+                }
+                throw new ZipException("Entry not in the original jar: " + entry.getName());
+            } else if (originalEntry.getCrc() != entry.getCrc() || originalEntry.getSize() != entry.getSize()) {
+                throw new ZipException("Entry differs from the original jar: " + entry.getName());
+            }
+        }
+
+        if (!manifestFound) {
+            throw new ZipException("No manifest entry");
+        }
+        for (String name : originals.keySet()) {
+            if (!name.equalsIgnoreCase(RawJarWriter.META_INF_MANIFEST_ENTRY)) {
+                throw new ZipException("Entry missing from the patched jar: " + name);
+            }
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Verify a patched jar through ZipFile, for jars ZipDirectory can not
+     * read. Entries are compared the same way, without inflating them.
+     */
+    private static long verifyEntries(File original, File patched, Collection<String> moduleKeys)
+            throws IOException {
+        Map<String, ZipEntry> originals = new HashMap<String, ZipEntry>();
+        ZipFile zip = new ZipFile(original);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                originals.put(entry.getName(), entry);
+            }
+        } finally {
+            zip.close();
+        }
+
+        zip = new ZipFile(patched);
+        try {
+            boolean manifestFound = false;
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                ZipEntry originalEntry = originals.remove(entry.getName());
+                if (entry.getName().equalsIgnoreCase(RawJarWriter.META_INF_MANIFEST_ENTRY)) {
+                    ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+                    InputStream stream = zip.getInputStream(entry);
+                    try {
+                        byte[] buffer = new byte[8192];
+                        int read;
+                        while ((read = stream.read(buffer)) != -1) {
+                            manifest.write(buffer, 0, read);
+                        }
+                    } finally {
+                        stream.close();
+                    }
+                    checkManifest(manifest.toByteArray(), moduleKeys);
+                    manifestFound = true;
+                } else if (originalEntry == null) {
+                    if (!entry.isDirectory() || entry.getSize() != 0) {
+                        throw new ZipException("Entry not in the original jar: " + entry.getName());
+                    }
+                } else if (originalEntry.getCrc() != entry.getCrc() || originalEntry.getSize() != entry.getSize()) {
+                    throw new ZipException("Entry differs from the original jar: " + entry.getName());
+                }
+            }
+            if (!manifestFound) {
+                throw new ZipException("No manifest entry");
+            }
+            for (String name : originals.keySet()) {
+                if (!name.equalsIgnoreCase(RawJarWriter.META_INF_MANIFEST_ENTRY)) {
+                    throw new ZipException("Entry missing from the patched jar: " + name);
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        return 0;
+    }
+
+    /**
+     * Check the local header of an entry matches its central directory record
+     * and its data ends before the central directory
+     *
+     * @return offset of the entry data
+     */
+    private static long checkLocalHeader(FileChannel channel, ZipDirectory directory, ZipDirectory.Entry entry)
+            throws IOException {
+        if (entry.getLocalOffset() + ZipDirectory.LOCAL_HEADER_SIZE > directory.getCentralOffset()) {
+            throw new ZipException("Local header out of the jar: " + entry.getName());
+        }
+        ByteBuffer header = ZipDirectory.readFully(channel, entry.getLocalOffset(), ZipDirectory.LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != ZipDirectory.LOCAL_SIGNATURE) {
+            throw new ZipException("Invalid local header: " + entry.getName());
+        }
+        int flags = header.getShort(6) & 0xFFFF;
+        if ((flags & DATA_DESCRIPTOR_FLAG) == 0
+                && ((header.getInt(14) & 0xFFFFFFFFL) != entry.getCrc()
+                || (header.getInt(18) & 0xFFFFFFFFL) != entry.getCompressedSize()
+                || (header.getInt(22) & 0xFFFFFFFFL) != entry.getSize())) {
+            throw new ZipException("Local header differs from the central directory: " + entry.getName());
+        }
+        long dataOffset = entry.getLocalOffset() + ZipDirectory.LOCAL_HEADER_SIZE
+                + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+        if (dataOffset + entry.getCompressedSize() > directory.getCentralOffset()) {
+            throw new ZipException("Entry data out of the jar: " + entry.getName());
+        }
+        return dataOffset;
+    }
+
+    /**
+     * Uncompressed content of an entry, checked against its size and CRC-32
+     */
+    private static byte[] readData(FileChannel channel, ZipDirectory.Entry entry, long dataOffset)
+            throws IOException {
+        ByteBuffer data = ZipDirectory.readFully(channel, dataOffset, (int) entry.getCompressedSize());
+        byte[] content = new byte[(int) entry.getSize()];
+        if (entry.getMethod() == 0) {
+            data.get(content);
+        } else if (entry.getMethod() == 8) {
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(data.array(), 0, data.limit());
+                int length = 0;
+                while (length < content.length && !inflater.finished()) {
+                    int inflated = inflater.inflate(content, length, content.length - length);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += inflated;
+                }
+                if (length != content.length) {
+                    throw new ZipException("Truncated entry: " + entry.getName());
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException("Corrupted entry " + entry.getName() + ": " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+        } else {
+            throw new ZipException("Unsupported compression method " + entry.getMethod() + ": " + entry.getName());
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        if (crc.getValue() != entry.getCrc()) {
+            throw new ZipException("CRC-32 mismatch: " + entry.getName());
+        }
+        return content;
+    }
+
+    /**
+     * Check the manifest parses and its friend list holds the module keys
+     */
+    private static void checkManifest(byte[] manifest, Collection<String> moduleKeys) throws IOException {
+        new Manifest(new ByteArrayInputStream(manifest));
+        ManifestEditor editor = new ManifestEditor(manifest);
+        Set<String> missing = editor.getMissingFriends(moduleKeys);
+        if (!editor.hasFriendList() || !missing.isEmpty()) {
+            throw new ZipException("Friend list of the new manifest misses " + missing);
+        }
+    }
+}
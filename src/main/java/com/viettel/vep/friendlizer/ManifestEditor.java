@@ -0,0 +1,189 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Edit the OpenIDE-Module-Friends attribute of a manifest directly in its
+ * bytes. The manifest is scanned once, the friend list is parsed into exact
+ * module names and new names are spliced in; every other byte, attribute
+ * order and line wrapping is kept as it is.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class ManifestEditor {
+
+    private static final String NETBEANS_MODULE_FRIEND_KEY = "OpenIDE-Module-Friends";
+    private static final int MAX_LINE_BYTES = 72;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private final byte[] manifest;
+    private int headerStart = -1;
+    private int headerEnd = -1;
+    private int valueStart;
+    private byte[] newline = CRLF;
+    private String friendList;
+    private final Set<String> friends = new LinkedHashSet<String>();
+
+    /**
+     * Scan a manifest for its main section friend list
+     *
+     * @param manifest manifest bytes, not modified
+     */
+    public ManifestEditor(byte[] manifest) {
+        this.manifest = manifest;
+        scan();
+    }
+
+    private void scan() {
+        int position = 0;
+        while (position < manifest.length) {
+            int lineEnd = lineEnd(position);
+            if (lineEnd == position) {
+                // Blank line: end of the main section
+                return;
+            }
+            int next = nextLine(lineEnd);
+            if (headerStart < 0 && isFriendHeader(position, lineEnd)) {
+                headerStart = position;
+                valueStart = position + NETBEANS_MODULE_FRIEND_KEY.length() + 2;
+                newline = lineEnd < next ? copy(lineEnd, next) : CRLF;
+
+                ByteArrayOutputStream value = new ByteArrayOutputStream();
+                value.write(manifest, valueStart, Math.max(lineEnd - valueStart, 0));
+                while (next < manifest.length && manifest[next] == ' ') {
+                    lineEnd = lineEnd(next);
+                    value.write(manifest, next + 1, lineEnd - next - 1);
+                    next = nextLine(lineEnd);
+                }
+                headerEnd = next;
+                friendList = new String(value.toByteArray(), ZipDirectory.UTF8);
+                for (String friend : friendList.split(",")) {
+                    if (!friend.trim().isEmpty()) {
+                        friends.add(friend.trim());
+                    }
+                }
+            }
+            position = next;
+        }
+    }
+
+    private boolean isFriendHeader(int start, int lineEnd) {
+        int colon = start + NETBEANS_MODULE_FRIEND_KEY.length();
+        if (colon + 1 >= lineEnd || manifest[colon] != ':' || manifest[colon + 1] != ' ') {
+            return false;
+        }
+        for (int i = 0; i < NETBEANS_MODULE_FRIEND_KEY.length(); i++) {
+            if (Character.toLowerCase((char) manifest[start + i])
+                    != Character.toLowerCase(NETBEANS_MODULE_FRIEND_KEY.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int lineEnd(int position) {
+        int end = position;
+        while (end < manifest.length && manifest[end] != '\r' && manifest[end] != '\n') {
+            end++;
+        }
+        return end;
+    }
+
+    private int nextLine(int lineEnd) {
+        if (lineEnd < manifest.length && manifest[lineEnd] == '\r') {
+            lineEnd++;
+        }
+        if (lineEnd < manifest.length && manifest[lineEnd] == '\n') {
+            lineEnd++;
+        }
+        return lineEnd;
+    }
+
+    private byte[] copy(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        System.arraycopy(manifest, from, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * @return true if the main section has an OpenIDE-Module-Friends attribute
+     */
+    public boolean hasFriendList() {
+        return headerStart >= 0;
+    }
+
+    /**
+     * @return module names of the friend list, empty without friend list
+     */
+    public Set<String> getFriends() {
+        return Collections.unmodifiableSet(friends);
+    }
+
+    /**
+     * Module keys not yet in the friend list. Nothing is missing from a
+     * manifest without friend list: its module API is public.
+     *
+     * @param moduleKeys wanted module keys
+     * @return keys to add, in the given order
+     */
+    public Set<String> getMissingFriends(Collection<String> moduleKeys) {
+        Set<String> missing = new LinkedHashSet<String>();
+        if (hasFriendList()) {
+            for (String moduleKey : moduleKeys) {
+                if (!friends.contains(moduleKey.trim())) {
+                    missing.add(moduleKey.trim());
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Add module keys to the friend list
+     *
+     * @param moduleKeys module keys to add
+     * @return new manifest bytes, or null if nothing has to be added
+     */
+    public byte[] addFriends(Collection<String> moduleKeys) {
+        Set<String> missing = getMissingFriends(moduleKeys);
+        if (missing.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder value = new StringBuilder(friendList.trim());
+        for (String moduleKey : missing) {
+            if (value.length() == 0) {
+                value.append(moduleKey);
+            } else if (value.charAt(value.length() - 1) == ',') {
+                value.append(' ').append(moduleKey);
+            } else {
+                value.append(", ").append(moduleKey);
+            }
+        }
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(valueStart - headerStart + value.length() * 2);
+        header.write(manifest, headerStart, valueStart - headerStart);
+        byte[] bytes = value.toString().getBytes(ZipDirectory.UTF8);
+        int lineLength = valueStart - headerStart;
+        for (int i = 0; i < bytes.length; i++) {
+            // Wrap at 72 bytes, never inside a UTF-8 sequence
+            if (lineLength >= MAX_LINE_BYTES && (bytes[i] & 0xC0) != 0x80) {
+                header.write(newline, 0, newline.length);
+                header.write(' ');
+                lineLength = 1;
+            }
+            header.write(bytes[i]);
+            lineLength++;
+        }
+        header.write(newline, 0, newline.length);
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream(manifest.length + header.size());
+        result.write(manifest, 0, headerStart);
+        result.write(header.toByteArray(), 0, header.size());
+        result.write(manifest, headerEnd, manifest.length - headerEnd);
+        return result.toByteArray();
+    }
+}
@@ -0,0 +1,148 @@
+package com.viettel.vep.friendlizer;
+
+import com.viettel.vep.friendlizer.ZipDirectory.Entry;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Read only the manifest of a jar: the tail of the file and its central
+ * directory are read into heap buffers, then only the manifest entry is read
+ * and inflated. Nothing is memory mapped: a mapping is only released by the
+ * garbage collector and keeps the jar locked on Windows meanwhile.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class ManifestScanner {
+
+    /**
+     * Read manifest bytes of a jar
+     *
+     * @param jar jar file
+     * @return scanned jar, its manifest is null if the jar has no manifest
+     * @throws IOException reading error or unsupported zip format
+     */
+    public static Result scan(File jar) throws IOException {
+        FileInputStream fis = new FileInputStream(jar);
+        try {
+            FileChannel channel = fis.getChannel();
+            ZipDirectory directory = ZipDirectory.read(channel);
+            Entry entry = directory.find(RawJarWriter.META_INF_MANIFEST_ENTRY);
+            if (entry == null) {
+                return new Result(directory, null, null);
+            }
+            ByteBuffer compressed = ZipDirectory.readFully(channel, directory.getDataOffset(channel, entry),
+                    (int) entry.getCompressedSize());
+            return new Result(directory, entry, decode(compressed.array(), entry));
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Uncompressed content of an entry
+     *
+     * @param zip whole zip content
+     * @param directory central directory
+     * @param entry entry to read
+     * @return entry content
+     * @throws IOException unsupported compression or corrupted data
+     */
+    static byte[] read(ByteBuffer zip, ZipDirectory directory, Entry entry) throws IOException {
+        byte[] compressed = new byte[(int) entry.getCompressedSize()];
+        ByteBuffer data = zip.duplicate();
+        data.position((int) directory.getDataOffset(zip, entry));
+        data.get(compressed);
+        return decode(compressed, entry);
+    }
+
+    /**
+     * Uncompressed content of an entry from its compressed data
+     */
+    private static byte[] decode(byte[] compressed, Entry entry) throws IOException {
+        // Deflate compresses at most about 1:1032, a larger size is corrupted
+        if (entry.getSize() > Integer.MAX_VALUE || entry.getSize() > compressed.length * 1032L + 1024) {
+            throw new ZipException("Invalid entry size: " + entry.getName());
+        }
+        if (entry.getMethod() == ZipEntry.STORED) {
+            return compressed;
+        }
+        if (entry.getMethod() != ZipEntry.DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.getMethod() + ": " + entry.getName());
+        }
+        return inflate(compressed, (int) entry.getSize(), entry.getName());
+    }
+
+    /**
+     * Inflate raw deflate data of an entry
+     *
+     * @param compressed compressed data
+     * @param size uncompressed size
+     * @param name entry name, for errors
+     * @return entry content
+     * @throws ZipException corrupted data
+     */
+    static byte[] inflate(byte[] compressed, int size, String name) throws ZipException {
+        byte[] content = new byte[size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            int length = 0;
+            boolean padded = false;
+            while (length < content.length && !inflater.finished()) {
+                int inflated = inflater.inflate(content, length, content.length - length);
+                if (inflated == 0 && inflater.needsInput()) {
+                    if (padded) {
+                        break;
+                    }
+                    // Raw inflater may need one extra byte to finish
+                    inflater.setInput(new byte[1]);
+                    padded = true;
+                }
+                length += inflated;
+            }
+            if (length != content.length) {
+                throw new ZipException("Invalid entry size: " + name);
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid entry data " + name + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return content;
+    }
+
+    /**
+     * Scanned manifest with its jar central directory
+     */
+    public static class Result {
+
+        private final ZipDirectory directory;
+        private final Entry entry;
+        private final byte[] manifest;
+
+        Result(ZipDirectory directory, Entry entry, byte[] manifest) {
+            this.directory = directory;
+            this.entry = entry;
+            this.manifest = manifest;
+        }
+
+        public ZipDirectory getDirectory() {
+            return directory;
+        }
+
+        public Entry getEntry() {
+            return entry;
+        }
+
+        public byte[] getManifest() {
+            return manifest;
+        }
+    }
+}
@@ -4,60 +4,276 @@
  */
 package com.viettel.vep.friendlizer;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
 
 /**
- * Module configuration
+ * Module configuration: the bundled Configuration.properties merged with
+ * external properties files or folders of properties files. Modules with the
+ * same key are merged into one. The merged result is kept as a binary
+ * snapshot in ~/.vep-friendlizer, read back in one go while no source file
+ * changes.
  *
  * @author quanghx2@viettel.com.vn
  */
 public class ModuleConfiguration {
 
+    /**
+     * System property listing external configuration files or folders,
+     * separated by the path separator
+     */
+    public static final String CONFIGURATION_SOURCES_PROPERTY = "vep.friendlizer.config";
     private static final String CONFIGURATION_PROPERTIES_FILE = "/Configuration.properties";
+    private static final Pattern CODE_NAME = Pattern.compile("[A-Za-z_$][\\w$]*(\\.[A-Za-z_$][\\w$]*)*");
+    private static final Set<String> MODULE_FIELDS = new LinkedHashSet<String>(
+            Arrays.asList("key", "description", "dependencies", "transitive"));
+    private static final int SNAPSHOT_MAGIC = 0x56455043;
+    private static final int SNAPSHOT_VERSION = 1;
     private List<Module> modules;
+    private PatchOptions patchOptions;
+    private Properties options;
+    private List<File> sources = new ArrayList<File>();
+    private List<String> stamps = new ArrayList<String>();
 
+    /**
+     * Load the bundled configuration and the sources of the
+     * vep.friendlizer.config system property
+     *
+     * @throws IOException configuration can not be read or is invalid
+     */
     public ModuleConfiguration() throws IOException {
-        Properties properties = loadProperties();
-        modules = parseConfiguration(properties);
+        this(getConfiguredSources());
+    }
+
+    /**
+     * Load the bundled configuration merged with external sources
+     *
+     * @param sources properties files, or folders whose properties files are
+     * read in name order; later sources override patch options
+     * @throws IOException configuration can not be read or is invalid
+     */
+    public ModuleConfiguration(List<File> sources) throws IOException {
+        this.sources = new ArrayList<File>(sources);
+        List<File> files = listFiles(sources);
+        if (files.isEmpty()) {
+            load(Arrays.asList(loadProperties()), Arrays.asList(CONFIGURATION_PROPERTIES_FILE));
+            return;
+        }
+
+        stamps = getStamps(sources, files);
+        File snapshot = getSnapshotFile(files);
+        if (readSnapshot(snapshot, stamps)) {
+            return;
+        }
+
+        List<Properties> properties = new ArrayList<Properties>();
+        List<String> names = new ArrayList<String>();
+        properties.add(loadProperties());
+        names.add(CONFIGURATION_PROPERTIES_FILE);
+        for (File file : files) {
+            properties.add(loadProperties(file));
+            names.add(file.getPath());
+        }
+        load(properties, names);
+        writeSnapshot(snapshot, stamps);
     }
 
     public Module[] getModules() {
         return modules.toArray(new Module[modules.size()]);
     }
 
+    public PatchOptions getPatchOptions() {
+        return patchOptions;
+    }
+
+    /**
+     * @return true if an external source changed since this configuration
+     * was loaded, it has to be loaded again
+     */
+    public boolean isModified() {
+        if (sources.isEmpty()) {
+            return false;
+        }
+        try {
+            return !stamps.equals(getStamps(sources, listFiles(sources)));
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private static List<File> getConfiguredSources() {
+        List<File> sources = new ArrayList<File>();
+        String property = System.getProperty(CONFIGURATION_SOURCES_PROPERTY, "").trim();
+        if (!property.isEmpty()) {
+            for (String source : property.split(Pattern.quote(File.pathSeparator))) {
+                if (!source.trim().isEmpty()) {
+                    sources.add(new File(source.trim()));
+                }
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Properties files of the sources, folders are expanded in name order
+     */
+    private static List<File> listFiles(List<File> sources) throws IOException {
+        List<File> files = new ArrayList<File>();
+        for (File source : sources) {
+            File[] children = null;
+            if (source.isDirectory()) {
+                // Null for an unreadable folder
+                children = source.listFiles(new FileFilter() {
+                    @Override
+                    public boolean accept(File file) {
+                        return file.isFile() && file.getName().endsWith(".properties");
+                    }
+                });
+            }
+            if (children != null) {
+                Arrays.sort(children);
+                files.addAll(Arrays.asList(children));
+            } else if (source.isFile()) {
+                files.add(source);
+            } else {
+                throw new IOException("No configuration file: " + source);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Parse, validate and merge configuration properties
+     *
+     * @param sources properties in loading order
+     * @param names source names, for error messages
+     * @throws IOException invalid configuration, with all errors found
+     */
+    private void load(List<Properties> sources, List<String> names) throws IOException {
+        options = new Properties();
+        Map<String, Module> merged = new LinkedHashMap<String, Module>();
+        List<String> errors = new ArrayList<String>();
+        for (int i = 0; i < sources.size(); i++) {
+            parseConfiguration(sources.get(i), names.get(i), options, merged, errors);
+        }
+        if (!errors.isEmpty()) {
+            StringBuilder message = new StringBuilder();
+            message.append(errors.size()).append(" configuration errors");
+            for (String error : errors) {
+                message.append("\n  ").append(error);
+            }
+            throw new IOException(message.toString());
+        }
+
+        modules = new ArrayList<Module>(merged.values());
+        try {
+            patchOptions = PatchOptions.fromProperties(options);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid patch options: " + e.getMessage());
+        }
+    }
+
     /**
-     * Parsing properties in to Module configuration object
+     * Parsing properties in to Module configuration object, in one pass over
+     * the property names
      *
      * @param properties properties to parse
-     * @return list of Module configuration
+     * @param source source name, for error messages
+     * @param options receive patch options
+     * @param merged receive modules by key, merged with the ones already read
+     * @param errors receive invalid properties
      */
-    private List<Module> parseConfiguration(Properties properties) {
-        List<String> moduleKeys = new ArrayList<String>();
-
-        for (Object objectKey : properties.keySet()) {
-            if (objectKey instanceof String) {
-                String key = (String) objectKey;
-                if (key.startsWith("module.") && key.endsWith(".key")) {
-                    moduleKeys.add(key.substring(0, key.lastIndexOf(".")));
+    private void parseConfiguration(Properties properties, String source, Properties options,
+            Map<String, Module> merged, List<String> errors) {
+        Map<String, Map<String, String>> moduleProperties = new TreeMap<String, Map<String, String>>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith("patch.")) {
+                options.setProperty(name, properties.getProperty(name));
+            } else if (name.startsWith("module.")) {
+                int dot = name.lastIndexOf('.');
+                String id = dot > "module.".length() ? name.substring("module.".length(), dot) : "";
+                String field = name.substring(dot + 1);
+                if (id.isEmpty() || !MODULE_FIELDS.contains(field)) {
+                    errors.add(source + ": unknown property " + name);
+                    continue;
+                }
+                Map<String, String> fields = moduleProperties.get(id);
+                if (fields == null) {
+                    fields = new LinkedHashMap<String, String>();
+                    moduleProperties.put(id, fields);
                 }
+                fields.put(field, properties.getProperty(name).trim());
             }
         }
 
-        List<Module> parsingModules = new ArrayList<Module>(moduleKeys.size());
-        for (String key : moduleKeys) {
-            Module module = new Module();
-            module.setKey(properties.getProperty(key + ".key"));
-            module.setDescription(properties.getProperty(key + ".description"));
-            module.setDependences(properties.getProperty(key + ".dependencies").split(" "));
+        for (Map.Entry<String, Map<String, String>> entry : moduleProperties.entrySet()) {
+            String id = "module." + entry.getKey();
+            Map<String, String> fields = entry.getValue();
+            String key = fields.get("key");
+            if (key == null || !CODE_NAME.matcher(key).matches()) {
+                errors.add(source + ": " + id + ".key is not a module code name: " + key);
+                continue;
+            }
+            String dependencies = fields.get("dependencies");
+            if (dependencies == null || dependencies.isEmpty()) {
+                errors.add(source + ": " + id + ".dependencies is empty");
+                continue;
+            }
+
+            Module module = merged.get(key);
+            Set<String> jars = new LinkedHashSet<String>();
+            if (module == null) {
+                module = new Module();
+                module.setKey(key);
+                merged.put(key, module);
+            } else {
+                jars.addAll(Arrays.asList(module.getDependences()));
+            }
+            for (String dependency : dependencies.split("\\s+")) {
+                if (isDependency(dependency)) {
+                    jars.add(dependency);
+                } else {
+                    errors.add(source + ": " + id + ".dependencies has an invalid jar or code name: " + dependency);
+                }
+            }
+
+            if (module.getDescription() == null) {
+                module.setDescription(fields.get("description"));
+            }
+            module.setDependences(jars.toArray(new String[jars.size()]));
+            module.setTransitive(module.isTransitive() || Boolean.parseBoolean(fields.get("transitive")));
+        }
+    }
 
-            parsingModules.add(module);
+    /**
+     * @return true for a jar path relative to the NetBeans folder or a module
+     * code name
+     */
+    private static boolean isDependency(String dependency) {
+        if (dependency.endsWith(".jar")) {
+            return !dependency.startsWith("/") && !dependency.contains("..") && !dependency.contains("\\");
         }
-        return parsingModules;
+        return CODE_NAME.matcher(dependency).matches();
     }
 
     /**
@@ -87,6 +303,145 @@ public class ModuleConfiguration {
         }
     }
 
+    private static Properties loadProperties(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream stream = new FileInputStream(file);
+        try {
+            properties.load(stream);
+            return properties;
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Cannot load properties file " + file + ": " + e.getMessage());
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Identity of every source: a snapshot is valid while none changes.
+     * Folders are stamped too, for properties files added to them.
+     */
+    private List<String> getStamps(List<File> sources, List<File> files) throws IOException {
+        List<String> stamps = new ArrayList<String>();
+        URL bundled = getClass().getResource(CONFIGURATION_PROPERTIES_FILE);
+        stamps.add(bundled + " " + (bundled == null ? 0 : bundled.openConnection().getLastModified()));
+        for (File source : sources) {
+            if (source.isDirectory()) {
+                stamps.add(source.getAbsolutePath() + " " + source.lastModified());
+            }
+        }
+        for (File file : files) {
+            stamps.add(file.getAbsolutePath() + " " + file.length() + " " + file.lastModified());
+        }
+        return stamps;
+    }
+
+    private static File getSnapshotFile(List<File> files) {
+        StringBuilder paths = new StringBuilder();
+        for (File file : files) {
+            paths.append(file.getAbsolutePath()).append(File.pathSeparator);
+        }
+        return new File(System.getProperty("user.home"), PatchJournal.JOURNAL_FOLDER + "/config-"
+                + FileFingerprint.hash(paths.toString()).substring(0, 16) + ".snapshot");
+    }
+
+    /**
+     * Load modules and options from a snapshot, read in a single read
+     *
+     * @return false if there is no valid snapshot for these sources
+     */
+    private boolean readSnapshot(File snapshot, List<String> stamps) {
+        if (!snapshot.isFile()) {
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(snapshot.toPath())));
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                return false;
+            }
+            int count = in.readInt();
+            if (count != stamps.size()) {
+                return false;
+            }
+            for (String stamp : stamps) {
+                if (!stamp.equals(in.readUTF())) {
+                    return false;
+                }
+            }
+
+            Properties options = new Properties();
+            for (int i = in.readInt(); i > 0; i--) {
+                options.setProperty(in.readUTF(), in.readUTF());
+            }
+            List<Module> loaded = new ArrayList<Module>();
+            for (int i = in.readInt(); i > 0; i--) {
+                Module module = new Module();
+                module.setKey(in.readUTF());
+                module.setDescription(in.readBoolean() ? in.readUTF() : null);
+                module.setTransitive(in.readBoolean());
+                String[] dependencies = new String[in.readInt()];
+                for (int j = 0; j < dependencies.length; j++) {
+                    dependencies[j] = in.readUTF();
+                }
+                module.setDependences(dependencies);
+                loaded.add(module);
+            }
+            patchOptions = PatchOptions.fromProperties(options);
+            this.options = options;
+            modules = loaded;
+            return true;
+        } catch (IOException e) {
+            return false;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Save modules and options, a failure only costs parsing the sources on
+     * next start
+     */
+    private void writeSnapshot(File snapshot, List<String> stamps) {
+        File temporary = new File(snapshot.getPath() + ".tmp");
+        try {
+            snapshot.getParentFile().mkdirs();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temporary)));
+            try {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeInt(stamps.size());
+                for (String stamp : stamps) {
+                    out.writeUTF(stamp);
+                }
+
+                out.writeInt(options.size());
+                for (String name : options.stringPropertyNames()) {
+                    out.writeUTF(name);
+                    out.writeUTF(options.getProperty(name));
+                }
+                out.writeInt(modules.size());
+                for (Module module : modules) {
+                    out.writeUTF(module.getKey());
+                    out.writeBoolean(module.getDescription() != null);
+                    if (module.getDescription() != null) {
+                        out.writeUTF(module.getDescription());
+                    }
+                    out.writeBoolean(module.isTransitive());
+                    String[] dependencies = module.getDependences();
+                    out.writeInt(dependencies.length);
+                    for (String dependency : dependencies) {
+                        out.writeUTF(dependency);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            PatchJournal.move(temporary.toPath(), snapshot.toPath());
+        } catch (IOException e) {
+            temporary.delete();
+        }
+    }
+
     /**
      * Module properties
      */
@@ -95,6 +450,7 @@ public class ModuleConfiguration {
         private String key;
         private String description;
         private List<String> dependencies;
+        private boolean transitive;
 
         public Module() {
         }
@@ -119,6 +475,20 @@ public class ModuleConfiguration {
             this.dependencies = Arrays.asList(dependencies);
         }
 
+        /**
+         * Transitive module: the friend only modules its dependencies depend
+         * on also get its key, as found in the installation manifests
+         *
+         * @return true if dependencies are resolved transitively
+         */
+        public boolean isTransitive() {
+            return transitive;
+        }
+
+        public void setTransitive(boolean transitive) {
+            this.transitive = transitive;
+        }
+
         public String[] getDependences() {
             if (dependencies != null) {
                 return dependencies.toArray(new String[dependencies.size()]);
@@ -0,0 +1,243 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Module dependency graph of a NetBeans installation, built from the
+ * OpenIDE-Module-Module-Dependencies of the module index. Modules are
+ * numbered and edges are stored in two int arrays (compressed sparse rows):
+ * the dependencies of module i are targets[offsets[i]] to
+ * targets[offsets[i + 1] - 1]. The last graph of every installation is kept
+ * while its module index does not change, and updated when it does: every
+ * patched jar changes the index stamp, but rarely the installed modules or
+ * their dependencies.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class ModuleGraph {
+
+    private static final Map<File, ModuleGraph> GRAPHS = new HashMap<File, ModuleGraph>();
+    private final ModuleIndex.Entry[] modules;
+    private final Map<String, Integer> numbers;
+    private final int[] offsets;
+    private final int[] targets;
+    private final long stamp;
+
+    private ModuleGraph(ModuleIndex.Entry[] modules, Map<String, Integer> numbers, int[] offsets, int[] targets,
+            long stamp) {
+        this.stamp = stamp;
+        this.modules = modules;
+        this.numbers = numbers;
+        this.offsets = offsets;
+        this.targets = targets;
+    }
+
+    /**
+     * Dependency graph of an installation, only updated if its module index
+     * changed since the last call, built again if modules were added or
+     * removed
+     *
+     * @param netbeansFolder NetBeans installation folder
+     * @param index up to date module index of the installation
+     * @return module graph
+     */
+    public static ModuleGraph of(File netbeansFolder, ModuleIndex index) {
+        File key = netbeansFolder.getAbsoluteFile();
+        synchronized (GRAPHS) {
+            ModuleGraph graph = GRAPHS.get(key);
+            if (graph == null || graph.stamp != index.getStamp()) {
+                ModuleGraph updated = graph == null ? null : graph.update(index);
+                graph = updated == null ? build(index) : updated;
+                GRAPHS.put(key, graph);
+            }
+            return graph;
+        }
+    }
+
+    /**
+     * Build the graph of the modules of an index
+     *
+     * @param index module index
+     * @return module graph, dependencies on modules not in the index are
+     * dropped
+     */
+    public static ModuleGraph build(ModuleIndex index) {
+        ModuleIndex.Entry[] modules = index.getModules().toArray(new ModuleIndex.Entry[0]);
+        Map<String, Integer> numbers = new HashMap<String, Integer>(modules.length * 2);
+        for (int i = 0; i < modules.length; i++) {
+            numbers.put(modules[i].getCodeNameBase(), i);
+        }
+
+        int[] offsets = new int[modules.length + 1];
+        int[] targets = new int[modules.length * 4];
+        int edges = 0;
+        for (int i = 0; i < modules.length; i++) {
+            offsets[i] = edges;
+            for (String dependency : parseDependencies(modules[i].getModuleDependencies())) {
+                Integer target = numbers.get(dependency);
+                if (target != null) {
+                    if (edges == targets.length) {
+                        targets = Arrays.copyOf(targets, targets.length * 2);
+                    }
+                    targets[edges++] = target;
+                }
+            }
+        }
+        offsets[modules.length] = edges;
+        return new ModuleGraph(modules, numbers, offsets, Arrays.copyOf(targets, edges), index.getStamp());
+    }
+
+    /**
+     * Graph of a newer index with the same modules: the module numbers are
+     * kept, the rows of unchanged dependencies are copied and only the
+     * changed ones are parsed again
+     *
+     * @param index newer module index of the installation
+     * @return updated graph, null if modules were added or removed
+     */
+    private ModuleGraph update(ModuleIndex index) {
+        Collection<ModuleIndex.Entry> entries = index.getModules();
+        if (entries.size() != modules.length) {
+            return null;
+        }
+        ModuleIndex.Entry[] updated = new ModuleIndex.Entry[modules.length];
+        BitSet changed = new BitSet(modules.length);
+        for (ModuleIndex.Entry entry : entries) {
+            Integer number = numbers.get(entry.getCodeNameBase());
+            if (number == null || updated[number] != null) {
+                return null;
+            }
+            updated[number] = entry;
+            String dependencies = entry.getModuleDependencies();
+            if (dependencies == null ? modules[number].getModuleDependencies() != null
+                    : !dependencies.equals(modules[number].getModuleDependencies())) {
+                changed.set(number);
+            }
+        }
+        if (changed.isEmpty()) {
+            return new ModuleGraph(updated, numbers, offsets, targets, index.getStamp());
+        }
+
+        int[] updatedOffsets = new int[modules.length + 1];
+        int[] updatedTargets = new int[targets.length + changed.cardinality() * 4];
+        int edges = 0;
+        for (int i = 0; i < modules.length; i++) {
+            updatedOffsets[i] = edges;
+            if (!changed.get(i)) {
+                int count = offsets[i + 1] - offsets[i];
+                if (edges + count > updatedTargets.length) {
+                    updatedTargets = Arrays.copyOf(updatedTargets, Math.max(updatedTargets.length * 2, edges + count));
+                }
+                System.arraycopy(targets, offsets[i], updatedTargets, edges, count);
+                edges += count;
+                continue;
+            }
+            for (String dependency : parseDependencies(updated[i].getModuleDependencies())) {
+                Integer target = numbers.get(dependency);
+                if (target != null) {
+                    if (edges == updatedTargets.length) {
+                        updatedTargets = Arrays.copyOf(updatedTargets, updatedTargets.length * 2 + 1);
+                    }
+                    updatedTargets[edges++] = target;
+                }
+            }
+        }
+        updatedOffsets[modules.length] = edges;
+        return new ModuleGraph(updated, numbers, updatedOffsets, Arrays.copyOf(updatedTargets, edges),
+                index.getStamp());
+    }
+
+    /**
+     * Code name bases of an OpenIDE-Module-Module-Dependencies value, for
+     * example "org.openide.util > 8.0, org.netbeans.api.java/1 = 201301".
+     *
+     * @param dependencies attribute value, may be null
+     * @return code name bases, in declaration order
+     */
+    static List<String> parseDependencies(String dependencies) {
+        List<String> codeNames = new ArrayList<String>();
+        if (dependencies == null) {
+            return codeNames;
+        }
+        for (String dependency : dependencies.split(",")) {
+            String codeName = dependency.trim();
+            for (int i = 0; i < codeName.length(); i++) {
+                char c = codeName.charAt(i);
+                if (c == '/' || c == ' ' || c == '>' || c == '=') {
+                    codeName = codeName.substring(0, i);
+                    break;
+                }
+            }
+            if (!codeName.isEmpty()) {
+                codeNames.add(codeName);
+            }
+        }
+        return codeNames;
+    }
+
+    /**
+     * Modules reachable from the given ones that only open their API to
+     * their friends: the jars that need a module key in their friend list for
+     * a module depending on the given ones. Only the dependencies of the
+     * given modules and of friend only modules are followed: a public module
+     * in between is used through its own API, its dependencies do not need
+     * the module key.
+     *
+     * @param codeNameBases direct dependencies, by code name
+     * @return friend only modules among the given ones and their transitive
+     * dependencies, in discovery order
+     */
+    public List<ModuleIndex.Entry> getFriendOnlyClosure(Collection<String> codeNameBases) {
+        BitSet visited = new BitSet(modules.length);
+        int[] queue = new int[modules.length];
+        int head = 0;
+        int tail = 0;
+        for (String codeNameBase : codeNameBases) {
+            Integer number = numbers.get(codeNameBase);
+            if (number != null && !visited.get(number)) {
+                visited.set(number);
+                queue[tail++] = number;
+            }
+        }
+
+        int roots = tail;
+        List<ModuleIndex.Entry> friendOnly = new ArrayList<ModuleIndex.Entry>();
+        while (head < tail) {
+            boolean root = head < roots;
+            int module = queue[head++];
+            if (modules[module].isFriendOnly()) {
+                friendOnly.add(modules[module]);
+            } else if (!root) {
+                continue;
+            }
+            for (int edge = offsets[module]; edge < offsets[module + 1]; edge++) {
+                if (!visited.get(targets[edge])) {
+                    visited.set(targets[edge]);
+                    queue[tail++] = targets[edge];
+                }
+            }
+        }
+        return friendOnly;
+    }
+
+    /**
+     * @return number of modules
+     */
+    public int size() {
+        return modules.length;
+    }
+
+    /**
+     * @return number of dependencies between modules
+     */
+    public int getEdgeCount() {
+        return targets.length;
+    }
+}
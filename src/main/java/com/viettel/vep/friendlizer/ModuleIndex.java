@@ -0,0 +1,442 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+/**
+ * Module code name to jar index of a NetBeans installation. The module
+ * folders of every cluster are listed and only the manifest of each jar is
+ * read, on a pool of workers. The index is cached in the installation: folders
+ * and jars whose modification time did not change are not read again. The
+ * last index of every installation is also kept in memory while its cache
+ * file does not change, for long running processes.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class ModuleIndex {
+
+    static final String INDEX_FILE = "modules.index";
+    private static final String[] MODULE_FOLDERS = {"modules", "core", "lib"};
+    private static final String FOLDER_PREFIX = "folder.";
+    private static final String JAR_PREFIX = "jar.";
+    private static final String SEPARATOR = ";";
+    private static final Map<File, ModuleIndex> LOADED = new HashMap<File, ModuleIndex>();
+    private final File netbeansFolder;
+    private final Map<String, Long> folders = new TreeMap<String, Long>();
+    private final Map<String, Entry> jars = new TreeMap<String, Entry>();
+    private final Map<String, Entry> modules = new TreeMap<String, Entry>();
+    private int scanned;
+    private long stamp;
+    private long cacheModified;
+    private long cacheSize;
+
+    private ModuleIndex(File netbeansFolder) {
+        this.netbeansFolder = netbeansFolder;
+    }
+
+    /**
+     * Index the modules of an installation, reading only jars that are new or
+     * changed since the cached index
+     *
+     * @param netbeansFolder NetBeans installation folder
+     * @param parallelism maximum number of jars read at the same time
+     * @param listener receive progress messages
+     * @return module index
+     */
+    public static ModuleIndex load(File netbeansFolder, int parallelism, PatchListener listener) {
+        ModuleIndex cached = readCache(netbeansFolder);
+        ModuleIndex index = new ModuleIndex(netbeansFolder);
+
+        List<String> toScan = new ArrayList<String>();
+        for (String folder : listModuleFolders(netbeansFolder)) {
+            File directory = new File(netbeansFolder, folder);
+            long lastModified = directory.lastModified();
+            index.folders.put(folder, lastModified);
+
+            Long cachedModified = cached.folders.get(folder);
+            List<String> folderJars = new ArrayList<String>();
+            if (cachedModified != null && cachedModified == lastModified) {
+                for (String jar : cached.jars.keySet()) {
+                    if (jar.startsWith(folder + "/") && jar.indexOf('/', folder.length() + 1) < 0) {
+                        folderJars.add(jar);
+                    }
+                }
+            } else {
+                File[] files = directory.listFiles(new FileFilter() {
+                    @Override
+                    public boolean accept(File file) {
+                        return file.isFile() && file.getName().endsWith(".jar");
+                    }
+                });
+                for (File file : files == null ? new File[0] : files) {
+                    folderJars.add(folder + "/" + file.getName());
+                }
+            }
+
+            for (String jar : folderJars) {
+                Entry entry = cached.jars.get(jar);
+                File file = new File(netbeansFolder, jar);
+                if (entry != null && entry.size == file.length() && entry.lastModified == file.lastModified()) {
+                    index.jars.put(jar, entry);
+                } else {
+                    toScan.add(jar);
+                }
+            }
+        }
+
+        for (Entry entry : index.scan(toScan, parallelism, listener)) {
+            index.jars.put(entry.path, entry);
+        }
+        index.scanned = toScan.size();
+        for (Entry entry : index.jars.values()) {
+            index.stamp = index.stamp * 31 + entry.path.hashCode() * 31 + entry.size * 31 + entry.lastModified;
+            if (entry.codeNameBase != null && !index.modules.containsKey(entry.codeNameBase)) {
+                index.modules.put(entry.codeNameBase, entry);
+            }
+        }
+
+        boolean modified = !toScan.isEmpty() || !index.folders.equals(cached.folders)
+                || index.jars.size() != cached.jars.size();
+        if (modified) {
+            try {
+                index.save();
+            } catch (IOException e) {
+                listener.message("Saving module index error: " + e.getMessage());
+            }
+        }
+
+        File file = getFile(netbeansFolder);
+        index.cacheModified = file.lastModified();
+        index.cacheSize = file.length();
+        synchronized (LOADED) {
+            LOADED.put(netbeansFolder.getAbsoluteFile(), index);
+        }
+        return index;
+    }
+
+    /**
+     * Folders holding module jars: modules, core and lib of every cluster
+     */
+    private static List<String> listModuleFolders(File netbeansFolder) {
+        List<String> folders = new ArrayList<String>();
+        File[] clusters = netbeansFolder.listFiles();
+        if (clusters == null) {
+            return folders;
+        }
+        Arrays.sort(clusters);
+        for (File cluster : clusters) {
+            if (cluster.isDirectory() && !cluster.getName().startsWith(".")) {
+                for (String moduleFolder : MODULE_FOLDERS) {
+                    if (new File(cluster, moduleFolder).isDirectory()) {
+                        folders.add(cluster.getName() + "/" + moduleFolder);
+                    }
+                }
+            }
+        }
+        return folders;
+    }
+
+    private List<Entry> scan(List<String> toScan, int parallelism, final PatchListener listener) {
+        List<Entry> entries = new ArrayList<Entry>();
+        if (toScan.isEmpty()) {
+            return entries;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, toScan.size()));
+        try {
+            List<Future<Entry>> futures = new ArrayList<Future<Entry>>();
+            for (final String jar : toScan) {
+                futures.add(executor.submit(new Callable<Entry>() {
+                    @Override
+                    public Entry call() {
+                        return scan(jar, listener);
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    entries.add(futures.get(i).get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    listener.message("Scanning " + toScan.get(i) + " error: " + e.getCause());
+                    entries.add(nonModule(toScan.get(i)));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return entries;
+    }
+
+    /**
+     * Scan the manifest of a jar, a jar that can not be read is indexed as a
+     * plain library
+     */
+    private Entry scan(String jar, PatchListener listener) {
+        File file = new File(netbeansFolder, jar);
+        long size = file.length();
+        long lastModified = file.lastModified();
+        try {
+            byte[] manifest = ManifestScanner.scan(file).getManifest();
+            if (manifest != null) {
+                Attributes attributes = new Manifest(new ByteArrayInputStream(manifest)).getMainAttributes();
+                return new Entry(jar, size, lastModified, attributes.getValue("OpenIDE-Module"),
+                        attributes.getValue("OpenIDE-Module-Specification-Version"),
+                        attributes.getValue("OpenIDE-Module-Implementation-Version"),
+                        attributes.getValue("OpenIDE-Module-Module-Dependencies"),
+                        attributes.getValue("OpenIDE-Module-Friends") != null);
+            }
+        } catch (IOException e) {
+            listener.message("Scanning " + jar + " error: " + e.getMessage());
+        } catch (RuntimeException e) {
+            listener.message("Scanning " + jar + " error: " + e);
+        }
+        return new Entry(jar, size, lastModified, null, null, null, null, false);
+    }
+
+    private Entry nonModule(String jar) {
+        File file = new File(netbeansFolder, jar);
+        return new Entry(jar, file.length(), file.lastModified(), null, null, null, null, false);
+    }
+
+    private static ModuleIndex readCache(File netbeansFolder) {
+        ModuleIndex index = new ModuleIndex(netbeansFolder);
+        File file = getFile(netbeansFolder);
+        if (!file.isFile()) {
+            return index;
+        }
+        synchronized (LOADED) {
+            ModuleIndex loaded = LOADED.get(netbeansFolder.getAbsoluteFile());
+            if (loaded != null && loaded.cacheModified == file.lastModified() && loaded.cacheSize == file.length()) {
+                return loaded;
+            }
+        }
+
+        Properties properties = new Properties();
+        InputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            properties.load(stream);
+        } catch (IOException e) {
+            return index;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        for (String key : properties.stringPropertyNames()) {
+            String value = properties.getProperty(key);
+            try {
+                if (key.startsWith(FOLDER_PREFIX)) {
+                    index.folders.put(key.substring(FOLDER_PREFIX.length()), Long.parseLong(value));
+                } else if (key.startsWith(JAR_PREFIX)) {
+                    String[] values = value.split(SEPARATOR, -1);
+                    if (values.length == 7) {
+                        String path = key.substring(JAR_PREFIX.length());
+                        index.jars.put(path, new Entry(path, Long.parseLong(values[0]), Long.parseLong(values[1]),
+                                emptyToNull(values[2]), emptyToNull(values[3]), emptyToNull(values[4]),
+                                emptyToNull(values[5]), Boolean.parseBoolean(values[6])));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // Ignore broken entry, the jar is scanned again
+            }
+        }
+        return index;
+    }
+
+    private void save() throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Long> folder : folders.entrySet()) {
+            properties.setProperty(FOLDER_PREFIX + folder.getKey(), String.valueOf(folder.getValue()));
+        }
+        for (Entry entry : jars.values()) {
+            properties.setProperty(JAR_PREFIX + entry.path, entry.size + SEPARATOR + entry.lastModified + SEPARATOR
+                    + nullToEmpty(entry.codeName) + SEPARATOR + nullToEmpty(entry.specificationVersion) + SEPARATOR
+                    + nullToEmpty(entry.implementationVersion) + SEPARATOR
+                    + nullToEmpty(entry.moduleDependencies) + SEPARATOR + entry.friendOnly);
+        }
+
+        File file = getFile(netbeansFolder);
+        file.getParentFile().mkdirs();
+        File temporary = new File(file.getPath() + ".tmp");
+        OutputStream stream = new FileOutputStream(temporary);
+        try {
+            properties.store(stream, "Module Friendlizer module index: size;mtime;code name;spec;impl;dependencies;friends");
+        } finally {
+            stream.close();
+        }
+        PatchJournal.move(temporary.toPath(), file.toPath());
+    }
+
+    private static File getFile(File netbeansFolder) {
+        return new File(new File(netbeansFolder, PatchJournal.JOURNAL_FOLDER), INDEX_FILE);
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    /**
+     * Find a module by its code name base
+     *
+     * @param codeNameBase module code name, without major release version
+     * @return the module jar, null if the installation has no such module
+     */
+    public Entry find(String codeNameBase) {
+        return modules.get(codeNameBase);
+    }
+
+    /**
+     * Find a module by its jar
+     *
+     * @param path jar path relative to the installation
+     * @return indexed jar, null if the jar is not in a module folder
+     */
+    public Entry getJar(String path) {
+        return jars.get(path);
+    }
+
+    /**
+     * Jar of a dependency given by code name, or by a jar path that moved
+     * between NetBeans releases: NetBeans names module jars after their code
+     * name, org-netbeans-modules-web-common.jar for org.netbeans.modules.web.common.
+     *
+     * @param dependency code name or jar path relative to the installation
+     * @return jar path relative to the installation, null if not found
+     */
+    public String resolve(String dependency) {
+        String codeNameBase = dependency;
+        if (dependency.endsWith(".jar")) {
+            String name = dependency.substring(dependency.lastIndexOf('/') + 1);
+            codeNameBase = name.substring(0, name.length() - ".jar".length()).replace('-', '.');
+        }
+        Entry entry = find(codeNameBase);
+        return entry == null ? null : entry.path;
+    }
+
+    /**
+     * @return modules of the installation, by code name base
+     */
+    public Collection<Entry> getModules() {
+        return Collections.unmodifiableCollection(modules.values());
+    }
+
+    /**
+     * @return number of jars read to build this index, the others came from
+     * the cache
+     */
+    public int getScanned() {
+        return scanned;
+    }
+
+    /**
+     * @return hash of the indexed jar paths, sizes and modification times,
+     * the same as long as no module jar changes
+     */
+    public long getStamp() {
+        return stamp;
+    }
+
+    /**
+     * Indexed jar
+     */
+    public static class Entry {
+
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final String codeName;
+        private final String codeNameBase;
+        private final String specificationVersion;
+        private final String implementationVersion;
+        private final String moduleDependencies;
+        private final boolean friendOnly;
+
+        Entry(String path, long size, long lastModified, String codeName, String specificationVersion,
+                String implementationVersion, String moduleDependencies, boolean friendOnly) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.codeName = codeName == null ? null : codeName.trim();
+            this.codeNameBase = codeName == null ? null : this.codeName.replaceFirst("/.*$", "");
+            this.specificationVersion = specificationVersion;
+            this.implementationVersion = implementationVersion;
+            this.moduleDependencies = moduleDependencies;
+            this.friendOnly = friendOnly;
+        }
+
+        /**
+         * @return jar path relative to the installation
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return OpenIDE-Module, with its major release version
+         */
+        public String getCodeName() {
+            return codeName;
+        }
+
+        public String getCodeNameBase() {
+            return codeNameBase;
+        }
+
+        public String getSpecificationVersion() {
+            return specificationVersion;
+        }
+
+        public String getImplementationVersion() {
+            return implementationVersion;
+        }
+
+        /**
+         * @return OpenIDE-Module-Module-Dependencies, null if none
+         */
+        public String getModuleDependencies() {
+            return moduleDependencies;
+        }
+
+        /**
+         * @return true if the module API is only open to its friend list
+         */
+        public boolean isFriendOnly() {
+            return friendOnly;
+        }
+    }
+}
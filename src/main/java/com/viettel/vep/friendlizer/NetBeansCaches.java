@@ -0,0 +1,196 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Startup caches NetBeans keeps in the user directories of an installation.
+ * The module system caches the manifests and the module list of every jar in
+ * all-manifests.dat and all-modules.dat; once friend lists change these are
+ * stale. Only these two are deleted, so the next start reads the manifests
+ * again while layers, resources and the source indexes stay warm.
+ *
+ * The user and cache directories are read from etc/*.conf of the
+ * installation (netbeans_default_userdir, netbeans_default_cachedir or
+ * default_userdir, default_cachedir of platform applications). When none of
+ * them exists, for example with a --userdir given at start, the .lastModified
+ * stamp of every cluster holding a modified jar is touched instead: NetBeans
+ * then rebuilds all its startup caches, as after an Auto Update.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class NetBeansCaches {
+
+    static final String[] MODULE_CACHES = {"all-manifests.dat", "all-modules.dat"};
+    static final String CLUSTER_STAMP = ".lastModified";
+    private static final String[] USERDIR_KEYS = {"netbeans_default_userdir", "default_userdir"};
+    private static final String[] CACHEDIR_KEYS = {"netbeans_default_cachedir", "default_cachedir"};
+
+    private NetBeansCaches() {
+    }
+
+    /**
+     * Invalidate the cached manifests of an installation after some of its
+     * jars changed
+     *
+     * @param netbeansFolder NetBeans installation folder
+     * @param modifiedJars jars whose manifest changed, relative to the
+     * installation
+     * @param listener receive messages
+     * @return cache files deleted and cluster stamps touched
+     */
+    public static List<File> invalidate(File netbeansFolder, Collection<String> modifiedJars,
+            PatchListener listener) {
+        List<File> invalidated = new ArrayList<File>();
+        if (modifiedJars.isEmpty()) {
+            return invalidated;
+        }
+
+        List<File> cacheFolders = findCacheFolders(netbeansFolder);
+        for (File cacheFolder : cacheFolders) {
+            for (String cache : MODULE_CACHES) {
+                File file = new File(cacheFolder, cache);
+                if (file.isFile()) {
+                    if (file.delete()) {
+                        invalidated.add(file);
+                    } else {
+                        listener.message("Can not delete module cache " + file);
+                    }
+                }
+            }
+        }
+        if (cacheFolders.isEmpty()) {
+            long now = System.currentTimeMillis();
+            Set<String> clusters = new LinkedHashSet<String>();
+            for (String jar : modifiedJars) {
+                int slash = jar.indexOf('/');
+                if (slash > 0) {
+                    clusters.add(jar.substring(0, slash));
+                }
+            }
+            for (String cluster : clusters) {
+                File stamp = new File(new File(netbeansFolder, cluster), CLUSTER_STAMP);
+                try {
+                    stamp.createNewFile();
+                    if (stamp.setLastModified(now)) {
+                        invalidated.add(stamp);
+                    }
+                } catch (IOException e) {
+                    listener.message("Can not touch cluster stamp " + stamp + ": " + e.getMessage());
+                }
+            }
+        }
+        if (!invalidated.isEmpty()) {
+            listener.message("Module caches invalidated: " + invalidated);
+        }
+        return invalidated;
+    }
+
+    /**
+     * Existing cache folders of the user directories configured for an
+     * installation
+     *
+     * @param netbeansFolder NetBeans installation folder
+     * @return cache folders, empty if none is found
+     */
+    public static List<File> findCacheFolders(File netbeansFolder) {
+        Set<File> folders = new LinkedHashSet<File>();
+        File[] confs = new File(netbeansFolder, "etc").listFiles();
+        if (confs != null) {
+            for (File conf : confs) {
+                if (!conf.isFile() || !conf.getName().endsWith(".conf")) {
+                    continue;
+                }
+                Properties properties = readConf(conf);
+                for (String key : CACHEDIR_KEYS) {
+                    String cachedir = expand(properties.getProperty(key));
+                    if (cachedir != null) {
+                        folders.add(new File(cachedir));
+                        folders.add(new File(cachedir, "var/cache"));
+                    }
+                }
+                for (String key : USERDIR_KEYS) {
+                    String userdir = expand(properties.getProperty(key));
+                    if (userdir != null) {
+                        folders.add(new File(userdir, "var/cache"));
+                    }
+                }
+            }
+        }
+
+        List<File> existing = new ArrayList<File>();
+        for (File folder : folders) {
+            if (folder.isDirectory()) {
+                existing.add(folder);
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * Shell assignments of a launcher configuration, read as properties
+     */
+    private static Properties readConf(File conf) {
+        Properties properties = new Properties();
+        try {
+            for (String line : Files.readAllLines(conf.toPath(), ZipDirectory.UTF8)) {
+                String assignment = line.trim();
+                int equals = assignment.indexOf('=');
+                if (!assignment.startsWith("#") && equals > 0) {
+                    properties.setProperty(assignment.substring(0, equals).trim(),
+                            assignment.substring(equals + 1));
+                }
+            }
+        } catch (IOException e) {
+            // Not readable, no user directory from it
+        }
+        return properties;
+    }
+
+    /**
+     * Unquote a configured folder and expand the variables of the launcher
+     */
+    static String expand(String value) {
+        if (value == null) {
+            return null;
+        }
+        String folder = value.trim();
+        if (folder.length() >= 2 && (folder.startsWith("\"") && folder.endsWith("\"")
+                || folder.startsWith("'") && folder.endsWith("'"))) {
+            folder = folder.substring(1, folder.length() - 1);
+        }
+        String home = System.getProperty("user.home");
+        boolean windows = System.getProperty("os.name", "").toLowerCase(Locale.ENGLISH).startsWith("windows");
+        boolean mac = System.getProperty("os.name", "").toLowerCase(Locale.ENGLISH).startsWith("mac");
+        String userdirRoot;
+        String cachedirRoot;
+        if (windows) {
+            String appData = System.getenv("APPDATA");
+            String localAppData = System.getenv("LOCALAPPDATA");
+            userdirRoot = (appData != null ? appData : home) + "/NetBeans";
+            cachedirRoot = (localAppData != null ? localAppData : home) + "/NetBeans/Cache";
+        } else if (mac) {
+            userdirRoot = home + "/Library/Application Support/NetBeans";
+            cachedirRoot = home + "/Library/Caches/NetBeans";
+        } else {
+            userdirRoot = home + "/.netbeans";
+            cachedirRoot = home + "/.cache/netbeans";
+        }
+        folder = folder.replace("${DEFAULT_USERDIR_ROOT}", userdirRoot)
+                .replace("${DEFAULT_CACHEDIR_ROOT}", cachedirRoot)
+                .replace("${HOME}", home)
+                .replace("$HOME", home);
+        if (folder.startsWith("~")) {
+            folder = home + folder.substring(1);
+        }
+        return folder.isEmpty() || folder.contains("$") ? null : folder;
+    }
+}
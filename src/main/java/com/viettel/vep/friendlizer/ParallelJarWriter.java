@@ -0,0 +1,424 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Write a jar with a new manifest by recompressing every entry, in three
+ * stages: the calling thread reads and inflates the entries, a pool of
+ * threads deflates them and one writer thread writes them in their original
+ * order. Entries are cut in blocks deflated independently, each block primed
+ * with the end of the previous one as dictionary, so a single large entry is
+ * compressed on all threads too. Entries are written without extra fields or
+ * comments, which normalizes the jar. Only plain (non ZIP64) jars are
+ * written, a ZipException is thrown otherwise. Jars patched at the same time
+ * deflate on one shared pool of one thread per processor, see shared.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class ParallelJarWriter {
+
+    static final int BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int VERSION = 20;
+    private static final int UTF8_FLAG = 0x0800;
+    private static final int BUFFER_SIZE = 8192;
+    private static ExecutorService sharedDeflaters;
+    private final int level;
+    private final int threads;
+    private final ExecutorService deflaters;
+    private long bytesRead;
+    private int entriesCopied;
+
+    /**
+     * @param level deflate level, 0 to 9 or Deflater.DEFAULT_COMPRESSION
+     * @param threads number of deflating threads, started for each rewrite
+     */
+    public ParallelJarWriter(int level, int threads) {
+        this(level, Math.max(1, threads), null);
+    }
+
+    private ParallelJarWriter(int level, int threads, ExecutorService deflaters) {
+        this.level = level;
+        this.threads = threads;
+        this.deflaters = deflaters;
+    }
+
+    /**
+     * Writer deflating on the pool shared by every rewrite of the process,
+     * one daemon thread per processor: jars recompressed at the same time
+     * share the processors instead of each starting its own threads.
+     *
+     * @param level deflate level, 0 to 9 or Deflater.DEFAULT_COMPRESSION
+     * @return writer on the shared pool
+     */
+    public static ParallelJarWriter shared(int level) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        synchronized (ParallelJarWriter.class) {
+            if (sharedDeflaters == null) {
+                sharedDeflaters = Executors.newFixedThreadPool(processors, new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "friendlizer-deflater-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return new ParallelJarWriter(level, processors, sharedDeflaters);
+        }
+    }
+
+    /**
+     * Copy a jar to target, recompressing all entries and replacing the
+     * manifest content
+     *
+     * @param jarfile original jar
+     * @param manifest new manifest bytes
+     * @param target new jar, written from its current position
+     * @return number of bytes written
+     * @throws IOException reading/writing error, ZipException if the new jar
+     * would need ZIP64
+     */
+    public long rewrite(JarFile jarfile, byte[] manifest, final FileChannel target) throws IOException {
+        ExecutorService deflaters = this.deflaters != null ? this.deflaters : Executors.newFixedThreadPool(threads);
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        // Bounded: reading waits for writing, at most a few blocks per thread in memory
+        final BlockingQueue<PendingEntry> queue = new ArrayBlockingQueue<PendingEntry>(threads * 4);
+        try {
+            Future<Long> written = writer.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return write(queue, target);
+                }
+            });
+
+            boolean manifestWritten = false;
+            boolean complete = false;
+            Enumeration<JarEntry> entries = jarfile.entries();
+            try {
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    byte[] content;
+                    if (entry.getName().equalsIgnoreCase(RawJarWriter.META_INF_MANIFEST_ENTRY)) {
+                        if (manifestWritten) {
+                            continue;
+                        }
+                        content = manifest;
+                        manifestWritten = true;
+                    } else {
+                        content = read(jarfile, entry);
+                        bytesRead += entry.getCompressedSize();
+                        entriesCopied++;
+                    }
+                    put(queue, written, deflate(deflaters, entry, content));
+                }
+                if (!manifestWritten) {
+                    throw new ZipException("No " + RawJarWriter.META_INF_MANIFEST_ENTRY + " entry");
+                }
+                complete = true;
+            } finally {
+                if (!complete) {
+                    written.cancel(true);
+                }
+            }
+            put(queue, written, PendingEntry.END);
+            return get(written);
+        } finally {
+            writer.shutdownNow();
+            if (deflaters != this.deflaters) {
+                deflaters.shutdownNow();
+            } else {
+                // Blocks of a failed rewrite must not keep the shared threads busy
+                List<PendingEntry> unwritten = new ArrayList<PendingEntry>();
+                queue.drainTo(unwritten);
+                for (PendingEntry pending : unwritten) {
+                    pending.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return compressed bytes of the original entries read by the last
+     * rewrite
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return entries copied by the last rewrite, without the manifest
+     */
+    public int getEntriesCopied() {
+        return entriesCopied;
+    }
+
+    private static byte[] read(JarFile jarfile, JarEntry entry) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream(
+                entry.getSize() > 0 ? (int) entry.getSize() : BUFFER_SIZE);
+        InputStream stream = jarfile.getInputStream(entry);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+        } finally {
+            stream.close();
+        }
+        return content.toByteArray();
+    }
+
+    /**
+     * Cut an entry in blocks and submit them to the deflaters
+     */
+    private PendingEntry deflate(ExecutorService deflaters, ZipEntry entry, final byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        PendingEntry pending = new PendingEntry(entry.getName(), entry.getTime(), content, crc.getValue());
+        for (int offset = 0; offset < content.length; offset += BLOCK_SIZE) {
+            final int start = offset;
+            final int end = Math.min(content.length, offset + BLOCK_SIZE);
+            pending.blocks.add(deflaters.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return deflateBlock(content, start, end);
+                }
+            }));
+        }
+        return pending;
+    }
+
+    /**
+     * Deflate content[start, end) as part of one deflate stream: the previous
+     * 32 KB are the dictionary, a block ends on a byte boundary (sync flush)
+     * and the last block ends the stream.
+     */
+    private byte[] deflateBlock(byte[] content, int start, int end) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (start > 0) {
+                int dictionary = Math.min(start, DICTIONARY_SIZE);
+                deflater.setDictionary(content, start - dictionary, dictionary);
+            }
+            deflater.setInput(content, start, end - start);
+            boolean last = end == content.length;
+            if (last) {
+                deflater.finish();
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream((end - start) / 2 + 64);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (true) {
+                int length = last ? deflater.deflate(buffer)
+                        : deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                out.write(buffer, 0, length);
+                if (last ? deflater.finished() : length < buffer.length) {
+                    break;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Writer stage: write entries in order as their blocks are deflated, then
+     * the central directory
+     */
+    private static long write(BlockingQueue<PendingEntry> queue, FileChannel target) throws Exception {
+        ByteArrayOutputStream central = new ByteArrayOutputStream();
+        long position = 0;
+        int count = 0;
+        while (true) {
+            PendingEntry entry = queue.take();
+            if (entry == PendingEntry.END) {
+                break;
+            }
+
+            List<byte[]> blocks = new ArrayList<byte[]>(entry.blocks.size());
+            long compressedSize = 0;
+            try {
+                for (Future<byte[]> block : entry.blocks) {
+                    blocks.add(block.get());
+                    compressedSize += blocks.get(blocks.size() - 1).length;
+                }
+            } catch (Exception e) {
+                entry.cancel();
+                throw e;
+            }
+            int method = Deflater.DEFLATED;
+            if (entry.size == 0 || compressedSize >= entry.size) {
+                method = 0;
+                compressedSize = entry.size;
+                blocks = Arrays.asList(entry.content);
+            }
+            if (++count > 0xFFFF || position + compressedSize > 0xFFFFFFFFL) {
+                throw new ZipException("ZIP64 file is not supported");
+            }
+
+            byte[] name = entry.name.getBytes(ZipDirectory.UTF8);
+            ByteBuffer header = ByteBuffer.allocate(ZipDirectory.CENTRAL_HEADER_SIZE + name.length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(ZipDirectory.LOCAL_SIGNATURE);
+            putEntryFields(header, entry, method, compressedSize, name);
+            header.put(name);
+            header.flip();
+            long offset = position;
+            position += RawJarWriter.write(target, header);
+            for (byte[] block : blocks) {
+                position += RawJarWriter.write(target, ByteBuffer.wrap(block));
+            }
+            // Only the header fields are needed from now on
+            blocks = null;
+            entry.release();
+
+            header.clear();
+            header.putInt(ZipDirectory.CENTRAL_SIGNATURE);
+            header.putShort((short) VERSION);
+            putEntryFields(header, entry, method, compressedSize, name);
+            // comment length, disk, internal and external attributes
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putInt(0);
+            header.putInt((int) offset);
+            header.put(name);
+            central.write(header.array(), 0, header.position());
+        }
+
+        if (position + central.size() > 0xFFFFFFFFL) {
+            throw new ZipException("ZIP64 file is not supported");
+        }
+        ByteBuffer end = ByteBuffer.allocate(ZipDirectory.END_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(ZipDirectory.END_SIGNATURE);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) count);
+        end.putShort((short) count);
+        end.putInt(central.size());
+        end.putInt((int) position);
+        end.putShort((short) 0);
+        end.flip();
+        position += RawJarWriter.write(target, ByteBuffer.wrap(central.toByteArray()));
+        position += RawJarWriter.write(target, end);
+        return position;
+    }
+
+    /**
+     * Fields shared by local and central headers, from version needed to
+     * extra field length
+     */
+    private static void putEntryFields(ByteBuffer header, PendingEntry entry, int method, long compressedSize,
+            byte[] name) {
+        header.putShort((short) VERSION);
+        header.putShort((short) UTF8_FLAG);
+        header.putShort((short) method);
+        header.putInt(RawJarWriter.dosTime(entry.time == -1 ? System.currentTimeMillis() : entry.time));
+        header.putInt((int) entry.crc);
+        header.putInt((int) compressedSize);
+        header.putInt(entry.size);
+        header.putShort((short) name.length);
+        header.putShort((short) 0);
+    }
+
+    /**
+     * Hand an entry to the writer, giving up if the writer failed
+     */
+    private static void put(BlockingQueue<PendingEntry> queue, Future<Long> writer, PendingEntry entry)
+            throws IOException {
+        try {
+            while (!queue.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+                if (writer.isDone()) {
+                    entry.cancel();
+                    get(writer);
+                    throw new IOException("Jar writer stopped");
+                }
+            }
+        } catch (InterruptedException e) {
+            entry.cancel();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    private static long get(Future<Long> writer) throws IOException {
+        try {
+            return writer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Entry read and submitted to the deflaters, waiting to be written
+     */
+    private static class PendingEntry {
+
+        private static final PendingEntry END = new PendingEntry(null, 0, null, 0);
+        private final String name;
+        private final long time;
+        private final int size;
+        private final long crc;
+        private byte[] content;
+        private final List<Future<byte[]>> blocks = new ArrayList<Future<byte[]>>();
+
+        PendingEntry(String name, long time, byte[] content, long crc) {
+            this.name = name;
+            this.time = time;
+            this.size = content == null ? 0 : content.length;
+            this.content = content;
+            this.crc = crc;
+        }
+
+        /**
+         * Drop the content and the deflated blocks once written
+         */
+        void release() {
+            content = null;
+            blocks.clear();
+        }
+
+        /**
+         * Stop deflating the blocks not started yet
+         */
+        void cancel() {
+            for (Future<byte[]> block : blocks) {
+                block.cancel(false);
+            }
+        }
+    }
+}
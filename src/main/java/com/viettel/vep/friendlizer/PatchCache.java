@@ -0,0 +1,288 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Content addressed cache of patched jars, shared by all installations. A
+ * patched copy is keyed by the SHA-1 of the original jar, the sorted module
+ * keys and the options changing the output, so a jar found again anywhere
+ * with the same keys is fulfilled by one sequential copy: no manifest is
+ * parsed and no entry is read. Jars the keys leave unchanged are remembered
+ * too.
+ *
+ * The cache is bounded: once a run is over, the copies used least recently
+ * are evicted until the cache fits in patch.cache.size.
+ *
+ * Only copies which passed verification and replaced their jar are stored,
+ * and a fetched copy failing verification is evicted. A copy is stored as a
+ * hard link to the jar it replaced where the file system allows it, so a cold
+ * run does not write each patched jar twice. Cached copies are copied, not
+ * linked, into other installations, and a stored copy still linked gets its
+ * own file before it is marked as used: touching it would touch the
+ * installation jar too. A copy changed through its link, by Auto Update
+ * writing the jar in place, fails verification and is evicted.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class PatchCache {
+
+    private static final String PATCHED = ".jar";
+    private static final String UNCHANGED = ".unchanged";
+    private final Path cacheFolder;
+
+    private PatchCache(Path cacheFolder) {
+        this.cacheFolder = cacheFolder;
+    }
+
+    /**
+     * @param cacheFolder cache folder, created when the first copy is stored
+     * @return cache in the folder
+     */
+    public static PatchCache open(File cacheFolder) {
+        return new PatchCache(cacheFolder.toPath().toAbsolutePath());
+    }
+
+    /**
+     * Cache key of a jar patched with module keys
+     *
+     * @param jar original jar
+     * @param moduleKeys module keys added to the friend list
+     * @param options patching options, the recompression level changes the
+     * patched copy
+     * @return lower case hexadecimal key
+     * @throws IOException the jar can not be read
+     */
+    public static String key(File jar, Collection<String> moduleKeys, PatchOptions options) throws IOException {
+        return key(FileFingerprint.hash(jar), moduleKeys, options);
+    }
+
+    /**
+     * Cache key of a jar patched with module keys
+     *
+     * @param hash SHA-1 of the original jar, also given to the backup store
+     * @param moduleKeys module keys added to the friend list
+     * @param options patching options
+     * @return lower case hexadecimal key
+     */
+    public static String key(String hash, Collection<String> moduleKeys, PatchOptions options) {
+        StringBuilder key = new StringBuilder(hash);
+        for (String moduleKey : new TreeSet<String>(moduleKeys)) {
+            key.append('\n').append(moduleKey);
+        }
+        key.append('\n').append(options.isRecompress() ? "recompress " + options.getCompressionLevel() : "raw");
+        return FileFingerprint.hash(key.toString());
+    }
+
+    /**
+     * Copy the cached patched jar of a key, the copy is marked as recently
+     * used
+     *
+     * @param key cache key
+     * @param target file to write, replaced
+     * @return false if the key has no patched copy
+     * @throws IOException copy error, target may be incomplete
+     */
+    public boolean fetch(String key, File target) throws IOException {
+        Path object = getObject(key, PATCHED);
+        if (!Files.isRegularFile(object)) {
+            return false;
+        }
+        Files.copy(object, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        PatchJournal.detach(object);
+        Files.setLastModifiedTime(object, FileTime.fromMillis(System.currentTimeMillis()));
+        return true;
+    }
+
+    /**
+     * Store the patched copy of a jar
+     *
+     * @param key cache key
+     * @param patched patched copy, left in place and linked to the cache where
+     * possible
+     * @throws IOException writing error
+     */
+    public void store(String key, File patched) throws IOException {
+        Path object = getObject(key, PATCHED);
+        if (!Files.exists(object)) {
+            Files.createDirectories(object.getParent());
+            try {
+                Files.createLink(object, patched.toPath());
+                return;
+            } catch (FileAlreadyExistsException e) {
+                // Stored by another run meanwhile
+                return;
+            } catch (UnsupportedOperationException e) {
+                // No links, copied
+            } catch (FileSystemException e) {
+                // Other file system, copied
+            }
+            Path temporary = Files.createTempFile(object.getParent(), key, ".tmp");
+            try {
+                Files.copy(patched.toPath(), temporary, StandardCopyOption.REPLACE_EXISTING);
+                PatchJournal.move(temporary, object);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    /**
+     * Evict the patched copies used least recently until the cache is no
+     * larger than a size. Copies are stored or used by their modification
+     * time.
+     *
+     * @param maxSize maximum size of the patched copies in bytes
+     * @return number of evicted copies
+     * @throws IOException the cache can not be listed
+     */
+    public int trim(long maxSize) throws IOException {
+        List<Path> copies = new ArrayList<Path>();
+        final Map<Path, FileTime> used = new HashMap<Path, FileTime>();
+        long size = 0;
+        if (!Files.isDirectory(cacheFolder)) {
+            return 0;
+        }
+        DirectoryStream<Path> folders = Files.newDirectoryStream(cacheFolder);
+        try {
+            for (Path folder : folders) {
+                if (!Files.isDirectory(folder)) {
+                    continue;
+                }
+                DirectoryStream<Path> objects = Files.newDirectoryStream(folder, "*" + PATCHED);
+                try {
+                    for (Path object : objects) {
+                        BasicFileAttributes attributes = Files.readAttributes(object, BasicFileAttributes.class);
+                        copies.add(object);
+                        used.put(object, attributes.lastModifiedTime());
+                        size += attributes.size();
+                    }
+                } finally {
+                    objects.close();
+                }
+            }
+        } finally {
+            folders.close();
+        }
+        if (size <= maxSize) {
+            return 0;
+        }
+
+        Collections.sort(copies, new Comparator<Path>() {
+            @Override
+            public int compare(Path o1, Path o2) {
+                return used.get(o1).compareTo(used.get(o2));
+            }
+        });
+        int evicted = 0;
+        for (Path copy : copies) {
+            if (size <= maxSize) {
+                break;
+            }
+            try {
+                long copySize = Files.size(copy);
+                if (Files.deleteIfExists(copy)) {
+                    size -= copySize;
+                    evicted++;
+                }
+            } catch (NoSuchFileException e) {
+                // Evicted by another run meanwhile
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Forget the patched copy of a key
+     *
+     * @param key cache key
+     * @throws IOException deleting error
+     */
+    public void evict(String key) throws IOException {
+        Files.deleteIfExists(getObject(key, PATCHED));
+    }
+
+    /**
+     * @param key cache key
+     * @return true if the module keys are known to leave the jar unchanged
+     */
+    public boolean isUnchanged(String key) {
+        return Files.exists(getObject(key, UNCHANGED));
+    }
+
+    /**
+     * Remember that the module keys leave a jar unchanged
+     *
+     * @param key cache key
+     * @throws IOException writing error
+     */
+    public void storeUnchanged(String key) throws IOException {
+        Path marker = getObject(key, UNCHANGED);
+        if (!Files.exists(marker)) {
+            Files.createDirectories(marker.getParent());
+            Files.write(marker, new byte[0]);
+        }
+    }
+
+    private Path getObject(String key, String suffix) {
+        return cacheFolder.resolve(key.substring(0, 2)).resolve(key + suffix);
+    }
+
+    /**
+     * Cache entry of one jar, from its patched copy being written or fetched
+     * to the verification of the copy
+     */
+    static class Slot {
+
+        private PatchCache cache;
+        private String key;
+        private boolean fetched;
+
+        void set(PatchCache cache, String key, boolean fetched) {
+            this.cache = cache;
+            this.key = key;
+            this.fetched = fetched;
+        }
+
+        /**
+         * The copy was verified and replaced its jar: store it, unless it
+         * came from the cache
+         *
+         * @param jar patched jar
+         * @throws IOException writing error
+         */
+        void patched(File jar) throws IOException {
+            if (cache != null && !fetched) {
+                cache.store(key, jar);
+            }
+        }
+
+        /**
+         * The copy failed verification: evict it if it came from the cache
+         *
+         * @throws IOException deleting error
+         */
+        void failed() throws IOException {
+            if (cache != null && fetched) {
+                cache.evict(key);
+            }
+        }
+    }
+}
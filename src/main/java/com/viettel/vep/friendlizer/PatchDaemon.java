@@ -0,0 +1,279 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Long running Module Friendlizer serving command lines on a local socket. It
+ * keeps configurations, module indexes and dependency graphs in memory, so a
+ * command costs no JVM start and no cold read. Only the loopback interface is
+ * bound and every connection must start with the token the daemon wrote to
+ * ~/.vep-friendlizer, readable by its user only. Commands on the same
+ * installation run one at a time; a fleet command locks every installation
+ * its folders and patterns expand to. On a stop command the daemon exits
+ * once the commands already running are finished.
+ *
+ * Protocol, one line each: token, then the command line arguments separated
+ * by tabs; the daemon answers with the command output, then "exit <code>".
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class PatchDaemon {
+
+    public static final int DEFAULT_PORT = 47421;
+    private static final String EXIT = "exit ";
+    private static final String SEPARATOR = "\t";
+    private final ServerSocket server;
+    private final String token;
+    private final CliFriendlizerApp app;
+    private final Map<String, Lock> locks = new HashMap<String, Lock>();
+    private volatile boolean stopped;
+
+    private PatchDaemon(ServerSocket server, String token, CliFriendlizerApp app) {
+        this.server = server;
+        this.token = token;
+        this.app = app;
+    }
+
+    /**
+     * Serve commands until a stop command
+     *
+     * @param port local port
+     * @param app command line application running the commands
+     * @param out receive daemon messages
+     * @param err receive errors
+     * @return exit code
+     */
+    static int serve(int port, CliFriendlizerApp app, PrintStream out, PrintStream err) {
+        ServerSocket server = null;
+        File tokenFile = getTokenFile(port);
+        try {
+            server = new ServerSocket();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            String token = new BigInteger(128, new SecureRandom()).toString(16);
+            writeToken(tokenFile, token);
+            out.println("Module Friendlizer daemon listening on port " + server.getLocalPort());
+            new PatchDaemon(server, token, app).accept();
+            return CliFriendlizerApp.EXIT_OK;
+        } catch (IOException e) {
+            err.println("Daemon error: " + e.getMessage());
+            return CliFriendlizerApp.EXIT_DAEMON;
+        } finally {
+            tokenFile.delete();
+            if (server != null) {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        ExecutorService connections = Executors.newCachedThreadPool();
+        try {
+            while (!stopped) {
+                final Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketException e) {
+                    if (stopped) {
+                        break;
+                    }
+                    throw e;
+                }
+                connections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            }
+        } finally {
+            // Running commands finish before the process may exit: a patch
+            // killed before its commit would be rolled back by the next run
+            connections.shutdown();
+            try {
+                connections.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ZipDirectory.UTF8));
+            PrintStream out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+            try {
+                String received = in.readLine();
+                if (received == null || !MessageDigest.isEqual(token.getBytes(ZipDirectory.UTF8),
+                        received.getBytes(ZipDirectory.UTF8))) {
+                    out.println("Invalid token");
+                    out.println(EXIT + CliFriendlizerApp.EXIT_DAEMON);
+                    return;
+                }
+                String line = in.readLine();
+                String[] args = line == null || line.isEmpty() ? new String[0] : line.split(SEPARATOR);
+                out.println(EXIT + run(args, out));
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // Client gone, its command is finished anyway
+        }
+    }
+
+    private int run(String[] args, PrintStream out) throws IOException {
+        CliFriendlizerApp.Arguments arguments;
+        try {
+            arguments = CliFriendlizerApp.Arguments.parse(args);
+        } catch (IllegalArgumentException e) {
+            // The application reports the usage error
+            return app.run(args, out, out);
+        }
+        String command = arguments.command;
+        if ("stop".equals(command)) {
+            stopped = true;
+            out.println("Daemon stopped");
+            server.close();
+            return CliFriendlizerApp.EXIT_OK;
+        }
+        if ("daemon".equals(command)) {
+            out.println("Daemon already running");
+            return CliFriendlizerApp.EXIT_USAGE;
+        }
+        if ("watch".equals(command)) {
+            out.println("watch runs in its own process, not in the daemon");
+            return CliFriendlizerApp.EXIT_USAGE;
+        }
+
+        // Every installation of a fleet, locked in one order to never deadlock
+        Set<String> folders = new TreeSet<String>();
+        for (String folder : PatchFleet.expand(arguments.folders, PatchListener.NONE)) {
+            folders.add(new File(folder).getCanonicalPath());
+        }
+        List<Lock> held = new ArrayList<Lock>();
+        try {
+            for (String folder : folders) {
+                Lock lock = getLock(folder);
+                lock.lock();
+                held.add(lock);
+            }
+            return app.run(args, out, out);
+        } finally {
+            for (Lock lock : held) {
+                lock.unlock();
+            }
+        }
+    }
+
+    private Lock getLock(String folder) {
+        synchronized (locks) {
+            Lock lock = locks.get(folder);
+            if (lock == null) {
+                lock = new ReentrantLock();
+                locks.put(folder, lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * Send a command line to the running daemon and print its output
+     *
+     * @param port daemon port
+     * @param args command line arguments, paths absolute
+     * @param out receive the command output
+     * @param err receive errors
+     * @return exit code of the command
+     */
+    static int send(int port, String[] args, PrintStream out, PrintStream err) {
+        String token;
+        try {
+            token = new String(Files.readAllBytes(getTokenFile(port).toPath()), ZipDirectory.UTF8).trim();
+        } catch (IOException e) {
+            err.println("No daemon running on port " + port);
+            return CliFriendlizerApp.EXIT_DAEMON;
+        }
+
+        StringBuilder line = new StringBuilder();
+        for (String arg : args) {
+            if (!"--connect".equals(arg)) {
+                line.append(line.length() == 0 ? "" : SEPARATOR).append(arg);
+            }
+        }
+        try {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            try {
+                OutputStream request = socket.getOutputStream();
+                request.write((token + "\n" + line + "\n").getBytes(ZipDirectory.UTF8));
+                request.flush();
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                        ZipDirectory.UTF8));
+                String answer;
+                while ((answer = in.readLine()) != null) {
+                    if (answer.startsWith(EXIT)) {
+                        return Integer.parseInt(answer.substring(EXIT.length()));
+                    }
+                    out.println(answer);
+                }
+                err.println("Daemon closed the connection");
+                return CliFriendlizerApp.EXIT_DAEMON;
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            err.println("Daemon error: " + e.getMessage());
+            return CliFriendlizerApp.EXIT_DAEMON;
+        }
+    }
+
+    private static File getTokenFile(int port) {
+        return new File(System.getProperty("user.home"), PatchJournal.JOURNAL_FOLDER + "/daemon-" + port + ".token");
+    }
+
+    /**
+     * Write the token readable by the current user only, where the file
+     * system has POSIX permissions
+     */
+    private static void writeToken(File file, String token) throws IOException {
+        file.getParentFile().mkdirs();
+        file.delete();
+        Files.createFile(file.toPath());
+        try {
+            Files.setPosixFilePermissions(file.toPath(),
+                    EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system, the user folder protects it
+        }
+        Files.write(file.toPath(), token.getBytes(ZipDirectory.UTF8));
+    }
+}
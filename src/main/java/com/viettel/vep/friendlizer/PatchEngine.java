@@ -0,0 +1,529 @@
+package com.viettel.vep.friendlizer;
+
+import com.viettel.vep.friendlizer.ModuleConfiguration.Module;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Patch the dependency jars of a module on a bounded pool of workers. Jars
+ * are independent files, a failing jar does not stop the others.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class PatchEngine {
+
+    private final PatchOptions options;
+    private final PatchListener listener;
+    private final ExecutorService workers;
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    public PatchEngine(PatchOptions options, PatchListener listener) {
+        this(options, listener, null);
+    }
+
+    /**
+     * @param workers pool shared with other engines patching jars of the same
+     * disk, jars are patched and verified on it; null for a pool of the
+     * options parallelism per run
+     */
+    PatchEngine(PatchOptions options, PatchListener listener, ExecutorService workers) {
+        this.options = options;
+        this.listener = listener;
+        this.workers = workers;
+    }
+
+    /**
+     * Cancel the running patch. Jars already started are finished, the others
+     * are left untouched and reported as CANCELLED, so every jar is either
+     * fully patched or not modified at all.
+     */
+    public void cancel() {
+        cancelled.set(true);
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * Patch all dependencies of a module
+     *
+     * @param netbeansPath NetBeans installation folder
+     * @param moduleCfg module to add to the friend lists
+     * @return one result per distinct dependency, in configuration order
+     */
+    public PatchRun patch(String netbeansPath, Module moduleCfg) {
+        return patch(netbeansPath, PatchPlan.of(moduleCfg));
+    }
+
+    /**
+     * Patch all jars of a plan, each jar is rewritten once with all its keys
+     *
+     * @param netbeansPath NetBeans installation folder
+     * @param plan jars and module keys to add to their friend lists
+     * @return one result per jar in plan order, with run totals
+     */
+    public PatchRun patch(String netbeansPath, PatchPlan plan) {
+        long startTime = System.currentTimeMillis();
+        long start = System.nanoTime();
+        File netbeansFolder = new File(netbeansPath);
+        List<JarPatchResult> results;
+        PatchIndex index = null;
+        PatchJournal journal = null;
+        BackupStore backup = null;
+        if (netbeansFolder.isDirectory()) {
+            plan = resolve(netbeansFolder, plan);
+            listener.runStarted(netbeansPath, plan.size());
+            index = options.isUseIndex() ? PatchIndex.load(netbeansFolder) : null;
+            backup = openBackup(netbeansFolder, index);
+            journal = beginJournal(netbeansFolder, index, backup);
+            final PatchIndex jarIndex = index;
+            final PatchJournal jarJournal = journal;
+            final ExecutorService verifier = !options.isVerify() || plan.isEmpty() ? null
+                    : workers != null ? workers
+                    : Executors.newFixedThreadPool(Math.min(options.getParallelism(), plan.size()));
+            try {
+                List<Future<JarPatchResult>> pending = forEachJar(netbeansPath, plan,
+                        new JarTask<Future<JarPatchResult>>() {
+                    @Override
+                    public Future<JarPatchResult> run(String ideFolder, String dependency, Set<String> moduleKeys) {
+                        if (cancelled.get()) {
+                            JarPatchResult result = new JarPatchResult(dependency, JarPatchResult.Status.CANCELLED);
+                            listener.jarFinished(result);
+                            return done(result);
+                        }
+                        listener.jarStarted(dependency);
+                        return patchDependency(ideFolder, dependency, moduleKeys, jarIndex, jarJournal, verifier);
+                    }
+                });
+                results = new ArrayList<JarPatchResult>(pending.size());
+                for (Future<JarPatchResult> result : pending) {
+                    results.add(waitFor(result));
+                }
+            } finally {
+                if (verifier != null && verifier != workers) {
+                    verifier.shutdown();
+                }
+            }
+        } else {
+            listener.message("Not a directory: " + netbeansPath);
+            listener.runStarted(netbeansPath, 0);
+            results = new ArrayList<JarPatchResult>();
+        }
+
+        if (journal != null) {
+            try {
+                journal.commit();
+            } catch (IOException e) {
+                listener.message("Committing patch journal error: " + e.getMessage());
+            }
+        }
+        if (backup != null) {
+            try {
+                backup.save();
+                listener.message(BackupStore.getSummary(options.getBackupFolder()));
+            } catch (IOException e) {
+                listener.message("Saving backup store error: " + e.getMessage());
+            }
+        }
+        List<String> patched = new ArrayList<String>();
+        for (JarPatchResult result : results) {
+            if (result.getStatus() == JarPatchResult.Status.PATCHED) {
+                patched.add(result.getDependency());
+            }
+        }
+        if (options.isInvalidateCaches()) {
+            invalidateCaches(netbeansFolder, patched);
+        }
+        if (index != null) {
+            try {
+                index.save();
+            } catch (IOException e) {
+                listener.message("Saving patch index error: " + e.getMessage());
+            }
+        }
+        if (options.isCache() && !options.isInPlace() && !patched.isEmpty()) {
+            try {
+                int evicted = PatchCache.open(options.getCacheFolder()).trim(options.getCacheSize());
+                if (evicted > 0) {
+                    listener.message(evicted + " patched copies evicted from the cache");
+                }
+            } catch (IOException e) {
+                listener.message("Patch cache error: " + e.getMessage());
+            }
+        }
+
+        PatchRun run = new PatchRun(netbeansPath, startTime, System.nanoTime() - start, results);
+        if (options.isReport() && netbeansFolder.isDirectory()) {
+            try {
+                listener.message("Report written to " + PatchReport.write(run));
+            } catch (IOException e) {
+                listener.message("Writing patch report error: " + e.getMessage());
+            }
+        }
+        listener.runFinished(run);
+        return run;
+    }
+
+    /**
+     * Roll back the last patch run of an installation: every jar it modified
+     * is restored from its snapshot.
+     *
+     * @param netbeansPath NetBeans installation folder
+     * @return restored jars relative to the installation
+     * @throws IOException a jar can not be restored, the journal is kept to
+     * try again
+     */
+    public List<String> rollback(String netbeansPath) throws IOException {
+        File netbeansFolder = new File(netbeansPath);
+        List<String> restored = PatchJournal.rollback(netbeansFolder, listener);
+        forget(netbeansFolder, restored);
+        invalidateCaches(netbeansFolder, restored);
+        listener.message(restored.size() + " jars restored");
+        return restored;
+    }
+
+    /**
+     * Restore an installation to its state before its first patch, from the
+     * backup store
+     *
+     * @param netbeansPath NetBeans installation folder
+     * @return restored jars relative to the installation
+     * @throws IOException a jar can not be restored
+     */
+    public List<String> restore(String netbeansPath) throws IOException {
+        File netbeansFolder = new File(netbeansPath);
+        List<String> restored = BackupStore.open(options.getBackupFolder(), netbeansFolder).restore(listener);
+        forget(netbeansFolder, restored);
+        invalidateCaches(netbeansFolder, restored);
+        listener.message(restored.size() + " jars restored");
+        return restored;
+    }
+
+    private BackupStore openBackup(File netbeansFolder, PatchIndex index) {
+        if (!options.isBackup()) {
+            return null;
+        }
+        try {
+            return BackupStore.open(options.getBackupFolder(), netbeansFolder, index);
+        } catch (IOException e) {
+            listener.message("Backup store error (" + e.getMessage() + "), originals are not backed up");
+            return null;
+        }
+    }
+
+    /**
+     * Roll back an unfinished previous run, then start the journal of this
+     * one. Without journal jars are still replaced atomically but the run can
+     * not be rolled back.
+     */
+    private PatchJournal beginJournal(File netbeansFolder, PatchIndex index, BackupStore backup) {
+        try {
+            List<String> restored = PatchJournal.recover(netbeansFolder, listener);
+            if (index != null) {
+                for (String dependency : restored) {
+                    index.remove(dependency);
+                }
+            }
+            return PatchJournal.begin(netbeansFolder, backup);
+        } catch (IOException e) {
+            listener.message("Patch journal error (" + e.getMessage() + "), this run can not be rolled back");
+            return null;
+        }
+    }
+
+    /**
+     * Remove restored jars from the index of an installation
+     */
+    private void forget(File netbeansFolder, List<String> dependencies) {
+        if (!options.isUseIndex() || dependencies.isEmpty()) {
+            return;
+        }
+        PatchIndex index = PatchIndex.load(netbeansFolder);
+        for (String dependency : dependencies) {
+            index.remove(dependency);
+        }
+        try {
+            index.save();
+        } catch (IOException e) {
+            listener.message("Saving patch index error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drop the cached manifests of jars whose manifest changed
+     */
+    private void invalidateCaches(File netbeansFolder, List<String> dependencies) {
+        if (options.isInvalidateCaches()) {
+            NetBeansCaches.invalidate(netbeansFolder, dependencies, listener);
+        }
+    }
+
+    /**
+     * Dry run: report what patching the jars of a plan would do, nothing is
+     * written.
+     *
+     * @param netbeansPath NetBeans installation folder
+     * @param plan jars and module keys to add to their friend lists
+     * @return one result per jar, in plan order
+     */
+    public List<JarPlanResult> plan(String netbeansPath, PatchPlan plan) {
+        if (!new File(netbeansPath).isDirectory()) {
+            listener.message("Not a directory: " + netbeansPath);
+            return new ArrayList<JarPlanResult>();
+        }
+
+        return forEachJar(netbeansPath, resolve(new File(netbeansPath), plan), new JarTask<JarPlanResult>() {
+            @Override
+            public JarPlanResult run(String ideFolder, String dependency, Set<String> moduleKeys) {
+                if (cancelled.get()) {
+                    return new JarPlanResult(dependency, JarPatchResult.Status.CANCELLED);
+                }
+                if (!new File(ideFolder + dependency).isFile()) {
+                    return new JarPlanResult(dependency, JarPatchResult.Status.MISSING);
+                }
+                return FriendlizerUtilities.planningModuleJarFile(ideFolder + dependency, dependency, moduleKeys,
+                        options, listener);
+            }
+        });
+    }
+
+    /**
+     * Replace dependencies given by module code name, or by a jar path that
+     * does not exist in this installation, with the jar of the module, and
+     * add the friend only modules transitive dependencies depend on. The
+     * module index is only loaded if some dependency needs it.
+     *
+     * @param netbeansFolder NetBeans installation folder
+     * @param plan jars or code names and module keys to add to their friend lists
+     * @return plan of jar paths, dependencies not found are kept as they are
+     */
+    PatchPlan resolve(File netbeansFolder, PatchPlan plan) {
+        ModuleIndex modules = null;
+        PatchPlan resolved = new PatchPlan();
+        Map<String, Set<String>> transitiveRoots = new LinkedHashMap<String, Set<String>>();
+        for (String dependency : plan.getDependencies()) {
+            String jar = dependency;
+            Set<String> transitiveKeys = plan.getTransitiveKeys(dependency);
+            if (!dependency.endsWith(".jar") || !new File(netbeansFolder, dependency).isFile()
+                    || !transitiveKeys.isEmpty()) {
+                if (modules == null) {
+                    modules = ModuleIndex.load(netbeansFolder, options.getParallelism(), listener);
+                }
+                String found = modules.getJar(dependency) != null ? dependency : modules.resolve(dependency);
+                if (found != null && !found.equals(dependency)) {
+                    listener.message("Resolved " + dependency + " to " + found);
+                }
+                jar = found != null ? found : dependency;
+            }
+            for (String moduleKey : plan.getFriendKeys(dependency)) {
+                resolved.add(jar, moduleKey);
+            }
+
+            ModuleIndex.Entry module = modules == null ? null : modules.getJar(jar);
+            for (String moduleKey : transitiveKeys) {
+                if (module == null || module.getCodeNameBase() == null) {
+                    listener.message("Not a module, dependencies not resolved: " + dependency);
+                    break;
+                }
+                Set<String> roots = transitiveRoots.get(moduleKey);
+                if (roots == null) {
+                    roots = new LinkedHashSet<String>();
+                    transitiveRoots.put(moduleKey, roots);
+                }
+                roots.add(module.getCodeNameBase());
+            }
+        }
+
+        if (!transitiveRoots.isEmpty()) {
+            ModuleGraph graph = ModuleGraph.of(netbeansFolder, modules);
+            int before = resolved.size();
+            for (Map.Entry<String, Set<String>> roots : transitiveRoots.entrySet()) {
+                for (ModuleIndex.Entry module : graph.getFriendOnlyClosure(roots.getValue())) {
+                    resolved.add(module.getPath(), roots.getKey());
+                }
+            }
+            listener.message((resolved.size() - before) + " friend only jars added from transitive dependencies of "
+                    + graph.size() + " modules");
+        }
+        return resolved;
+    }
+
+    /**
+     * Run a task for every jar of a plan on the worker pool
+     */
+    private <T> List<T> forEachJar(String netbeansPath, final PatchPlan plan, final JarTask<T> task) {
+        List<T> results = new ArrayList<T>();
+        if (plan.isEmpty()) {
+            return results;
+        }
+
+        final String ideFolder = netbeansPath.endsWith("/") ? netbeansPath : netbeansPath + "/";
+        ExecutorService executor = workers != null ? workers
+                : Executors.newFixedThreadPool(Math.min(options.getParallelism(), plan.size()));
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>();
+            for (final String dependency : plan.getDependencies()) {
+                futures.add(executor.submit(new Callable<T>() {
+                    @Override
+                    public T call() {
+                        return task.run(ideFolder, dependency, plan.getFriendKeys(dependency));
+                    }
+                }));
+            }
+
+            for (Future<T> future : futures) {
+                results.add(waitFor(future));
+            }
+        } finally {
+            if (executor != workers) {
+                executor.shutdown();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Patch one jar. A patched copy is verified and replaces the jar on the
+     * verifier pool, so the worker can start on the next jar meanwhile.
+     *
+     * @param verifier verifier pool, null to verify and replace on the worker
+     * @return result of the jar, done once the jar is replaced
+     */
+    private Future<JarPatchResult> patchDependency(String ideFolder, final String dependency,
+            final Set<String> moduleKeys, final PatchIndex index, PatchJournal journal, ExecutorService verifier) {
+        listener.message("Examining " + dependency);
+        final long start = System.nanoTime();
+        final JarMetrics metrics = new JarMetrics();
+
+        final String dependencyPath = ideFolder + dependency;
+        final File jar = new File(dependencyPath);
+        JarPatchResult.Status status;
+        if (!jar.isFile()) {
+            listener.message("Not a file: " + dependency);
+            status = JarPatchResult.Status.MISSING;
+        } else if (index != null && index.isPatched(dependency, jar, moduleKeys)) {
+            listener.message("Already patched: " + dependency);
+            status = JarPatchResult.Status.SKIPPED;
+        } else {
+            final PatchCache.Slot slot = new PatchCache.Slot();
+            try {
+                status = FriendlizerUtilities.copyingModuleJarFile(dependencyPath, moduleKeys, options, listener,
+                        metrics, journal, slot);
+            } catch (RuntimeException e) {
+                listener.message("Patching " + dependency + " error: " + e);
+                status = JarPatchResult.Status.FAILED;
+            }
+
+            if (status == null) {
+                Callable<JarPatchResult> replace = new Callable<JarPatchResult>() {
+                    @Override
+                    public JarPatchResult call() {
+                        JarPatchResult.Status status;
+                        try {
+                            status = FriendlizerUtilities.replacingModuleJarFile(dependencyPath, moduleKeys, options,
+                                    listener, metrics, slot);
+                        } catch (RuntimeException e) {
+                            listener.message("Patching " + dependency + " error: " + e);
+                            status = JarPatchResult.Status.FAILED;
+                        }
+                        return finish(dependency, jar, moduleKeys, status, index, metrics, start);
+                    }
+                };
+                if (verifier != null) {
+                    return verifier.submit(replace);
+                }
+                return done(replace);
+            }
+        }
+        return done(finish(dependency, jar, moduleKeys, status, index, metrics, start));
+    }
+
+    /**
+     * Record the outcome of a jar in the index and report it
+     */
+    private JarPatchResult finish(String dependency, File jar, Set<String> moduleKeys, JarPatchResult.Status status,
+            PatchIndex index, JarMetrics metrics, long start) {
+        if (index != null && status != JarPatchResult.Status.MISSING && status != JarPatchResult.Status.SKIPPED) {
+            if (status == JarPatchResult.Status.FAILED) {
+                index.remove(dependency);
+            } else {
+                try {
+                    index.record(dependency, jar, moduleKeys);
+                } catch (IOException e) {
+                    index.remove(dependency);
+                }
+            }
+        }
+
+        metrics.setTotalNanos(System.nanoTime() - start);
+        JarPatchResult result = new JarPatchResult(dependency, status, metrics);
+        listener.jarFinished(result);
+        return result;
+    }
+
+    /**
+     * Future of a result already known
+     */
+    private static <T> Future<T> done(final T result) {
+        return done(new Callable<T>() {
+            @Override
+            public T call() {
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Run a task on the calling thread
+     */
+    private static <T> Future<T> done(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<T>(task);
+        future.run();
+        return future;
+    }
+
+    /**
+     * Wait for a started jar to finish, a jar is never left half patched
+     */
+    private static <T> T waitFor(Future<T> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // Jar tasks report errors in their results
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Work done on one jar of a plan
+     */
+    private interface JarTask<T> {
+
+        T run(String ideFolder, String dependency, Set<String> moduleKeys);
+    }
+}
@@ -0,0 +1,361 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Patch many NetBeans installations in one run. Installations are grouped by
+ * the disk (file store) they are on; the jars of all installations of a disk
+ * share one pool of workers, one jar at a time on a spinning disk and the
+ * parallelism on other devices, and disks are patched at the same time. The
+ * fleet then takes about the time of its busiest disk instead of the sum of
+ * its installations.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class PatchFleet {
+
+    private static final String GLOB_CHARACTERS = "*?[{";
+    private final PatchOptions options;
+    private final PatchListener listener;
+    private final List<PatchEngine> engines = new ArrayList<PatchEngine>();
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    public PatchFleet(PatchOptions options, PatchListener listener) {
+        this.options = options;
+        this.listener = listener;
+    }
+
+    /**
+     * Cancel the running fleet, see PatchEngine.cancel
+     */
+    public void cancel() {
+        synchronized (engines) {
+            cancelled.set(true);
+            for (PatchEngine engine : engines) {
+                engine.cancel();
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * Installation folders of folders and glob patterns. A pattern matches
+     * folders, "/opt/netbeans-*" for instance; an installation reached twice
+     * is only kept once.
+     *
+     * @param roots installation folders or glob patterns of them
+     * @param listener told about patterns matching nothing
+     * @return installation folders, in the order of the roots, sorted by
+     * name for each pattern
+     * @throws IOException a pattern folder can not be read
+     */
+    public static List<String> expand(Collection<String> roots, PatchListener listener) throws IOException {
+        Map<Path, String> folders = new LinkedHashMap<Path, String>();
+        for (String root : roots) {
+            List<String> matches = isPattern(root) ? match(root) : Collections.singletonList(root);
+            if (matches.isEmpty()) {
+                listener.message("No NetBeans folder matches " + root);
+            }
+            for (String folder : matches) {
+                Path path = Paths.get(folder).toAbsolutePath().normalize();
+                if (Files.exists(path)) {
+                    path = path.toRealPath();
+                }
+                if (!folders.containsKey(path)) {
+                    folders.put(path, folder);
+                }
+            }
+        }
+        return new ArrayList<String>(folders.values());
+    }
+
+    /**
+     * @param root installation folder or glob pattern
+     * @return true if the root is a pattern
+     */
+    public static boolean isPattern(String root) {
+        for (char c : GLOB_CHARACTERS.toCharArray()) {
+            if (root.indexOf(c) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Folders matching a glob pattern. The folders before the first segment
+     * with a glob character are walked, down to the depth of the pattern.
+     */
+    private static List<String> match(String pattern) throws IOException {
+        String[] segments = pattern.replace(File.separatorChar, '/').split("/");
+        int first = 0;
+        while (!isPattern(segments[first])) {
+            first++;
+        }
+        StringBuilder base = new StringBuilder();
+        StringBuilder glob = new StringBuilder();
+        for (int i = 0; i < segments.length; i++) {
+            StringBuilder part = i < first ? base : glob;
+            part.append(i == 0 || i == first ? "" : "/").append(segments[i]);
+        }
+        final Path baseFolder = Paths.get(first == 0 ? "." : base.length() == 0 ? "/" : base.toString());
+        final List<String> matches = new ArrayList<String>();
+        if (!Files.isDirectory(baseFolder)) {
+            return matches;
+        }
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        int depth = glob.indexOf("**") >= 0 ? Integer.MAX_VALUE : segments.length - first;
+        Files.walkFileTree(baseFolder, EnumSet.noneOf(FileVisitOption.class), depth, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(baseFolder) && matcher.matches(baseFolder.relativize(dir))) {
+                    matches.add(display(dir));
+                    // Installations do not contain other installations
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                // Folders at the pattern depth are visited as files
+                if (attrs.isDirectory() && matcher.matches(baseFolder.relativize(file))) {
+                    matches.add(display(file));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+
+            private String display(Path folder) {
+                return folder.startsWith(".") ? folder.subpath(1, folder.getNameCount()).toString()
+                        : folder.toString();
+            }
+        });
+        Collections.sort(matches);
+        return matches;
+    }
+
+    /**
+     * Patch all jars of a plan in every installation. Each installation gets
+     * its own journal, index and report, as a run of PatchEngine.
+     *
+     * @param netbeansPaths NetBeans installation folders, as given by expand
+     * @param plan jars and module keys to add to their friend lists
+     * @return one run per installation with the consolidated totals
+     */
+    public FleetRun patch(List<String> netbeansPaths, final PatchPlan plan) {
+        netbeansPaths = new ArrayList<String>(new LinkedHashSet<String>(netbeansPaths));
+        long startTime = System.currentTimeMillis();
+        long start = System.nanoTime();
+        Map<Object, List<String>> devices = groupByDevice(netbeansPaths);
+        listener.message(netbeansPaths.size() + " NetBeans installations on " + devices.size() + " disks");
+
+        Map<String, Future<PatchRun>> runs = new LinkedHashMap<String, Future<PatchRun>>();
+        List<ExecutorService> pools = new ArrayList<ExecutorService>();
+        try {
+            for (Map.Entry<Object, List<String>> device : devices.entrySet()) {
+                int slots = getSlots(device.getKey());
+                listener.message(device.getKey() + ": " + device.getValue().size() + " installations, " + slots
+                        + " jars at a time");
+                final PatchOptions deviceOptions = PatchOptions.copyOf(options);
+                deviceOptions.setParallelism(slots);
+                final ExecutorService workers = Executors.newFixedThreadPool(slots);
+                pools.add(workers);
+                // As many installations as workers, so the tail of one keeps
+                // the disk busy with the jars of the next
+                ExecutorService installations = Executors.newFixedThreadPool(
+                        Math.min(slots, device.getValue().size()));
+                pools.add(installations);
+                for (final String netbeansPath : device.getValue()) {
+                    runs.put(netbeansPath, installations.submit(new Callable<PatchRun>() {
+                        @Override
+                        public PatchRun call() {
+                            PatchEngine engine = new PatchEngine(deviceOptions,
+                                    new InstallationListener(netbeansPath, listener), workers);
+                            synchronized (engines) {
+                                if (cancelled.get()) {
+                                    engine.cancel();
+                                }
+                                engines.add(engine);
+                            }
+                            return engine.patch(netbeansPath, plan);
+                        }
+                    }));
+                }
+            }
+
+            List<PatchRun> results = new ArrayList<PatchRun>();
+            for (String netbeansPath : netbeansPaths) {
+                results.add(waitFor(runs.get(netbeansPath)));
+            }
+            FleetRun fleet = new FleetRun(startTime, System.nanoTime() - start, devices.size(), results);
+            listener.message(fleet.getSummary());
+            listener.runFinished(fleet.getTotal());
+            return fleet;
+        } finally {
+            for (ExecutorService pool : pools) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Installations by file store, an installation that can not be read is
+     * kept alone and reported by its run
+     */
+    private static Map<Object, List<String>> groupByDevice(List<String> netbeansPaths) {
+        Map<Object, List<String>> devices = new LinkedHashMap<Object, List<String>>();
+        for (String netbeansPath : netbeansPaths) {
+            Object device;
+            try {
+                device = Files.getFileStore(Paths.get(netbeansPath));
+            } catch (IOException e) {
+                device = netbeansPath;
+            } catch (InvalidPathException e) {
+                device = netbeansPath;
+            }
+            List<String> installations = devices.get(device);
+            if (installations == null) {
+                installations = new ArrayList<String>();
+                devices.put(device, installations);
+            }
+            installations.add(netbeansPath);
+        }
+        return devices;
+    }
+
+    /**
+     * Number of jars patched at the same time on a device
+     */
+    private int getSlots(Object device) {
+        if (options.getDeviceParallelism() > 0) {
+            return options.getDeviceParallelism();
+        }
+        return device instanceof FileStore && isRotational((FileStore) device) ? 1 : options.getParallelism();
+    }
+
+    /**
+     * Whether a file store is on a spinning disk, read from the Linux block
+     * device queue of its device (the partition queue or its disk queue). Other
+     * systems and unknown devices are taken as solid state.
+     *
+     * @param store file store
+     * @return true if the device is known to be rotational
+     */
+    static boolean isRotational(FileStore store) {
+        if (!store.name().startsWith("/dev/")) {
+            return false;
+        }
+        try {
+            Path device = Paths.get(store.name()).toRealPath();
+            Path block = Paths.get("/sys/class/block", device.getFileName().toString()).toRealPath();
+            for (Path folder : new Path[]{block, block.getParent()}) {
+                Path rotational = folder.resolve("queue/rotational");
+                if (Files.isReadable(rotational)) {
+                    return new String(Files.readAllBytes(rotational), ZipDirectory.UTF8).trim().equals("1");
+                }
+            }
+        } catch (IOException e) {
+            // Not a Linux block device
+        } catch (InvalidPathException e) {
+            // Not a Linux block device
+        }
+        return false;
+    }
+
+    /**
+     * Wait for an installation to finish, installations are never left half
+     * patched
+     */
+    private static PatchRun waitFor(Future<PatchRun> run) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return run.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Prefix the messages of an installation with its folder, the totals of an
+     * installation are a message; the fleet reports the consolidated totals.
+     */
+    private static class InstallationListener implements PatchListener {
+
+        private final String netbeansPath;
+        private final PatchListener listener;
+
+        InstallationListener(String netbeansPath, PatchListener listener) {
+            this.netbeansPath = netbeansPath;
+            this.listener = listener;
+        }
+
+        @Override
+        public void message(String message) {
+            listener.message("[" + netbeansPath + "] " + message);
+        }
+
+        @Override
+        public void runStarted(String netbeansPath, int jars) {
+            listener.runStarted(netbeansPath, jars);
+        }
+
+        @Override
+        public void jarStarted(String dependency) {
+            listener.jarStarted(dependency);
+        }
+
+        @Override
+        public void jarFinished(JarPatchResult result) {
+            listener.jarFinished(result);
+        }
+
+        @Override
+        public void runFinished(PatchRun run) {
+            message(run.getSummary());
+        }
+    }
+}
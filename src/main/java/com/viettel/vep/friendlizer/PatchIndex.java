@@ -0,0 +1,216 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Fingerprints of already patched jars of a NetBeans installation, stored in
+ * the installation folder. A jar whose size and modification time did not
+ * change and which already has all wanted friend keys is skipped without
+ * being opened.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class PatchIndex {
+
+    static final String INDEX_FILE = ".vep-friendlizer.index";
+    private static final String SEPARATOR = ";";
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private PatchIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load the index of an installation, an empty index if there is none or it
+     * can not be read.
+     *
+     * @param netbeansFolder NetBeans installation folder
+     * @return index
+     */
+    public static PatchIndex load(File netbeansFolder) {
+        PatchIndex index = new PatchIndex(new File(netbeansFolder, INDEX_FILE));
+        if (!index.file.isFile()) {
+            return index;
+        }
+
+        Properties properties = new Properties();
+        InputStream stream = null;
+        try {
+            stream = new FileInputStream(index.file);
+            properties.load(stream);
+        } catch (IOException e) {
+            return index;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        for (String dependency : properties.stringPropertyNames()) {
+            String[] values = properties.getProperty(dependency).split(SEPARATOR, -1);
+            if (values.length == 4) {
+                try {
+                    FileFingerprint fingerprint = new FileFingerprint(
+                            Long.parseLong(values[0]), Long.parseLong(values[1]), values[2]);
+                    Set<String> keys = new LinkedHashSet<String>();
+                    for (String key : values[3].split(",")) {
+                        if (!key.isEmpty()) {
+                            keys.add(key);
+                        }
+                    }
+                    index.entries.put(dependency, new Entry(fingerprint, keys));
+                } catch (NumberFormatException e) {
+                    // Ignore broken entry, the jar is examined again
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Check if a jar is known to have all the module keys
+     *
+     * @param dependency jar path relative to the installation
+     * @param jar jar file
+     * @param moduleKeys wanted module keys
+     * @return true if the jar does not need to be examined
+     */
+    public boolean isPatched(String dependency, File jar, Collection<String> moduleKeys) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(dependency);
+        }
+        if (entry == null || !entry.keys.containsAll(moduleKeys)) {
+            return false;
+        }
+        if (entry.fingerprint.isSameStat(jar)) {
+            return true;
+        }
+
+        // Touched but maybe not modified: compare content
+        if (jar.length() == entry.fingerprint.getSize()) {
+            try {
+                FileFingerprint fingerprint = FileFingerprint.of(jar);
+                if (fingerprint.getHash().equals(entry.fingerprint.getHash())) {
+                    synchronized (entries) {
+                        entries.put(dependency, new Entry(fingerprint, entry.keys));
+                    }
+                    return true;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record a jar which has all the module keys, or does not need them
+     *
+     * @param dependency jar path relative to the installation
+     * @param jar jar file
+     * @param moduleKeys module keys
+     * @throws IOException reading error
+     */
+    public void record(String dependency, File jar, Collection<String> moduleKeys) throws IOException {
+        FileFingerprint fingerprint = FileFingerprint.of(jar);
+        synchronized (entries) {
+            Entry old = entries.get(dependency);
+            Set<String> keys = new LinkedHashSet<String>(moduleKeys);
+            if (old != null && old.fingerprint.getHash().equals(fingerprint.getHash())) {
+                keys.addAll(old.keys);
+            }
+            entries.put(dependency, new Entry(fingerprint, keys));
+        }
+    }
+
+    /**
+     * @param dependency jar path relative to the installation
+     * @return content hash of the jar when it was last recorded, null if it
+     * is not in the index
+     */
+    public String getHash(String dependency) {
+        synchronized (entries) {
+            Entry entry = entries.get(dependency);
+            return entry == null ? null : entry.fingerprint.getHash();
+        }
+    }
+
+    /**
+     * Forget a jar, it is examined again on the next run
+     *
+     * @param dependency jar path relative to the installation
+     */
+    public void remove(String dependency) {
+        synchronized (entries) {
+            entries.remove(dependency);
+        }
+    }
+
+    /**
+     * Save the index in the installation folder
+     *
+     * @throws IOException writing error
+     */
+    public void save() throws IOException {
+        Properties properties = new Properties();
+        synchronized (entries) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                FileFingerprint fingerprint = entry.getValue().fingerprint;
+                String[] keys = entry.getValue().keys.toArray(new String[0]);
+                Arrays.sort(keys);
+                StringBuilder value = new StringBuilder();
+                value.append(fingerprint.getSize()).append(SEPARATOR)
+                        .append(fingerprint.getLastModified()).append(SEPARATOR)
+                        .append(fingerprint.getHash()).append(SEPARATOR);
+                for (int i = 0; i < keys.length; i++) {
+                    value.append(i == 0 ? "" : ",").append(keys[i]);
+                }
+                properties.setProperty(entry.getKey(), value.toString());
+            }
+        }
+
+        File temporary = new File(file.getPath() + ".tmp");
+        OutputStream stream = new FileOutputStream(temporary);
+        try {
+            properties.store(stream, "Module Friendlizer patched jars: size;mtime;sha1;keys");
+        } finally {
+            stream.close();
+        }
+        file.delete();
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Cannot rename " + temporary + " to " + file);
+        }
+    }
+
+    /**
+     * Index entry
+     */
+    private static class Entry {
+
+        private final FileFingerprint fingerprint;
+        private final Set<String> keys;
+
+        Entry(FileFingerprint fingerprint, Set<String> keys) {
+            this.fingerprint = fingerprint;
+            this.keys = keys;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rollback journal of a patch run. Before a jar is touched its original is
+ * kept as a hard link in the journal folder (or its size, for jars patched in
+ * place), and a record is forced to disk. Patched jars replace the originals
+ * by an atomic move, so a jar is always either the original or the patched
+ * one. A run that did not commit is rolled back on the next run; the last
+ * committed run can be rolled back until the next one starts. Originals are
+ * also kept in the backup store of the run, if any, which outlives the
+ * journal.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class PatchJournal {
+
+    static final String JOURNAL_FOLDER = ".vep-friendlizer";
+    private static final String JOURNAL_FILE = "journal";
+    private static final String SNAPSHOT_FOLDER = "snapshots";
+    private static final String SNAPSHOT = "snapshot";
+    private static final String APPEND = "append";
+    private static final String COMMIT = "commit";
+    private static final String SEPARATOR = "\t";
+    private final Path netbeansFolder;
+    private final Path snapshots;
+    private final FileChannel journal;
+    private final BackupStore backup;
+    private final AtomicInteger snapshotCount = new AtomicInteger();
+
+    private PatchJournal(Path netbeansFolder, FileChannel journal, BackupStore backup) {
+        this.netbeansFolder = netbeansFolder;
+        this.snapshots = netbeansFolder.resolve(JOURNAL_FOLDER).resolve(SNAPSHOT_FOLDER);
+        this.journal = journal;
+        this.backup = backup;
+    }
+
+    /**
+     * Start the journal of a new run. The journal of the previous run must
+     * have been recovered, it is discarded.
+     *
+     * @param netbeansFolder NetBeans installation folder
+     * @param backup backup store of the installation, null for none
+     * @return empty journal
+     * @throws IOException journal folder can not be written
+     */
+    public static PatchJournal begin(File netbeansFolder, BackupStore backup) throws IOException {
+        Path folder = netbeansFolder.toPath().toAbsolutePath();
+        discard(folder);
+        Files.createDirectories(folder.resolve(JOURNAL_FOLDER).resolve(SNAPSHOT_FOLDER));
+        FileChannel journal = FileChannel.open(folder.resolve(JOURNAL_FOLDER).resolve(JOURNAL_FILE),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return new PatchJournal(folder, journal, backup);
+    }
+
+    /**
+     * Roll back the last run if it did not commit, after a crash or a kill.
+     *
+     * @param netbeansFolder NetBeans installation folder
+     * @param listener receive progress messages
+     * @return restored jars relative to the installation, empty if the last
+     * run committed or there is no journal
+     * @throws IOException a jar can not be restored, the journal is kept
+     */
+    public static List<String> recover(File netbeansFolder, PatchListener listener) throws IOException {
+        Path folder = netbeansFolder.toPath().toAbsolutePath();
+        List<String[]> records = readRecords(folder);
+        if (records.isEmpty() || isCommitted(records)) {
+            return Collections.emptyList();
+        }
+        listener.message("Previous patch run did not finish, rolling it back");
+        return rollback(folder, records, listener);
+    }
+
+    /**
+     * Roll back the last run, committed or not
+     *
+     * @param netbeansFolder NetBeans installation folder
+     * @param listener receive progress messages
+     * @return restored jars relative to the installation
+     * @throws IOException a jar can not be restored, the journal is kept
+     */
+    public static List<String> rollback(File netbeansFolder, PatchListener listener) throws IOException {
+        Path folder = netbeansFolder.toPath().toAbsolutePath();
+        return rollback(folder, readRecords(folder), listener);
+    }
+
+    private static List<String> rollback(Path folder, List<String[]> records, PatchListener listener)
+            throws IOException {
+        List<String> restored = new ArrayList<String>();
+        Path snapshots = folder.resolve(JOURNAL_FOLDER).resolve(SNAPSHOT_FOLDER);
+        for (int i = records.size() - 1; i >= 0; i--) {
+            String[] record = records.get(i);
+            if (record.length != 3) {
+                continue;
+            }
+            Path jar = folder.resolve(record[2]);
+            if (SNAPSHOT.equals(record[0])) {
+                Path snapshot = snapshots.resolve(record[1]);
+                if (Files.exists(snapshot)) {
+                    move(snapshot, jar);
+                    restored.add(record[2]);
+                }
+                Files.deleteIfExists(jar.resolveSibling(
+                        jar.getFileName() + FriendlizerUtilities.SUBFIX_VEP_TOOL_TEMPLATE_ZIP_FILE));
+            } else if (APPEND.equals(record[0]) && Files.isRegularFile(jar)) {
+                long size = Long.parseLong(record[1]);
+                detach(jar);
+                FileChannel channel = FileChannel.open(jar, StandardOpenOption.WRITE);
+                try {
+                    if (channel.size() > size) {
+                        channel.truncate(size);
+                        channel.force(true);
+                        restored.add(record[2]);
+                    }
+                } finally {
+                    channel.close();
+                }
+            }
+        }
+        for (String dependency : restored) {
+            listener.message("Restored " + dependency);
+        }
+        discard(folder);
+        return restored;
+    }
+
+    private static List<String[]> readRecords(Path folder) throws IOException {
+        Path file = folder.resolve(JOURNAL_FOLDER).resolve(JOURNAL_FILE);
+        List<String[]> records = new ArrayList<String[]>();
+        if (!Files.isRegularFile(file)) {
+            return records;
+        }
+        BufferedReader reader = Files.newBufferedReader(file, ZipDirectory.UTF8);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    records.add(line.split(SEPARATOR, 3));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    private static boolean isCommitted(List<String[]> records) {
+        return COMMIT.equals(records.get(records.size() - 1)[0]);
+    }
+
+    /**
+     * Delete journal, then snapshots
+     */
+    private static void discard(Path folder) throws IOException {
+        Files.deleteIfExists(folder.resolve(JOURNAL_FOLDER).resolve(JOURNAL_FILE));
+        Path snapshots = folder.resolve(JOURNAL_FOLDER).resolve(SNAPSHOT_FOLDER);
+        if (Files.isDirectory(snapshots)) {
+            DirectoryStream<Path> stream = Files.newDirectoryStream(snapshots);
+            try {
+                for (Path snapshot : stream) {
+                    Files.delete(snapshot);
+                }
+            } finally {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * Keep the original of a jar about to be replaced. A hard link costs no
+     * copy, it is only copied where links are not supported.
+     *
+     * @param jar jar file, still the original
+     * @param hash SHA-1 of the jar, null if it was not computed
+     * @throws IOException snapshot not taken, the jar must not be replaced
+     */
+    public void snapshot(File jar, String hash) throws IOException {
+        if (backup != null) {
+            backup.backup(getDependency(jar), jar, hash, false);
+        }
+        String name = snapshotCount.incrementAndGet() + ".jar";
+        Path snapshot = snapshots.resolve(name);
+        try {
+            Files.createLink(snapshot, jar.toPath());
+        } catch (UnsupportedOperationException e) {
+            Files.copy(jar.toPath(), snapshot, StandardCopyOption.COPY_ATTRIBUTES);
+        } catch (FileSystemException e) {
+            Files.copy(jar.toPath(), snapshot, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+        write(SNAPSHOT, name, jar);
+    }
+
+    /**
+     * Keep the original size of a jar about to be patched in place: appended
+     * bytes are truncated on rollback.
+     *
+     * @param jar jar file, still the original
+     * @param hash SHA-1 of the jar, null if it was not computed
+     * @throws IOException record not written, the jar must not be modified
+     */
+    public void recordAppend(File jar, String hash) throws IOException {
+        if (backup != null) {
+            backup.backup(getDependency(jar), jar, hash, true);
+        }
+        write(APPEND, String.valueOf(jar.length()), jar);
+    }
+
+    /**
+     * Mark the run as finished: it is not rolled back on the next run
+     *
+     * @throws IOException journal can not be written
+     */
+    public void commit() throws IOException {
+        try {
+            write(COMMIT);
+        } finally {
+            journal.close();
+        }
+    }
+
+    private void write(String type, String value, File jar) throws IOException {
+        write(type + SEPARATOR + value + SEPARATOR + getDependency(jar));
+    }
+
+    private String getDependency(File jar) {
+        return netbeansFolder.relativize(jar.toPath().toAbsolutePath()).toString().replace('\\', '/');
+    }
+
+    private synchronized void write(String record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((record + "\n").getBytes(ZipDirectory.UTF8));
+        while (buffer.hasRemaining()) {
+            journal.write(buffer);
+        }
+        journal.force(false);
+    }
+
+    /**
+     * Give a file its own copy if it is hard linked elsewhere, to an original
+     * of the backup store for instance, before it is written in place. File
+     * systems without link counts are taken as having no links.
+     *
+     * @param file file about to be written in place
+     * @throws IOException copy error, the file is left as it was
+     */
+    static void detach(Path file) throws IOException {
+        Object links;
+        try {
+            links = Files.getAttribute(file, "unix:nlink");
+        } catch (UnsupportedOperationException e) {
+            return;
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        if (links instanceof Integer && (Integer) links > 1) {
+            Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try {
+                Files.copy(file, temporary, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                move(temporary, file);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    /**
+     * Replace a file by another one atomically where the file system allows it
+     *
+     * @param source new file, moved
+     * @param target replaced file
+     * @throws IOException move error, the target is left as it was
+     */
+    static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.viettel.vep.friendlizer;
+
+/**
+ * Receive what the patch engine does. Methods are called from the patching
+ * worker threads, implementations must be thread safe.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public interface PatchListener {
+
+    /**
+     * Listener ignoring everything
+     */
+    PatchListener NONE = new PatchListener() {
+        @Override
+        public void message(String message) {
+        }
+
+        @Override
+        public void runStarted(String netbeansPath, int jars) {
+        }
+
+        @Override
+        public void jarStarted(String dependency) {
+        }
+
+        @Override
+        public void jarFinished(JarPatchResult result) {
+        }
+
+        @Override
+        public void runFinished(PatchRun run) {
+        }
+    };
+
+    /**
+     * Free text progress message
+     *
+     * @param message message to be logged
+     */
+    void message(String message);
+
+    /**
+     * A run starts, its plan resolved: friend only jars of the dependency
+     * graph are counted
+     *
+     * @param netbeansPath NetBeans installation folder
+     * @param jars number of jars the run will finish
+     */
+    void runStarted(String netbeansPath, int jars);
+
+    /**
+     * A worker starts examining a jar
+     *
+     * @param dependency jar path relative to the NetBeans folder
+     */
+    void jarStarted(String dependency);
+
+    /**
+     * A jar is done, successfully or not
+     *
+     * @param result outcome and metrics of the jar
+     */
+    void jarFinished(JarPatchResult result);
+
+    /**
+     * All jars of a run are done
+     *
+     * @param run results and totals of the run
+     */
+    void runFinished(PatchRun run);
+}
@@ -0,0 +1,346 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.zip.Deflater;
+
+/**
+ * Patching options, loaded from the patch.* keys of the configuration
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class PatchOptions {
+
+    private static final String IN_PLACE_KEY = "patch.inplace";
+    private static final String PARALLELISM_KEY = "patch.parallelism";
+    private static final String INDEX_KEY = "patch.index";
+    private static final String REPORT_KEY = "patch.report";
+    private static final String RECOMPRESS_KEY = "patch.recompress";
+    private static final String COMPRESSION_LEVEL_KEY = "patch.compression.level";
+    private static final String VERIFY_KEY = "patch.verify";
+    private static final String BACKUP_KEY = "patch.backup";
+    private static final String BACKUP_FOLDER_KEY = "patch.backup.folder";
+    private static final String CACHE_KEY = "patch.cache";
+    private static final String CACHE_FOLDER_KEY = "patch.cache.folder";
+    private static final String CACHE_SIZE_KEY = "patch.cache.size";
+    private static final String CACHES_KEY = "patch.caches";
+    private static final String WATCH_DELAY_KEY = "patch.watch.delay";
+    private static final String DEVICE_PARALLELISM_KEY = "patch.device.parallelism";
+    private boolean inPlace;
+    private boolean useIndex = true;
+    private boolean report = true;
+    private boolean recompress;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private boolean verify = true;
+    private boolean backup = true;
+    private File backupFolder = new File(System.getProperty("user.home"), ".vep-friendlizer/backups");
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private boolean cache = true;
+    private File cacheFolder = new File(System.getProperty("user.home"), ".vep-friendlizer/patched");
+    private long cacheSize = 1024L * 1024 * 1024;
+    private boolean invalidateCaches = true;
+    private long watchDelay = 2000;
+    private int deviceParallelism;
+
+    public PatchOptions() {
+    }
+
+    /**
+     * @param options options to copy
+     * @return independent copy of the options
+     */
+    public static PatchOptions copyOf(PatchOptions options) {
+        PatchOptions copy = new PatchOptions();
+        copy.inPlace = options.inPlace;
+        copy.useIndex = options.useIndex;
+        copy.report = options.report;
+        copy.recompress = options.recompress;
+        copy.compressionLevel = options.compressionLevel;
+        copy.verify = options.verify;
+        copy.backup = options.backup;
+        copy.backupFolder = options.backupFolder;
+        copy.parallelism = options.parallelism;
+        copy.cache = options.cache;
+        copy.cacheFolder = options.cacheFolder;
+        copy.cacheSize = options.cacheSize;
+        copy.invalidateCaches = options.invalidateCaches;
+        copy.watchDelay = options.watchDelay;
+        copy.deviceParallelism = options.deviceParallelism;
+        return copy;
+    }
+
+    /**
+     * Read options from configuration properties
+     *
+     * @param properties configuration properties
+     * @return options, default values for missing keys
+     */
+    public static PatchOptions fromProperties(Properties properties) {
+        PatchOptions options = new PatchOptions();
+        options.setInPlace(Boolean.parseBoolean(properties.getProperty(IN_PLACE_KEY, "false").trim()));
+        options.setUseIndex(Boolean.parseBoolean(properties.getProperty(INDEX_KEY, "true").trim()));
+        options.setReport(Boolean.parseBoolean(properties.getProperty(REPORT_KEY, "true").trim()));
+        options.setRecompress(Boolean.parseBoolean(properties.getProperty(RECOMPRESS_KEY, "false").trim()));
+        String compressionLevel = properties.getProperty(COMPRESSION_LEVEL_KEY, "").trim();
+        if (!compressionLevel.isEmpty()) {
+            options.setCompressionLevel(Integer.parseInt(compressionLevel));
+        }
+        options.setVerify(Boolean.parseBoolean(properties.getProperty(VERIFY_KEY, "true").trim()));
+        options.setBackup(Boolean.parseBoolean(properties.getProperty(BACKUP_KEY, "true").trim()));
+        String backupFolder = properties.getProperty(BACKUP_FOLDER_KEY, "").trim();
+        if (!backupFolder.isEmpty()) {
+            options.setBackupFolder(new File(backupFolder));
+        }
+        String parallelism = properties.getProperty(PARALLELISM_KEY, "").trim();
+        if (!parallelism.isEmpty()) {
+            options.setParallelism(Integer.parseInt(parallelism));
+        }
+        options.setCache(Boolean.parseBoolean(properties.getProperty(CACHE_KEY, "true").trim()));
+        String cacheFolder = properties.getProperty(CACHE_FOLDER_KEY, "").trim();
+        if (!cacheFolder.isEmpty()) {
+            options.setCacheFolder(new File(cacheFolder));
+        }
+        String cacheSize = properties.getProperty(CACHE_SIZE_KEY, "").trim();
+        if (!cacheSize.isEmpty()) {
+            options.setCacheSize(Long.parseLong(cacheSize) * 1024 * 1024);
+        }
+        options.setInvalidateCaches(Boolean.parseBoolean(properties.getProperty(CACHES_KEY, "true").trim()));
+        String watchDelay = properties.getProperty(WATCH_DELAY_KEY, "").trim();
+        if (!watchDelay.isEmpty()) {
+            options.setWatchDelay(Long.parseLong(watchDelay));
+        }
+        String deviceParallelism = properties.getProperty(DEVICE_PARALLELISM_KEY, "").trim();
+        if (!deviceParallelism.isEmpty()) {
+            options.setDeviceParallelism(Integer.parseInt(deviceParallelism));
+        }
+        return options;
+    }
+
+    /**
+     * In place mode: the new manifest and central directory are appended to
+     * the jar instead of writing a complete copy of it. Readers using the
+     * central directory (JarFile, NetBeans) see the new manifest, sequential
+     * readers (JarInputStream) still see the old one.
+     *
+     * @return true if jars are patched in place
+     */
+    public boolean isInPlace() {
+        return inPlace;
+    }
+
+    public void setInPlace(boolean inPlace) {
+        this.inPlace = inPlace;
+    }
+
+    /**
+     * Number of jars patched at the same time, the number of processors by
+     * default.
+     *
+     * @return maximum number of patching threads
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Use the installation index to skip jars already patched
+     *
+     * @return true if the index is used and updated
+     */
+    public boolean isUseIndex() {
+        return useIndex;
+    }
+
+    public void setUseIndex(boolean useIndex) {
+        this.useIndex = useIndex;
+    }
+
+    /**
+     * Write a JSON report of every run in the NetBeans folder
+     *
+     * @return true if vep-friendlizer-report.json is written
+     */
+    public boolean isReport() {
+        return report;
+    }
+
+    public void setReport(boolean report) {
+        this.report = report;
+    }
+
+    /**
+     * Recompress every entry of the patched copies instead of copying their
+     * compressed bytes, for example to change the compression level. Entries
+     * of all jars are deflated on one pool of one thread per processor.
+     *
+     * @return true if entries are recompressed
+     */
+    public boolean isRecompress() {
+        return recompress;
+    }
+
+    public void setRecompress(boolean recompress) {
+        this.recompress = recompress;
+    }
+
+    /**
+     * Deflate level of recompressed entries, the Deflater default by default
+     *
+     * @return 0 to 9, or -1 for the default level
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be -1 to 9: " + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Verify every patched copy against its original before it replaces it,
+     * on a separate pool while the next jars are patched. A jar patched in
+     * place is verified right after the append and truncated back to its
+     * original size if it fails.
+     *
+     * @return true if patched copies are verified
+     */
+    public boolean isVerify() {
+        return verify;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Keep the original of every patched jar in the backup store, shared by
+     * all installations
+     *
+     * @return true if originals are backed up
+     */
+    public boolean isBackup() {
+        return backup;
+    }
+
+    public void setBackup(boolean backup) {
+        this.backup = backup;
+    }
+
+    /**
+     * Backup store folder, ~/.vep-friendlizer/backups by default
+     *
+     * @return backup store folder
+     */
+    public File getBackupFolder() {
+        return backupFolder;
+    }
+
+    public void setBackupFolder(File backupFolder) {
+        this.backupFolder = backupFolder;
+    }
+
+    /**
+     * Keep every patched copy in a cache shared by all installations, so an
+     * identical jar patched with the same keys is copied from the cache. Not
+     * used in place.
+     *
+     * @return true if patched copies are cached
+     */
+    public boolean isCache() {
+        return cache;
+    }
+
+    public void setCache(boolean cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Patched copies cache folder, ~/.vep-friendlizer/patched by default
+     *
+     * @return cache folder
+     */
+    public File getCacheFolder() {
+        return cacheFolder;
+    }
+
+    public void setCacheFolder(File cacheFolder) {
+        this.cacheFolder = cacheFolder;
+    }
+
+    /**
+     * Maximum size of the patched copies cache, 1 GB by default; the copies
+     * used least recently are evicted after each run. patch.cache.size is in
+     * megabytes.
+     *
+     * @return maximum cache size in bytes
+     */
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(long cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative: " + cacheSize);
+        }
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Delete the cached manifests of the NetBeans user directories of an
+     * installation once its jars are patched or restored
+     *
+     * @return true if module caches are invalidated
+     */
+    public boolean isInvalidateCaches() {
+        return invalidateCaches;
+    }
+
+    public void setInvalidateCaches(boolean invalidateCaches) {
+        this.invalidateCaches = invalidateCaches;
+    }
+
+    /**
+     * Quiet time after the last change of a watched jar before the changed
+     * jars are patched, 2 seconds by default
+     *
+     * @return delay in milliseconds
+     */
+    public long getWatchDelay() {
+        return watchDelay;
+    }
+
+    public void setWatchDelay(long watchDelay) {
+        if (watchDelay < 0) {
+            throw new IllegalArgumentException("Watch delay must not be negative: " + watchDelay);
+        }
+        this.watchDelay = watchDelay;
+    }
+
+    /**
+     * Number of jars patched at the same time on one disk when patching a
+     * fleet of installations. 0 by default: one jar at a time on spinning
+     * disks, the parallelism on other devices.
+     *
+     * @return maximum number of patching threads per device, 0 for automatic
+     */
+    public int getDeviceParallelism() {
+        return deviceParallelism;
+    }
+
+    public void setDeviceParallelism(int deviceParallelism) {
+        if (deviceParallelism < 0) {
+            throw new IllegalArgumentException("Device parallelism must not be negative: " + deviceParallelism);
+        }
+        this.deviceParallelism = deviceParallelism;
+    }
+}
@@ -0,0 +1,109 @@
+package com.viettel.vep.friendlizer;
+
+import com.viettel.vep.friendlizer.ModuleConfiguration.Module;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Patch plan: every dependency jar with all module keys to add to its
+ * friend list, so that each jar is rewritten only once.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class PatchPlan {
+
+    private final Map<String, Set<String>> friendKeys = new LinkedHashMap<String, Set<String>>();
+    private final Map<String, Set<String>> transitiveKeys = new LinkedHashMap<String, Set<String>>();
+
+    public PatchPlan() {
+    }
+
+    /**
+     * Invert module dependencies into a jar to module keys plan
+     *
+     * @param modules configured modules
+     * @return plan, jars in configuration order
+     */
+    public static PatchPlan of(Module... modules) {
+        PatchPlan plan = new PatchPlan();
+        for (Module module : modules) {
+            for (String dependency : module.getDependences()) {
+                if (module.isTransitive()) {
+                    plan.addTransitive(dependency, module.getKey());
+                } else {
+                    plan.add(dependency, module.getKey());
+                }
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Add a module key to the friend list of a jar
+     *
+     * @param dependency jar path relative to NetBeans folder
+     * @param moduleKey module key
+     */
+    public void add(String dependency, String moduleKey) {
+        String jar = dependency.trim();
+        if (jar.isEmpty()) {
+            return;
+        }
+        Set<String> keys = friendKeys.get(jar);
+        if (keys == null) {
+            keys = new LinkedHashSet<String>();
+            friendKeys.put(jar, keys);
+        }
+        keys.add(moduleKey);
+    }
+
+    /**
+     * Add a module key to the friend list of a jar and of all friend only
+     * modules it depends on, directly or not
+     *
+     * @param dependency jar path relative to NetBeans folder, or module code
+     * name
+     * @param moduleKey module key
+     */
+    public void addTransitive(String dependency, String moduleKey) {
+        add(dependency, moduleKey);
+        String jar = dependency.trim();
+        if (jar.isEmpty()) {
+            return;
+        }
+        Set<String> keys = transitiveKeys.get(jar);
+        if (keys == null) {
+            keys = new LinkedHashSet<String>();
+            transitiveKeys.put(jar, keys);
+        }
+        keys.add(moduleKey);
+    }
+
+    public Set<String> getDependencies() {
+        return Collections.unmodifiableSet(friendKeys.keySet());
+    }
+
+    public Set<String> getFriendKeys(String dependency) {
+        Set<String> keys = friendKeys.get(dependency);
+        return keys == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(keys);
+    }
+
+    /**
+     * @return module keys also wanted by the dependencies of a jar
+     */
+    public Set<String> getTransitiveKeys(String dependency) {
+        Set<String> keys = transitiveKeys.get(dependency);
+        return keys == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(keys);
+    }
+
+    public boolean isEmpty() {
+        return friendKeys.isEmpty();
+    }
+
+    public int size() {
+        return friendKeys.size();
+    }
+}
@@ -0,0 +1,132 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Machine readable JSON report of a patch run, written next to the
+ * installation
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class PatchReport {
+
+    static final String REPORT_FILE = "vep-friendlizer-report.json";
+
+    /**
+     * Write the report of a run in its NetBeans folder
+     *
+     * @param run patch run
+     * @return report file
+     * @throws IOException writing error
+     */
+    public static File write(PatchRun run) throws IOException {
+        File report = new File(run.getNetbeansPath(), REPORT_FILE);
+        write(run, report);
+        return report;
+    }
+
+    /**
+     * Write the report of a run
+     *
+     * @param run patch run
+     * @param report report file
+     * @throws IOException writing error
+     */
+    public static void write(PatchRun run, File report) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(report), ZipDirectory.UTF8);
+        try {
+            writer.write(toJson(run));
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * JSON form of a run
+     *
+     * @param run patch run
+     * @return JSON object
+     */
+    public static String toJson(PatchRun run) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"netbeansPath\": ").append(quote(run.getNetbeansPath())).append(",\n");
+        json.append("  \"startTime\": ").append(run.getStartTime()).append(",\n");
+        json.append("  \"wallMillis\": ").append(millis(run.getWallNanos())).append(",\n");
+        json.append("  \"successful\": ").append(run.isSuccessful()).append(",\n");
+        json.append("  \"totals\": {\n");
+        json.append("    \"jars\": ").append(run.getResults().size()).append(",\n");
+        for (Map.Entry<JarPatchResult.Status, Integer> count : run.getStatusCounts().entrySet()) {
+            json.append("    ").append(quote(count.getKey().name().toLowerCase(Locale.ENGLISH))).append(": ")
+                    .append(count.getValue()).append(",\n");
+        }
+        json.append("    \"bytesRead\": ").append(run.getBytesRead()).append(",\n");
+        json.append("    \"bytesWritten\": ").append(run.getBytesWritten()).append("\n");
+        json.append("  },\n");
+        json.append("  \"jars\": [");
+        String separator = "\n";
+        for (JarPatchResult result : run.getResults()) {
+            JarMetrics metrics = result.getMetrics();
+            json.append(separator).append("    {");
+            json.append("\"dependency\": ").append(quote(result.getDependency()));
+            json.append(", \"status\": ").append(quote(result.getStatus().name()));
+            json.append(", \"openMillis\": ").append(millis(metrics.getOpenNanos()));
+            json.append(", \"manifestMillis\": ").append(millis(metrics.getManifestNanos()));
+            json.append(", \"copyMillis\": ").append(millis(metrics.getCopyNanos()));
+            json.append(", \"verifyMillis\": ").append(millis(metrics.getVerifyNanos()));
+            json.append(", \"replaceMillis\": ").append(millis(metrics.getReplaceNanos()));
+            json.append(", \"totalMillis\": ").append(millis(metrics.getTotalNanos()));
+            json.append(", \"entriesCopied\": ").append(metrics.getEntriesCopied());
+            json.append(", \"bytesRead\": ").append(metrics.getBytesRead());
+            json.append(", \"bytesWritten\": ").append(metrics.getBytesWritten());
+            json.append(", \"bytesVerified\": ").append(metrics.getBytesVerified());
+            json.append("}");
+            separator = ",\n";
+        }
+        json.append("\n  ]\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.valueOf(nanos / 1000 / 1000.0);
+    }
+
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2);
+        quoted.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
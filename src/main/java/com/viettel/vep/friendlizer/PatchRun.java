@@ -0,0 +1,110 @@
+package com.viettel.vep.friendlizer;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Results of patching the jars of one NetBeans installation
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class PatchRun {
+
+    private final String netbeansPath;
+    private final long startTime;
+    private final long wallNanos;
+    private final List<JarPatchResult> results;
+
+    public PatchRun(String netbeansPath, long startTime, long wallNanos, List<JarPatchResult> results) {
+        this.netbeansPath = netbeansPath;
+        this.startTime = startTime;
+        this.wallNanos = wallNanos;
+        this.results = Collections.unmodifiableList(results);
+    }
+
+    public String getNetbeansPath() {
+        return netbeansPath;
+    }
+
+    /**
+     * @return start of the run, in milliseconds since the epoch
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    /**
+     * @return one result per jar, in plan order
+     */
+    public List<JarPatchResult> getResults() {
+        return results;
+    }
+
+    /**
+     * @return false if any jar failed or was cancelled
+     */
+    public boolean isSuccessful() {
+        for (JarPatchResult result : results) {
+            if (result.isFailed() || result.getStatus() == JarPatchResult.Status.CANCELLED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of jars for each status, all statuses included
+     */
+    public Map<JarPatchResult.Status, Integer> getStatusCounts() {
+        Map<JarPatchResult.Status, Integer> counts =
+                new EnumMap<JarPatchResult.Status, Integer>(JarPatchResult.Status.class);
+        for (JarPatchResult.Status status : JarPatchResult.Status.values()) {
+            counts.put(status, 0);
+        }
+        for (JarPatchResult result : results) {
+            counts.put(result.getStatus(), counts.get(result.getStatus()) + 1);
+        }
+        return counts;
+    }
+
+    public long getBytesRead() {
+        long bytes = 0;
+        for (JarPatchResult result : results) {
+            bytes += result.getMetrics().getBytesRead();
+        }
+        return bytes;
+    }
+
+    public long getBytesWritten() {
+        long bytes = 0;
+        for (JarPatchResult result : results) {
+            bytes += result.getMetrics().getBytesWritten();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return one line summary of the run
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(results.size()).append(" jars");
+        for (Map.Entry<JarPatchResult.Status, Integer> count : getStatusCounts().entrySet()) {
+            if (count.getValue() > 0) {
+                summary.append(", ").append(count.getValue()).append(' ')
+                        .append(count.getKey().name().toLowerCase(Locale.ENGLISH));
+            }
+        }
+        summary.append("; ").append(getBytesRead()).append(" bytes read, ")
+                .append(getBytesWritten()).append(" bytes written in ")
+                .append(wallNanos / 1000000).append(" ms");
+        return summary.toString();
+    }
+}
@@ -0,0 +1,281 @@
+package com.viettel.vep.friendlizer;
+
+import com.viettel.vep.friendlizer.ModuleConfiguration.Module;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep installations patched while NetBeans Auto Update replaces their jars.
+ * The folders holding the jars of the plan are watched; a burst of changes
+ * is patched once it has been quiet for the watch delay, and only the jars of
+ * the plan that changed are patched again. Waiting for changes costs no CPU.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class PatchWatcher {
+
+    private final PatchOptions options;
+    private final PatchListener listener;
+    private final Map<WatchKey, Folder> folders = new HashMap<WatchKey, Folder>();
+    private volatile WatchService service;
+    private volatile boolean stopped;
+
+    public PatchWatcher(PatchOptions options, PatchListener listener) {
+        this.options = options;
+        this.listener = listener;
+    }
+
+    /**
+     * Patch the installations, then patch the jars changed in them again until
+     * the watcher is stopped
+     *
+     * @param netbeansPaths NetBeans installation folders
+     * @param modules modules to add to the friend lists
+     * @throws IOException the folders can not be watched
+     */
+    public void watch(List<String> netbeansPaths, Module... modules) throws IOException {
+        watch(netbeansPaths, PatchPlan.of(modules));
+    }
+
+    /**
+     * Patch the installations, then patch the jars changed in them again until
+     * the watcher is stopped
+     *
+     * @param netbeansPaths NetBeans installation folders
+     * @param plan jars or code names and module keys to add to their friend lists
+     * @throws IOException the folders can not be watched
+     */
+    public void watch(List<String> netbeansPaths, PatchPlan plan) throws IOException {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            service = FileSystems.getDefault().newWatchService();
+        }
+        try {
+            List<Installation> installations = new ArrayList<Installation>();
+            for (String netbeansPath : netbeansPaths) {
+                File netbeansFolder = new File(netbeansPath);
+                if (!netbeansFolder.isDirectory()) {
+                    listener.message("Not a directory: " + netbeansPath);
+                    continue;
+                }
+                Installation installation = new Installation(netbeansPath,
+                        new PatchEngine(options, listener).resolve(netbeansFolder, plan));
+                register(installation);
+                installations.add(installation);
+            }
+            if (folders.isEmpty()) {
+                listener.message("Nothing to watch");
+                return;
+            }
+
+            for (Installation installation : installations) {
+                installation.pending.addAll(installation.plan.getDependencies());
+                patch(installation);
+            }
+            listener.message("Watching " + folders.size() + " folders, changes are patched "
+                    + options.getWatchDelay() + " ms after the last one");
+            while (!stopped) {
+                collect(service.take());
+                WatchKey key;
+                while ((key = service.poll(options.getWatchDelay(), TimeUnit.MILLISECONDS)) != null) {
+                    collect(key);
+                }
+                for (Installation installation : installations) {
+                    if (!stopped) {
+                        patch(installation);
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Stopped
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Stop watching. A patch run already started is finished first.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Watch every folder holding a jar of the plan
+     */
+    private void register(Installation installation) throws IOException {
+        Map<String, Folder> watched = new HashMap<String, Folder>();
+        for (String dependency : installation.plan.getDependencies()) {
+            int slash = dependency.lastIndexOf('/');
+            String folder = slash < 0 ? "" : dependency.substring(0, slash);
+            Folder jars = watched.get(folder);
+            if (jars == null) {
+                File file = new File(installation.netbeansPath, folder);
+                if (!file.isDirectory()) {
+                    listener.message("Not a directory, not watched: " + file);
+                    continue;
+                }
+                jars = new Folder(installation, folder);
+                WatchKey key = file.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                folders.put(key, jars);
+                watched.put(folder, jars);
+            }
+            jars.jars.add(dependency);
+        }
+    }
+
+    /**
+     * Add the jars of the plan changed in a watched folder to the pending
+     * jars of its installation
+     */
+    private void collect(WatchKey key) {
+        Folder folder = folders.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (folder == null) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                folder.installation.pending.addAll(folder.jars);
+                continue;
+            }
+            String name = ((Path) event.context()).toString();
+            String dependency = folder.path.isEmpty() ? name : folder.path + "/" + name;
+            if (folder.jars.contains(dependency)) {
+                folder.installation.pending.add(dependency);
+            }
+        }
+        if (!key.reset() && folder != null) {
+            listener.message("Folder gone, no longer watched: " + new File(folder.installation.netbeansPath,
+                    folder.path));
+            folders.remove(key);
+        }
+    }
+
+    /**
+     * Patch the pending jars of an installation that are not as the last run
+     * left them. Replacing a jar also notifies its folder, that change is
+     * recognized by its size and modification time.
+     */
+    private void patch(Installation installation) {
+        PatchPlan changed = new PatchPlan();
+        for (String dependency : installation.pending) {
+            File jar = new File(installation.netbeansPath, dependency);
+            FileFingerprint left = installation.left.get(dependency);
+            if (jar.isFile() && (left == null || !left.isSameStat(jar))) {
+                for (String moduleKey : installation.plan.getFriendKeys(dependency)) {
+                    changed.add(dependency, moduleKey);
+                }
+            }
+        }
+        installation.pending.clear();
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        listener.message(changed.size() + " jars changed in " + installation.netbeansPath);
+        new PatchEngine(options, new LeftJarsListener(installation)).patch(installation.netbeansPath, changed);
+    }
+
+    /**
+     * Installation being watched, with its resolved plan
+     */
+    private static class Installation {
+
+        private final String netbeansPath;
+        private final PatchPlan plan;
+        private final Set<String> pending = new LinkedHashSet<String>();
+        private final Map<String, FileFingerprint> left = new ConcurrentHashMap<String, FileFingerprint>();
+
+        Installation(String netbeansPath, PatchPlan plan) {
+            this.netbeansPath = netbeansPath;
+            this.plan = plan;
+        }
+    }
+
+    /**
+     * Record how each jar is left as soon as it is done, before the end of the
+     * run is reported: a jar replaced once the run is over is always a change
+     */
+    private class LeftJarsListener implements PatchListener {
+
+        private final Installation installation;
+
+        LeftJarsListener(Installation installation) {
+            this.installation = installation;
+        }
+
+        @Override
+        public void message(String message) {
+            listener.message(message);
+        }
+
+        @Override
+        public void runStarted(String netbeansPath, int jars) {
+            listener.runStarted(netbeansPath, jars);
+        }
+
+        @Override
+        public void jarStarted(String dependency) {
+            listener.jarStarted(dependency);
+        }
+
+        @Override
+        public void jarFinished(JarPatchResult result) {
+            File jar = new File(installation.netbeansPath, result.getDependency());
+            installation.left.put(result.getDependency(), new FileFingerprint(jar.length(), jar.lastModified(),
+                    null));
+            listener.jarFinished(result);
+        }
+
+        @Override
+        public void runFinished(PatchRun run) {
+            listener.runFinished(run);
+        }
+    }
+
+    /**
+     * Watched folder and the jars of the plan in it
+     */
+    private static class Folder {
+
+        private final Installation installation;
+        private final String path;
+        private final Set<String> jars = new LinkedHashSet<String>();
+
+        Folder(Installation installation, String path) {
+            this.installation = installation;
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.viettel.vep.friendlizer;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.swing.JProgressBar;
+import javax.swing.JTextArea;
+import javax.swing.SwingWorker;
+import javax.swing.text.BadLocationException;
+
+/**
+ * Run a patch in the background. Messages from the patching threads are
+ * published to the event dispatch thread, which appends them to the text
+ * area in batches (SwingWorker coalesces them, at most about 30 updates per
+ * second) and refreshes the progress bar with jars done, throughput and ETA.
+ * The number of jars is the size of the plan until each run reports the size
+ * of its resolved plan. Several installations are patched as a fleet.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class PatchWorker extends SwingWorker<FleetRun, String> implements PatchListener {
+
+    private static final int MAX_LOG_LINES = 5000;
+    private final List<String> netbeansPaths;
+    private final PatchPlan plan;
+    private final PatchEngine engine;
+    private final PatchFleet fleet;
+    private final AtomicInteger total = new AtomicInteger();
+    private final JTextArea logger;
+    private final JProgressBar progressBar;
+    private final AtomicInteger jarsDone = new AtomicInteger();
+    private final AtomicLong bytesDone = new AtomicLong();
+    private volatile long startNanos;
+
+    public PatchWorker(String netbeansPath, PatchPlan plan, PatchOptions options, JTextArea logger,
+            JProgressBar progressBar) {
+        this(Collections.singletonList(netbeansPath), plan, options, logger, progressBar);
+    }
+
+    public PatchWorker(List<String> netbeansPaths, PatchPlan plan, PatchOptions options, JTextArea logger,
+            JProgressBar progressBar) {
+        this.netbeansPaths = netbeansPaths;
+        this.plan = plan;
+        this.engine = netbeansPaths.size() == 1 ? new PatchEngine(options, this) : null;
+        this.fleet = netbeansPaths.size() == 1 ? null : new PatchFleet(options, this);
+        this.total.set(plan.size() * netbeansPaths.size());
+        this.logger = logger;
+        this.progressBar = progressBar;
+        progressBar.setMinimum(0);
+        progressBar.setMaximum(Math.max(total.get(), 1));
+        progressBar.setValue(0);
+        progressBar.setStringPainted(true);
+        progressBar.setString("0/" + total.get() + " jars");
+    }
+
+    @Override
+    protected FleetRun doInBackground() {
+        startNanos = System.nanoTime();
+        publish("Viettel Enterprise Platform - Module Friendlizer");
+        FleetRun runs;
+        if (engine != null) {
+            PatchRun run = engine.patch(netbeansPaths.get(0), plan);
+            runs = new FleetRun(run.getStartTime(), run.getWallNanos(), 1, Collections.singletonList(run));
+        } else {
+            runs = fleet.patch(netbeansPaths, plan);
+        }
+        for (PatchRun run : runs.getRuns()) {
+            for (JarPatchResult result : run.getResults()) {
+                if (result.isFailed()) {
+                    publish("Patching fail: " + (engine != null ? result.getDependency()
+                            : run.getNetbeansPath() + "/" + result.getDependency()));
+                }
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Stop starting new jars, jars being patched are finished
+     */
+    public void cancelPatch() {
+        if (engine != null) {
+            engine.cancel();
+        } else {
+            fleet.cancel();
+        }
+        publish("Cancelling, waiting for the jars being patched...");
+    }
+
+    public boolean isPatchCancelled() {
+        return engine != null ? engine.isCancelled() : fleet.isCancelled();
+    }
+
+    @Override
+    public void message(String message) {
+        publish(message);
+    }
+
+    @Override
+    public void runStarted(String netbeansPath, int jars) {
+        // Friend only jars added by the resolution are counted from now on
+        total.addAndGet(jars - plan.size());
+    }
+
+    @Override
+    public void jarStarted(String dependency) {
+    }
+
+    @Override
+    public void jarFinished(JarPatchResult result) {
+        bytesDone.addAndGet(result.getMetrics().getBytesRead() + result.getMetrics().getBytesWritten());
+        jarsDone.incrementAndGet();
+    }
+
+    @Override
+    public void runFinished(PatchRun run) {
+        publish(run.getSummary());
+    }
+
+    @Override
+    protected void process(List<String> messages) {
+        StringBuilder text = new StringBuilder();
+        for (String message : messages) {
+            text.append(message).append('\n');
+        }
+        logger.append(text.toString());
+        trimLog();
+        logger.setCaretPosition(logger.getDocument().getLength());
+        refreshProgress();
+    }
+
+    @Override
+    protected void done() {
+        refreshProgress();
+    }
+
+    /**
+     * Keep the text area small, appending gets slower as the document grows
+     */
+    private void trimLog() {
+        int excess = logger.getLineCount() - MAX_LOG_LINES;
+        if (excess > 0) {
+            try {
+                logger.replaceRange(null, 0, logger.getLineStartOffset(excess));
+            } catch (BadLocationException e) {
+                // Line count just read, can not happen
+            }
+        }
+    }
+
+    private void refreshProgress() {
+        int done = jarsDone.get();
+        int total = this.total.get();
+        progressBar.setMaximum(Math.max(total, 1));
+        progressBar.setValue(done);
+
+        StringBuilder status = new StringBuilder();
+        status.append(done).append('/').append(total).append(" jars");
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        if (done > 0 && seconds > 0) {
+            status.append(String.format(", %.1f jars/s, %.1f MB/s", done / seconds,
+                    bytesDone.get() / seconds / (1024 * 1024)));
+            if (done < total && !isPatchCancelled()) {
+                status.append(String.format(", ETA %.0f s", seconds / done * (total - done)));
+            }
+        }
+        progressBar.setString(status.toString());
+    }
+}
@@ -0,0 +1,275 @@
+package com.viettel.vep.friendlizer;
+
+import com.viettel.vep.friendlizer.ZipDirectory.Entry;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Calendar;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Write a jar with a new manifest by copying the compressed bytes of all
+ * other entries as they are. Local headers, data and data descriptors are
+ * moved unchanged, only the manifest entry and the central directory are
+ * built again.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class RawJarWriter {
+
+    static final String META_INF_MANIFEST_ENTRY = "META-INF/MANIFEST.MF";
+    private static final int VERSION = 20;
+    private static final int UTF8_FLAG = 0x0800;
+
+    /**
+     * Copy a jar to target replacing its manifest content
+     *
+     * @param source original jar
+     * @param directory central directory of the original jar
+     * @param manifest new manifest bytes
+     * @param target new jar, written from its current position
+     * @return number of bytes written
+     * @throws IOException reading/writing error, ZipException if the original
+     * jar has no manifest entry
+     */
+    public static long rewrite(FileChannel source, ZipDirectory directory, byte[] manifest,
+            FileChannel target) throws IOException {
+        Entry oldManifest = findManifest(directory);
+        long start = oldManifest.getLocalOffset();
+        long end = directory.getLocalEnd(oldManifest);
+        ByteBuffer local = localEntry(deflate(manifest));
+        long delta = local.remaining() - (end - start);
+
+        long written = transfer(source, 0, start, target);
+        written += write(target, local);
+        written += transfer(source, end, directory.getCentralOffset() - end, target);
+        written += write(target, central(directory, oldManifest, local, start, start, delta,
+                directory.getCentralOffset() + delta));
+        return written;
+    }
+
+    /**
+     * Copy a jar loaded in memory to target replacing its manifest content
+     *
+     * @param source whole original jar, position 0 is the start of the file
+     * @param directory central directory of the original jar
+     * @param manifest new manifest bytes
+     * @param target new jar
+     * @return number of bytes written
+     * @throws IOException writing error, ZipException if the original jar has
+     * no manifest entry
+     */
+    public static long rewrite(ByteBuffer source, ZipDirectory directory, byte[] manifest,
+            WritableByteChannel target) throws IOException {
+        Entry oldManifest = findManifest(directory);
+        long start = oldManifest.getLocalOffset();
+        long end = directory.getLocalEnd(oldManifest);
+        ByteBuffer local = localEntry(deflate(manifest));
+        long delta = local.remaining() - (end - start);
+
+        long written = write(target, slice(source, 0, start));
+        written += write(target, local);
+        written += write(target, slice(source, end, directory.getCentralOffset() - end));
+        written += write(target, central(directory, oldManifest, local, start, start, delta,
+                directory.getCentralOffset() + delta));
+        return written;
+    }
+
+    /**
+     * Append a new manifest entry, central directory and end record to a jar
+     * in place. The old manifest entry and central directory are left in the
+     * file as dead space and nothing before the end of the file is modified.
+     *
+     * @param channel jar file opened for reading and writing
+     * @param directory central directory of the jar
+     * @param manifest new manifest bytes
+     * @return number of bytes appended
+     * @throws IOException reading/writing error, ZipException if the jar has no
+     * manifest entry
+     */
+    public static long append(FileChannel channel, ZipDirectory directory, byte[] manifest) throws IOException {
+        Entry oldManifest = findManifest(directory);
+        long end = channel.size();
+        ByteBuffer local = localEntry(deflate(manifest));
+        ByteBuffer central = central(directory, oldManifest, local, end, Long.MAX_VALUE, 0,
+                end + local.remaining());
+
+        channel.position(end);
+        return write(channel, local) + write(channel, central);
+    }
+
+    static Entry findManifest(ZipDirectory directory) throws ZipException {
+        Entry entry = directory.find(META_INF_MANIFEST_ENTRY);
+        if (entry == null) {
+            throw new ZipException("No " + META_INF_MANIFEST_ENTRY + " entry");
+        }
+        return entry;
+    }
+
+    private static ByteBuffer localEntry(DeflatedEntry entry) {
+        byte[] name = META_INF_MANIFEST_ENTRY.getBytes(ZipDirectory.UTF8);
+        ByteBuffer buffer = ByteBuffer.allocate(ZipDirectory.LOCAL_HEADER_SIZE + name.length + entry.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(ZipDirectory.LOCAL_SIGNATURE);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) UTF8_FLAG);
+        buffer.putShort((short) Deflater.DEFLATED);
+        buffer.putInt(entry.dosTime);
+        buffer.putInt((int) entry.crc);
+        buffer.putInt(entry.length);
+        buffer.putInt(entry.size);
+        buffer.putShort((short) name.length);
+        buffer.putShort((short) 0);
+        buffer.put(name);
+        buffer.put(entry.data, 0, entry.length);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Build central directory and end record where the manifest record points
+     * to a new local entry and the entries after shiftFrom are moved by delta.
+     *
+     * @param directory original central directory
+     * @param manifest original manifest entry
+     * @param local new manifest local entry as built by localEntry
+     * @param manifestOffset offset of the new manifest local entry
+     * @param shiftFrom entries with a greater local offset are moved
+     * @param delta number of bytes those entries are moved
+     * @param centralOffset offset of the new central directory
+     * @return buffer ready to be written
+     */
+    static ByteBuffer central(ZipDirectory directory, Entry manifest, ByteBuffer local,
+            long manifestOffset, long shiftFrom, long delta, long centralOffset) {
+        ByteBuffer source = directory.getCentral();
+        byte[] name = META_INF_MANIFEST_ENTRY.getBytes(ZipDirectory.UTF8);
+        int size = source.limit() - manifest.getRecordLength()
+                + ZipDirectory.CENTRAL_HEADER_SIZE + name.length;
+        byte[] comment = directory.getComment();
+        ByteBuffer buffer = ByteBuffer.allocate(size + ZipDirectory.END_HEADER_SIZE + comment.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        for (Entry entry : directory.getEntries()) {
+            if (entry == manifest) {
+                buffer.putInt(ZipDirectory.CENTRAL_SIGNATURE);
+                buffer.putShort((short) VERSION);
+                // version, flags, method, time, date, crc and sizes as in the local header
+                for (int i = 4; i < 26; i++) {
+                    buffer.put(local.get(i));
+                }
+                buffer.putShort((short) name.length);
+                buffer.putShort((short) 0);
+                buffer.putShort((short) 0);
+                buffer.putShort((short) 0);
+                buffer.putShort((short) 0);
+                buffer.putInt(0);
+                buffer.putInt((int) manifestOffset);
+                buffer.put(name);
+            } else {
+                int record = buffer.position();
+                source.limit(entry.getRecordOffset() + entry.getRecordLength());
+                source.position(entry.getRecordOffset());
+                buffer.put(source);
+                if (entry.getLocalOffset() > shiftFrom) {
+                    buffer.putInt(record + ZipDirectory.CENTRAL_OFFSET_FIELD,
+                            (int) (entry.getLocalOffset() + delta));
+                }
+            }
+        }
+
+        int count = directory.getEntries().size();
+        buffer.putInt(ZipDirectory.END_SIGNATURE);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) count);
+        buffer.putShort((short) count);
+        buffer.putInt(size);
+        buffer.putInt((int) centralOffset);
+        buffer.putShort((short) comment.length);
+        buffer.put(comment);
+        buffer.flip();
+        return buffer;
+    }
+
+    static long transfer(FileChannel source, long position, long count, FileChannel target) throws IOException {
+        long done = 0;
+        while (done < count) {
+            long transferred = source.transferTo(position + done, count - done, target);
+            if (transferred <= 0) {
+                throw new ZipException("Unexpected end of zip file");
+            }
+            done += transferred;
+        }
+        return done;
+    }
+
+    private static ByteBuffer slice(ByteBuffer source, long position, long count) {
+        ByteBuffer slice = source.duplicate();
+        slice.limit((int) (position + count));
+        slice.position((int) position);
+        return slice;
+    }
+
+    static long write(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += target.write(buffer);
+        }
+        return written;
+    }
+
+    private static DeflatedEntry deflate(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 64);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        DeflatedEntry entry = new DeflatedEntry();
+        entry.data = out.toByteArray();
+        entry.length = entry.data.length;
+        entry.size = content.length;
+        entry.crc = crc.getValue();
+        entry.dosTime = dosTime(System.currentTimeMillis());
+        return entry;
+    }
+
+    static int dosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        return (calendar.get(Calendar.YEAR) - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * Compressed manifest content
+     */
+    private static class DeflatedEntry {
+
+        private byte[] data;
+        private int length;
+        private int size;
+        private long crc;
+        private int dosTime;
+    }
+}
@@ -0,0 +1,51 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.PrintStream;
+
+/**
+ * Log patching messages and run totals to a print stream, one line each
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class StreamPatchListener implements PatchListener {
+
+    private final PrintStream out;
+    private final boolean quiet;
+
+    /**
+     * @param out stream receiving the lines
+     * @param quiet true to only print run totals
+     */
+    public StreamPatchListener(PrintStream out, boolean quiet) {
+        this.out = out;
+        this.quiet = quiet;
+    }
+
+    @Override
+    public void message(String message) {
+        if (!quiet) {
+            synchronized (out) {
+                out.println(message);
+            }
+        }
+    }
+
+    @Override
+    public void runStarted(String netbeansPath, int jars) {
+    }
+
+    @Override
+    public void jarStarted(String dependency) {
+    }
+
+    @Override
+    public void jarFinished(JarPatchResult result) {
+    }
+
+    @Override
+    public void runFinished(PatchRun run) {
+        synchronized (out) {
+            out.println(run.getSummary());
+        }
+    }
+}
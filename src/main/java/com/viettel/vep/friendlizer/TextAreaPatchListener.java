@@ -0,0 +1,39 @@
+package com.viettel.vep.friendlizer;
+
+import javax.swing.JTextArea;
+
+/**
+ * Log patching messages and run totals to a text area
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class TextAreaPatchListener implements PatchListener {
+
+    private final JTextArea logger;
+
+    public TextAreaPatchListener(JTextArea logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public void message(String message) {
+        FriendlizerUtilities.Log(logger, message);
+    }
+
+    @Override
+    public void runStarted(String netbeansPath, int jars) {
+    }
+
+    @Override
+    public void jarStarted(String dependency) {
+    }
+
+    @Override
+    public void jarFinished(JarPatchResult result) {
+    }
+
+    @Override
+    public void runFinished(PatchRun run) {
+        FriendlizerUtilities.Log(logger, run.getSummary());
+    }
+}
@@ -0,0 +1,365 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Central directory of a zip (jar) file, read straight from its bytes so that
+ * entries can be copied without inflating them. Only plain (non ZIP64,
+ * single disk) archives are supported, a ZipException is thrown otherwise.
+ * Offsets and lengths are checked against the archive, a malformed one throws
+ * a ZipException too.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class ZipDirectory {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final int LOCAL_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_SIGNATURE = 0x02014b50;
+    static final int END_SIGNATURE = 0x06054b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_HEADER_SIZE = 22;
+    static final int CENTRAL_OFFSET_FIELD = 42;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int SHORT_TAIL_SIZE = 1024;
+    private final ByteBuffer central;
+    private final List<Entry> entries;
+    private final long centralOffset;
+    private final byte[] comment;
+    private long bytesRead;
+
+    private ZipDirectory(ByteBuffer central, List<Entry> entries, long centralOffset, byte[] comment) {
+        this.central = central;
+        this.entries = entries;
+        this.centralOffset = centralOffset;
+        this.comment = comment;
+    }
+
+    /**
+     * Read central directory of a zip file
+     *
+     * @param channel opened zip file
+     * @return central directory
+     * @throws IOException reading error or unsupported zip format
+     */
+    public static ZipDirectory read(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        // Jar files seldom have a comment, try a small tail first
+        int tailSize = (int) Math.min(fileSize, SHORT_TAIL_SIZE);
+        ByteBuffer tail = readFully(channel, fileSize - tailSize, tailSize);
+        int end = findEnd(tail);
+        long bytesRead = tailSize;
+        if (end < 0 && fileSize > tailSize) {
+            tailSize = (int) Math.min(fileSize, END_HEADER_SIZE + MAX_COMMENT_SIZE);
+            tail = readFully(channel, fileSize - tailSize, tailSize);
+            end = findEnd(tail);
+            bytesRead += tailSize;
+        }
+        if (end < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+        long endPosition = fileSize - tailSize + end;
+        long centralSize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long offset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        checkEnd(tail, end, offset, centralSize, endPosition);
+
+        ByteBuffer central = readFully(channel, offset, (int) centralSize);
+        ZipDirectory directory = parse(central, tail, end, offset);
+        directory.bytesRead = bytesRead + centralSize;
+        return directory;
+    }
+
+    /**
+     * Read central directory of a zip file already loaded in memory
+     *
+     * @param zip whole zip content, position 0 is the start of the file
+     * @return central directory
+     * @throws IOException unsupported zip format
+     */
+    public static ZipDirectory read(ByteBuffer zip) throws IOException {
+        ByteBuffer buffer = zip.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int fileSize = buffer.limit();
+        int tailSize = Math.min(fileSize, END_HEADER_SIZE + MAX_COMMENT_SIZE);
+        buffer.position(fileSize - tailSize);
+        ByteBuffer tail = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int end = findEnd(tail);
+        if (end < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+        long centralSize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long offset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        checkEnd(tail, end, offset, centralSize, fileSize - tailSize + end);
+
+        buffer.position((int) offset);
+        buffer.limit((int) (offset + centralSize));
+        ByteBuffer central = ByteBuffer.allocate((int) centralSize).order(ByteOrder.LITTLE_ENDIAN);
+        central.put(buffer);
+        central.flip();
+        return parse(central, tail, end, offset);
+    }
+
+    private static int findEnd(ByteBuffer tail) {
+        for (int i = tail.limit() - END_HEADER_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE
+                    && i + END_HEADER_SIZE + (tail.getShort(i + 20) & 0xFFFF) == tail.limit()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void checkEnd(ByteBuffer tail, int end, long offset, long centralSize, long endPosition)
+            throws ZipException {
+        if ((tail.getShort(end + 4) & 0xFFFF) != 0 || (tail.getShort(end + 6) & 0xFFFF) != 0) {
+            throw new ZipException("Multi-disk zip file is not supported");
+        }
+        if ((tail.getShort(end + 10) & 0xFFFF) == 0xFFFF
+                || offset == 0xFFFFFFFFL || centralSize == 0xFFFFFFFFL) {
+            throw new ZipException("ZIP64 file is not supported");
+        }
+        if (offset + centralSize != endPosition) {
+            throw new ZipException("Zip file with prepended data is not supported");
+        }
+    }
+
+    private static ZipDirectory parse(ByteBuffer central, ByteBuffer tail, int end, long offset)
+            throws ZipException {
+        int count = tail.getShort(end + 10) & 0xFFFF;
+        List<Entry> entries = new ArrayList<Entry>(count);
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (position + CENTRAL_HEADER_SIZE > central.limit()
+                    || central.getInt(position) != CENTRAL_SIGNATURE) {
+                throw new ZipException("Invalid central directory header at entry " + i);
+            }
+            Entry entry = new Entry(central, position);
+            if (entry.compressedSize == 0xFFFFFFFFL || entry.size == 0xFFFFFFFFL
+                    || entry.localOffset == 0xFFFFFFFFL) {
+                throw new ZipException("ZIP64 entry is not supported: " + entry.name);
+            }
+            if (entry.localOffset + LOCAL_HEADER_SIZE + entry.compressedSize > offset) {
+                throw new ZipException("Entry outside of the zip file: " + entry.name);
+            }
+            entries.add(entry);
+            position += entry.recordLength;
+        }
+
+        byte[] comment = new byte[tail.getShort(end + 20) & 0xFFFF];
+        for (int i = 0; i < comment.length; i++) {
+            comment[i] = tail.get(end + END_HEADER_SIZE + i);
+        }
+        return new ZipDirectory(central, Collections.unmodifiableList(entries), offset, comment);
+    }
+
+    static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of zip file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Find an entry by name, falling back to a case insensitive lookup like
+     * the manifest lookup of JarFile.
+     *
+     * @param name entry name
+     * @return the entry or null
+     */
+    public Entry find(String name) {
+        for (Entry entry : entries) {
+            if (entry.name.equals(name)) {
+                return entry;
+            }
+        }
+        for (Entry entry : entries) {
+            if (entry.name.equalsIgnoreCase(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Offset just after the local entry (header, data and data descriptor),
+     * which is where the next local entry or the central directory starts.
+     *
+     * @param entry entry of this directory
+     * @return end offset of the local entry
+     */
+    public long getLocalEnd(Entry entry) {
+        long localEnd = centralOffset;
+        for (Entry other : entries) {
+            if (other.localOffset > entry.localOffset && other.localOffset < localEnd) {
+                localEnd = other.localOffset;
+            }
+        }
+        return localEnd;
+    }
+
+    /**
+     * Offset of the entry compressed data, read from its local header.
+     *
+     * @param channel zip file
+     * @param entry entry of this directory
+     * @return offset of the first data byte
+     * @throws IOException reading error or invalid local header
+     */
+    public long getDataOffset(FileChannel channel, Entry entry) throws IOException {
+        return checkData(entry, entry.localOffset + localHeaderLength(
+                readFully(channel, entry.localOffset, LOCAL_HEADER_SIZE), 0, entry));
+    }
+
+    /**
+     * Offset of the entry compressed data, read from its local header.
+     *
+     * @param zip whole zip content
+     * @param entry entry of this directory
+     * @return offset of the first data byte
+     * @throws IOException invalid local header
+     */
+    public long getDataOffset(ByteBuffer zip, Entry entry) throws IOException {
+        ByteBuffer buffer = zip.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        return checkData(entry, entry.localOffset + localHeaderLength(buffer, (int) entry.localOffset, entry));
+    }
+
+    /**
+     * Check that the data of an entry ends before the central directory
+     */
+    private long checkData(Entry entry, long dataOffset) throws ZipException {
+        if (dataOffset + entry.compressedSize > centralOffset) {
+            throw new ZipException("Entry data outside of the zip file: " + entry.name);
+        }
+        return dataOffset;
+    }
+
+    private static int localHeaderLength(ByteBuffer buffer, int position, Entry entry) throws ZipException {
+        if (position + LOCAL_HEADER_SIZE > buffer.limit() || buffer.getInt(position) != LOCAL_SIGNATURE) {
+            throw new ZipException("Invalid local header for entry " + entry.name);
+        }
+        return LOCAL_HEADER_SIZE
+                + (buffer.getShort(position + 26) & 0xFFFF)
+                + (buffer.getShort(position + 28) & 0xFFFF);
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return bytes read from the file to load the directory, 0 if it was
+     * read from memory
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getCentralOffset() {
+        return centralOffset;
+    }
+
+    public int getCentralSize() {
+        return central.limit();
+    }
+
+    /**
+     * Raw central directory bytes, little endian, positioned at 0
+     *
+     * @return read only view of the central directory
+     */
+    public ByteBuffer getCentral() {
+        return central.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public byte[] getComment() {
+        return comment.clone();
+    }
+
+    /**
+     * Central directory entry
+     */
+    public static class Entry {
+
+        private final String name;
+        private final int flags;
+        private final int method;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long localOffset;
+        private final int recordOffset;
+        private final int recordLength;
+
+        Entry(ByteBuffer central, int position) throws ZipException {
+            flags = central.getShort(position + 8) & 0xFFFF;
+            method = central.getShort(position + 10) & 0xFFFF;
+            crc = central.getInt(position + 16) & 0xFFFFFFFFL;
+            compressedSize = central.getInt(position + 20) & 0xFFFFFFFFL;
+            size = central.getInt(position + 24) & 0xFFFFFFFFL;
+            int nameLength = central.getShort(position + 28) & 0xFFFF;
+            int extraLength = central.getShort(position + 30) & 0xFFFF;
+            int commentLength = central.getShort(position + 32) & 0xFFFF;
+            localOffset = central.getInt(position + CENTRAL_OFFSET_FIELD) & 0xFFFFFFFFL;
+            recordLength = CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            if (position + recordLength > central.limit()) {
+                throw new ZipException("Central directory header outside of the directory at " + position);
+            }
+
+            byte[] rawName = new byte[nameLength];
+            for (int i = 0; i < nameLength; i++) {
+                rawName[i] = central.get(position + CENTRAL_HEADER_SIZE + i);
+            }
+            name = new String(rawName, UTF8);
+            recordOffset = position;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLocalOffset() {
+            return localOffset;
+        }
+
+        int getRecordOffset() {
+            return recordOffset;
+        }
+
+        int getRecordLength() {
+            return recordLength;
+        }
+    }
+}
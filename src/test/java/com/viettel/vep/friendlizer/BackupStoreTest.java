@@ -0,0 +1,107 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Backup store test
+ */
+public class BackupStoreTest extends TestCase {
+
+    private static final String DEPENDENCY = "ide/modules/module.jar";
+    private File folder;
+    private File store;
+    private File first;
+    private File second;
+
+    @Override
+    protected void setUp() throws Exception {
+        folder = TestFiles.createFolder();
+        store = new File(folder, "backups");
+        first = install("netbeans-8.0");
+        second = install("netbeans-8.0-copy");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestFiles.delete(folder);
+    }
+
+    public void testSameJarIsStoredOnce() throws IOException {
+        for (File netbeans : Arrays.asList(first, second)) {
+            BackupStore backup = BackupStore.open(store, netbeans);
+            backup.backup(DEPENDENCY, new File(netbeans, DEPENDENCY), null, false);
+            backup.save();
+        }
+        assertEquals("Backup store: 2 jars of 2 installations in 1 files, 8 bytes stored, 8 bytes saved by sharing",
+                BackupStore.getSummary(store));
+    }
+
+    public void testRestoreOriginal() throws IOException {
+        BackupStore backup = BackupStore.open(store, first);
+        File jar = new File(first, DEPENDENCY);
+        backup.backup(DEPENDENCY, jar, null, false);
+        backup.save();
+        replace(jar, "patched");
+        assertEquals(Arrays.asList(DEPENDENCY), BackupStore.open(store, first).restore(PatchListener.NONE));
+        assertEquals("original", new String(Files.readAllBytes(jar.toPath()), ZipDirectory.UTF8));
+
+        // Patching in place must not modify the stored original
+        BackupStore.open(store, first).backup(DEPENDENCY, jar, null, true);
+        Files.write(jar.toPath(), " appended".getBytes(ZipDirectory.UTF8), StandardOpenOption.APPEND);
+        assertEquals(Arrays.asList(DEPENDENCY), BackupStore.open(store, first).restore(PatchListener.NONE));
+        assertEquals("original", new String(Files.readAllBytes(jar.toPath()), ZipDirectory.UTF8));
+    }
+
+    public void testUpdatedJarReplacesOriginal() throws IOException {
+        File jar = new File(first, DEPENDENCY);
+        PatchIndex index = PatchIndex.load(first);
+        BackupStore backup = BackupStore.open(store, first, index);
+        backup.backup(DEPENDENCY, jar, null, false);
+        backup.save();
+        replace(jar, "patched");
+        index.record(DEPENDENCY, jar, Arrays.asList("org.foo"));
+
+        // Patched again for another key: still the output of the first patch
+        backup = BackupStore.open(store, first, index);
+        backup.backup(DEPENDENCY, jar, null, false);
+        replace(jar, "patched twice");
+        index.record(DEPENDENCY, jar, Arrays.asList("org.foo", "org.bar"));
+        backup.save();
+        assertEquals(Arrays.asList(DEPENDENCY), BackupStore.open(store, first).restore(PatchListener.NONE));
+        assertEquals("original", new String(Files.readAllBytes(jar.toPath()), ZipDirectory.UTF8));
+
+        // Module update: the updated jar is the new original
+        replace(jar, "updated");
+        backup = BackupStore.open(store, first, index);
+        backup.backup(DEPENDENCY, jar, null, false);
+        backup.save();
+        replace(jar, "updated patched");
+        assertEquals(Arrays.asList(DEPENDENCY), BackupStore.open(store, first).restore(PatchListener.NONE));
+        assertEquals("updated", new String(Files.readAllBytes(jar.toPath()), ZipDirectory.UTF8));
+    }
+
+    private File install(String name) throws IOException {
+        File netbeans = new File(folder, name);
+        new File(netbeans, "ide/modules").mkdirs();
+        write(new File(netbeans, DEPENDENCY), "original");
+        return netbeans;
+    }
+
+    /**
+     * Patched jars replace the originals, they are never written over them
+     */
+    private static void replace(File jar, String content) throws IOException {
+        File patched = new File(jar.getPath() + FriendlizerUtilities.SUBFIX_VEP_TOOL_TEMPLATE_ZIP_FILE);
+        write(patched, content);
+        PatchJournal.move(patched.toPath(), jar.toPath());
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(ZipDirectory.UTF8));
+    }
+}
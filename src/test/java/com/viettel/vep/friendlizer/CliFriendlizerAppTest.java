@@ -0,0 +1,61 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Command line exit codes test
+ */
+public class CliFriendlizerAppTest extends TestCase {
+
+    private File folder;
+    private ByteArrayOutputStream out;
+    private PrintStream stream;
+
+    @Override
+    protected void setUp() throws Exception {
+        folder = TestFiles.createFolder();
+        out = new ByteArrayOutputStream();
+        stream = new PrintStream(out, true, "UTF-8");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestFiles.delete(folder);
+    }
+
+    public void testExitCodes() throws IOException {
+        CliFriendlizerApp app = new CliFriendlizerApp();
+        assertEquals(CliFriendlizerApp.EXIT_USAGE, app.run(new String[0], stream, stream));
+        assertEquals(CliFriendlizerApp.EXIT_USAGE, app.run(new String[]{"patch"}, stream, stream));
+        assertEquals(CliFriendlizerApp.EXIT_USAGE, app.run(new String[]{"--bogus", "plan", "x"}, stream, stream));
+        assertEquals(CliFriendlizerApp.EXIT_USAGE,
+                app.run(new String[]{"--parallelism", "0", "patch", folder.getPath()}, stream, stream));
+        assertEquals(CliFriendlizerApp.EXIT_USAGE,
+                app.run(new String[]{"--device-parallelism", "-1", "patch", folder.getPath()}, stream, stream));
+        // Option values are not taken for folders, by the daemon either
+        assertEquals(Arrays.asList("nb-8.2", "nb-12.0"), CliFriendlizerApp.Arguments.parse(
+                new String[]{"--device-parallelism", "2", "patch", "nb-8.2", "--quiet", "nb-12.0"}).folders);
+        assertEquals(CliFriendlizerApp.EXIT_IO,
+                app.run(new String[]{"plan", new File(folder, "missing").getPath()}, stream, stream));
+
+        File bad = new File(folder, "bad.properties");
+        Files.write(bad.toPath(), "module.a.key=not valid\n".getBytes("ISO-8859-1"));
+        assertEquals(CliFriendlizerApp.EXIT_CONFIGURATION,
+                app.run(new String[]{"--config", bad.getPath(), "plan", folder.getPath()}, stream, stream));
+
+        File netbeans = new File(folder, "netbeans");
+        netbeans.mkdirs();
+        out.reset();
+        assertEquals(CliFriendlizerApp.EXIT_OK,
+                app.run(new String[]{"--quiet", "plan", netbeans.getPath()}, stream, stream));
+        assertEquals(CliFriendlizerApp.EXIT_OK,
+                app.run(new String[]{"rollback", netbeans.getPath()}, stream, stream));
+        assertTrue(out.toString("UTF-8"), out.toString("UTF-8").contains("0 jars restored"));
+    }
+}
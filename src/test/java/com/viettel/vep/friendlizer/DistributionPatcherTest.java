@@ -0,0 +1,123 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+
+/**
+ * Distribution zip patching test
+ */
+public class DistributionPatcherTest extends TestCase {
+
+    private static final String KEY = "com.viettel.vep.tools";
+    private static final byte[] README = "NetBeans IDE".getBytes(ZipDirectory.UTF8);
+    private File distribution;
+    private File patched;
+
+    @Override
+    protected void setUp() throws Exception {
+        distribution = File.createTempFile("friendlizer", ".zip");
+        patched = new File(distribution.getPath() + ".patched.zip");
+
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(distribution));
+        try {
+            out.putNextEntry(new ZipEntry("netbeans/README.txt"));
+            out.write(README);
+            out.closeEntry();
+            byte[] stored = jar("org.foo");
+            ZipEntry entry = new ZipEntry("netbeans/ide/modules/stored.jar");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(stored.length);
+            CRC32 crc = new CRC32();
+            crc.update(stored);
+            entry.setCrc(crc.getValue());
+            out.putNextEntry(entry);
+            out.write(stored);
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("netbeans/java/modules/deflated.jar"));
+            out.write(jar("org.foo"));
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("netbeans/java/modules/public.jar"));
+            out.write(jar(null));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        distribution.delete();
+        patched.delete();
+    }
+
+    public void testNestedJarsArePatched() throws IOException {
+        PatchPlan plan = new PatchPlan();
+        for (String jar : new String[]{"ide/modules/stored.jar", "java/modules/deflated.jar",
+            "java/modules/public.jar", "ide/modules/missing.jar"}) {
+            plan.add(jar, KEY);
+        }
+        PatchRun run = new DistributionPatcher(new PatchOptions(), PatchListener.NONE).patch(distribution, patched,
+                plan);
+
+        assertEquals(Arrays.asList(JarPatchResult.Status.PATCHED, JarPatchResult.Status.PATCHED,
+                JarPatchResult.Status.UNCHANGED, JarPatchResult.Status.MISSING), statuses(run));
+        ZipFile zip = new ZipFile(patched);
+        try {
+            assertEquals(4, zip.size());
+            assertTrue(Arrays.equals(README, read(zip, "netbeans/README.txt")));
+            assertEquals(ZipEntry.STORED, zip.getEntry("netbeans/ide/modules/stored.jar").getMethod());
+            assertEquals("org.foo, " + KEY, friends(read(zip, "netbeans/ide/modules/stored.jar")));
+            assertEquals("org.foo, " + KEY, friends(read(zip, "netbeans/java/modules/deflated.jar")));
+            assertNull(friends(read(zip, "netbeans/java/modules/public.jar")));
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static List<JarPatchResult.Status> statuses(PatchRun run) {
+        List<JarPatchResult.Status> statuses = new ArrayList<JarPatchResult.Status>();
+        for (JarPatchResult result : run.getResults()) {
+            statuses.add(result.getStatus());
+        }
+        return statuses;
+    }
+
+    private static byte[] jar(String friends) throws IOException {
+        return TestFiles.jar().friends(friends).classes(3, 2000).toBytes();
+    }
+
+    private static byte[] read(ZipFile zip, String name) throws IOException {
+        InputStream in = zip.getInputStream(zip.getEntry(name));
+        try {
+            return TestFiles.read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String friends(byte[] jar) throws IOException {
+        JarInputStream in = new JarInputStream(new ByteArrayInputStream(jar));
+        try {
+            int entries = 0;
+            while (in.getNextJarEntry() != null) {
+                entries++;
+            }
+            assertEquals(3, entries);
+            return in.getManifest().getMainAttributes().getValue("OpenIDE-Module-Friends");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.zip.ZipException;
+import junit.framework.TestCase;
+
+/**
+ * Patched jar verification test
+ */
+public class JarVerifierTest extends TestCase {
+
+    private static final Collection<String> KEYS = Arrays.asList("com.viettel.vep.tools");
+    private File jar;
+    private File patched;
+    private final PatchOptions options = new PatchOptions();
+
+    @Override
+    protected void setUp() throws Exception {
+        jar = File.createTempFile("friendlizer", ".jar");
+        patched = new File(jar.getPath() + FriendlizerUtilities.SUBFIX_VEP_TOOL_TEMPLATE_ZIP_FILE);
+        options.setCache(false);
+        TestFiles.jar().friends("org.foo").classes(3, 5000).write(jar);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        jar.delete();
+        patched.delete();
+    }
+
+    public void testPatchedCopyIsVerified() throws IOException {
+        assertNull(FriendlizerUtilities.copyingModuleJarFile(jar.getPath(), KEYS, options,
+                PatchListener.NONE, new JarMetrics(), null, new PatchCache.Slot()));
+        assertTrue(JarVerifier.verify(jar, patched, KEYS) > 0);
+
+        try {
+            JarVerifier.verify(jar, patched, Arrays.asList("com.viettel.vep.other"));
+            fail("Missing friend accepted");
+        } catch (ZipException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("com.viettel.vep.other"));
+        }
+    }
+
+    public void testCorruptedCopyIsNotReplaced() throws IOException {
+        byte[] original = Files.readAllBytes(jar.toPath());
+        assertNull(FriendlizerUtilities.copyingModuleJarFile(jar.getPath(), KEYS, options,
+                PatchListener.NONE, new JarMetrics(), null, new PatchCache.Slot()));
+        // Flip the CRC-32 of the last entry in the central directory
+        RandomAccessFile file = new RandomAccessFile(patched, "rw");
+        try {
+            ZipDirectory directory = ZipDirectory.read(file.getChannel());
+            ZipDirectory.Entry last = directory.getEntries().get(directory.getEntries().size() - 1);
+            long crcPosition = directory.getCentralOffset() + last.getRecordOffset() + 16;
+            file.seek(crcPosition);
+            int crc = file.read();
+            file.seek(crcPosition);
+            file.write(crc ^ 0xFF);
+        } finally {
+            file.close();
+        }
+
+        JarMetrics metrics = new JarMetrics();
+        assertEquals(JarPatchResult.Status.FAILED, FriendlizerUtilities.replacingModuleJarFile(jar.getPath(), KEYS,
+                options, PatchListener.NONE, metrics, new PatchCache.Slot()));
+        assertFalse(patched.exists());
+        assertTrue(Arrays.equals(original, Files.readAllBytes(jar.toPath())));
+        assertTrue(metrics.getVerifyNanos() > 0);
+    }
+
+    public void testJarPatchedInPlaceIsVerified() throws IOException {
+        FileChannel channel = FileChannel.open(jar.toPath(), StandardOpenOption.READ);
+        ZipDirectory original;
+        try {
+            original = ZipDirectory.read(channel);
+        } finally {
+            channel.close();
+        }
+        PatchOptions inPlace = PatchOptions.copyOf(options);
+        inPlace.setInPlace(true);
+        JarMetrics metrics = new JarMetrics();
+        assertEquals(JarPatchResult.Status.PATCHED, FriendlizerUtilities.patchingModuleJarFile(jar.getPath(), KEYS,
+                inPlace, PatchListener.NONE, metrics, null));
+        assertTrue(metrics.getBytesVerified() > 0);
+        assertFalse(patched.exists());
+
+        channel = FileChannel.open(jar.toPath(), StandardOpenOption.READ);
+        try {
+            JarVerifier.verify(original, channel, Arrays.asList("com.viettel.vep.other"));
+            fail("Missing friend accepted");
+        } catch (ZipException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("com.viettel.vep.other"));
+        } finally {
+            channel.close();
+        }
+    }
+}
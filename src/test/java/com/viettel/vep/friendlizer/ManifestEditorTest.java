@@ -0,0 +1,72 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.jar.Manifest;
+import junit.framework.TestCase;
+
+/**
+ * Byte level manifest edit test
+ */
+public class ManifestEditorTest extends TestCase {
+
+    private static final String HEAD = "Manifest-Version: 1.0\r\nOpenIDE-Module: org.foo.api\r\n";
+    private static final String TAIL = "OpenIDE-Module-Specification-Version: 1.2\r\n\r\nName: org/foo/\r\n"
+            + "OpenIDE-Module-Friends: org.other\r\n\r\n";
+
+    public void testFriendsAreMatchedExactly() {
+        ManifestEditor editor = new ManifestEditor(bytes(HEAD
+                + "OpenIDE-Module-Friends: com.foo.bar, org.baz\r\n" + TAIL));
+        assertEquals(Arrays.asList("com.foo.bar", "org.baz"), Arrays.asList(editor.getFriends().toArray()));
+        assertEquals(Collections.singleton("com.foo"), editor.getMissingFriends(Arrays.asList("com.foo", "org.baz")));
+
+        assertEquals(HEAD + "OpenIDE-Module-Friends: com.foo.bar, org.baz, com.foo\r\n" + TAIL,
+                string(editor.addFriends(Collections.singleton("com.foo"))));
+        assertNull(editor.addFriends(Collections.singleton("com.foo.bar")));
+    }
+
+    public void testOnlyFriendListIsChanged() throws IOException {
+        byte[] patched = new ManifestEditor(bytes(HEAD + "OpenIDE-Module-Friends: org.baz\r\n" + TAIL))
+                .addFriends(Arrays.asList("com.foo", "org.baz", "com.bar"));
+        assertEquals(HEAD + "OpenIDE-Module-Friends: org.baz, com.foo, com.bar\r\n" + TAIL, string(patched));
+        assertEquals("org.baz, com.foo, com.bar", new Manifest(new ByteArrayInputStream(patched))
+                .getMainAttributes().getValue("OpenIDE-Module-Friends"));
+    }
+
+    public void testContinuationLinesAreKept() throws IOException {
+        StringBuilder friends = new StringBuilder("org.netbeans.modules.friend0");
+        for (int i = 1; i < 20; i++) {
+            friends.append(", org.netbeans.modules.friend").append(i);
+        }
+        Manifest original = new Manifest();
+        original.getMainAttributes().putValue("Manifest-Version", "1.0");
+        original.getMainAttributes().putValue("OpenIDE-Module-Friends", friends.toString());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        original.write(out);
+
+        byte[] patched = new ManifestEditor(out.toByteArray()).addFriends(Collections.singleton("com.viettel.vep.tools"));
+        for (String line : string(patched).split("\r\n")) {
+            assertTrue(line, line.length() <= 72);
+        }
+        assertEquals(friends + ", com.viettel.vep.tools", new Manifest(new ByteArrayInputStream(patched))
+                .getMainAttributes().getValue("OpenIDE-Module-Friends"));
+    }
+
+    public void testNothingToAdd() {
+        assertNull(new ManifestEditor(bytes(HEAD + "OpenIDE-Module-Friends: org.baz\n\n"))
+                .addFriends(Collections.singleton("org.baz")));
+        // Without friend list the module API is public, nothing to patch
+        assertNull(new ManifestEditor(bytes(HEAD + TAIL)).addFriends(Collections.singleton("org.other")));
+    }
+
+    private static byte[] bytes(String manifest) {
+        return manifest.getBytes(ZipDirectory.UTF8);
+    }
+
+    private static String string(byte[] manifest) {
+        return new String(manifest, ZipDirectory.UTF8);
+    }
+}
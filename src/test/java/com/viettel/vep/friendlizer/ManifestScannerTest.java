@@ -0,0 +1,67 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipException;
+import junit.framework.TestCase;
+
+/**
+ * Manifest scanner and dry run test
+ */
+public class ManifestScannerTest extends TestCase {
+
+    private static final String KEY = "com.viettel.vep.tools";
+    private File netbeans;
+
+    @Override
+    protected void setUp() throws Exception {
+        netbeans = TestFiles.createFolder();
+        TestFiles.jar().friends("org.foo").classes(3, 2000).write(new File(netbeans, "ide/modules/friend.jar"));
+        TestFiles.jar().classes(1, 100).write(new File(netbeans, "ide/modules/public.jar"));
+        TestFiles.jar().friends("org.foo, " + KEY).write(new File(netbeans, "ide/modules/patched.jar"));
+        Files.write(new File(netbeans, "ide/modules/broken.jar").toPath(), "not a jar".getBytes(ZipDirectory.UTF8));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestFiles.delete(netbeans);
+    }
+
+    public void testOnlyManifestIsRead() throws IOException {
+        File jar = new File(netbeans, "ide/modules/friend.jar");
+        ManifestScanner.Result scanned = ManifestScanner.scan(jar);
+        assertEquals(4, scanned.getDirectory().getEntries().size());
+        assertEquals(RawJarWriter.META_INF_MANIFEST_ENTRY, scanned.getEntry().getName());
+        assertTrue(new String(scanned.getManifest(), ZipDirectory.UTF8).contains("OpenIDE-Module-Friends: org.foo"));
+        // Nothing is left mapped or open: the jar can be replaced at once
+        assertTrue(jar.delete());
+
+        try {
+            ManifestScanner.scan(new File(netbeans, "ide/modules/broken.jar"));
+            fail("Broken jar scanned");
+        } catch (ZipException e) {
+            assertEquals("End of central directory not found", e.getMessage());
+        }
+    }
+
+    public void testPlan() {
+        PatchPlan plan = new PatchPlan();
+        for (String jar : new String[]{"friend.jar", "public.jar", "patched.jar", "broken.jar", "missing.jar"}) {
+            plan.add("ide/modules/" + jar, KEY);
+        }
+        List<JarPlanResult> results = new PatchEngine(new PatchOptions(), PatchListener.NONE)
+                .plan(netbeans.getPath(), plan);
+
+        assertEquals(5, results.size());
+        assertEquals(JarPatchResult.Status.PATCHED, results.get(0).getStatus());
+        assertEquals(Collections.singleton(KEY), results.get(0).getMissingKeys());
+        assertTrue(results.get(0).getBytesToWrite() > 0);
+        assertEquals(JarPatchResult.Status.UNCHANGED, results.get(1).getStatus());
+        assertEquals(JarPatchResult.Status.UNCHANGED, results.get(2).getStatus());
+        assertEquals(JarPatchResult.Status.FAILED, results.get(3).getStatus());
+        assertEquals(JarPatchResult.Status.MISSING, results.get(4).getStatus());
+    }
+}
@@ -0,0 +1,85 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * External module configuration test
+ */
+public class ModuleConfigurationTest extends TestCase {
+
+    private File folder;
+    private String userHome;
+
+    @Override
+    protected void setUp() throws Exception {
+        folder = TestFiles.createFolder();
+        userHome = System.getProperty("user.home");
+        System.setProperty("user.home", new File(folder, "home").getPath());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        System.setProperty("user.home", userHome);
+        TestFiles.delete(folder);
+    }
+
+    public void testModulesAreMergedAndSnapshotted() throws IOException {
+        File modules = new File(folder, "modules.d");
+        modules.mkdirs();
+        write(new File(modules, "a.properties"), "patch.parallelism=3\n"
+                + "module.tools.key=org.example.tools\n"
+                + "module.tools.description=Example tools\n"
+                + "module.tools.dependencies=ide/modules/a.jar \\\n    org.netbeans.modules.b\n");
+        write(new File(modules, "b.properties"), "module.more.key=org.example.tools\n"
+                + "module.more.transitive=true\n"
+                + "module.more.dependencies=org.netbeans.modules.b  ide/modules/c.jar\n");
+
+        ModuleConfiguration configuration = new ModuleConfiguration(Arrays.asList(modules));
+        assertEquals(3, configuration.getPatchOptions().getParallelism());
+        ModuleConfiguration.Module tools = find(configuration, "org.example.tools");
+        assertEquals(Arrays.asList("ide/modules/a.jar", "org.netbeans.modules.b", "ide/modules/c.jar"),
+                Arrays.asList(tools.getDependences()));
+        assertTrue(tools.isTransitive());
+        assertEquals("Example tools", tools.getDescription());
+
+        File[] snapshots = new File(folder, "home/" + PatchJournal.JOURNAL_FOLDER).listFiles();
+        assertEquals(1, snapshots.length);
+        ModuleConfiguration cached = new ModuleConfiguration(Arrays.asList(modules));
+        assertEquals(configuration.getModules().length, cached.getModules().length);
+        assertEquals(Arrays.asList(tools.getDependences()),
+                Arrays.asList(find(cached, "org.example.tools").getDependences()));
+        assertEquals(3, cached.getPatchOptions().getParallelism());
+    }
+
+    public void testAllErrorsAreReported() throws IOException {
+        File file = new File(folder, "bad.properties");
+        write(file, "module.a.key=not a code name\n"
+                + "module.a.dependencies=x.jar\n"
+                + "module.b.key=org.b\n"
+                + "module.b.dependencies=../outside.jar\n"
+                + "module.b.typo=1\n");
+        try {
+            new ModuleConfiguration(Arrays.asList(file));
+            fail("Invalid configuration accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("3 configuration errors"));
+        }
+    }
+
+    private static ModuleConfiguration.Module find(ModuleConfiguration configuration, String key) {
+        for (ModuleConfiguration.Module module : configuration.getModules()) {
+            if (key.equals(module.getKey())) {
+                return module;
+            }
+        }
+        return null;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes("ISO-8859-1"));
+    }
+}
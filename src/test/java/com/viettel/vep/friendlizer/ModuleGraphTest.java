@@ -0,0 +1,94 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Module dependency graph test
+ */
+public class ModuleGraphTest extends TestCase {
+
+    private File netbeans;
+
+    @Override
+    protected void setUp() throws Exception {
+        netbeans = TestFiles.createFolder();
+        jar("ide/modules/org-foo-editor.jar", "org.foo.editor", "org.foo.lexer > 1.0, org.openide.util > 8.0", true);
+        jar("ide/modules/org-foo-lexer.jar", "org.foo.lexer/2", "org.foo.parser/1-2 = 201301", false);
+        jar("ide/modules/org-foo-parser.jar", "org.foo.parser/1", "org.foo.editor", true);
+        jar("platform/lib/org-openide-util.jar", "org.openide.util", null, false);
+        jar("ide/modules/org-foo-other.jar", "org.foo.other", "org.openide.util", true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestFiles.delete(netbeans);
+    }
+
+    public void testParseDependencies() {
+        assertEquals(Arrays.asList("org.openide.util", "org.netbeans.api.java", "org.foo"),
+                ModuleGraph.parseDependencies("org.openide.util > 8.0, org.netbeans.api.java/1 = 201301,org.foo"));
+    }
+
+    public void testFriendOnlyClosure() {
+        ModuleIndex index = ModuleIndex.load(netbeans, 2, PatchListener.NONE);
+        ModuleGraph graph = ModuleGraph.of(netbeans, index);
+        assertEquals(5, graph.size());
+        assertEquals(5, graph.getEdgeCount());
+
+        // The public lexer between the editor and the parser stops the closure
+        assertEquals(Arrays.asList("ide/modules/org-foo-editor.jar"), closure(graph, "org.foo.editor"));
+        // A public root is followed
+        assertEquals(Arrays.asList("ide/modules/org-foo-parser.jar", "ide/modules/org-foo-editor.jar"),
+                closure(graph, "org.foo.lexer"));
+        assertEquals(Collections.emptyList(), closure(graph, "org.openide.util"));
+
+        assertSame(graph, ModuleGraph.of(netbeans, ModuleIndex.load(netbeans, 2, PatchListener.NONE)));
+    }
+
+    public void testGraphIsUpdated() throws IOException {
+        ModuleGraph graph = ModuleGraph.of(netbeans, ModuleIndex.load(netbeans, 2, PatchListener.NONE));
+
+        // Patched friend list, same dependencies
+        TestFiles.jar().codeName("org.foo.other").attribute("OpenIDE-Module-Module-Dependencies", "org.openide.util")
+                .friends("org.foo.friend, org.foo.key").write(new File(netbeans, "ide/modules/org-foo-other.jar"));
+        ModuleGraph updated = ModuleGraph.of(netbeans, ModuleIndex.load(netbeans, 2, PatchListener.NONE));
+        assertTrue(graph != updated);
+        assertEquals(5, updated.getEdgeCount());
+        assertEquals(Arrays.asList("ide/modules/org-foo-parser.jar", "ide/modules/org-foo-editor.jar"),
+                closure(updated, "org.foo.lexer"));
+
+        // The lexer no longer depends on the parser
+        jar("ide/modules/org-foo-lexer.jar", "org.foo.lexer/2", "org.openide.util", false);
+        updated = ModuleGraph.of(netbeans, ModuleIndex.load(netbeans, 2, PatchListener.NONE));
+        assertEquals(5, updated.size());
+        assertEquals(5, updated.getEdgeCount());
+        assertEquals(Collections.emptyList(), closure(updated, "org.foo.lexer"));
+        assertEquals(Arrays.asList("ide/modules/org-foo-editor.jar"), closure(updated, "org.foo.editor"));
+
+        // A new module
+        jar("ide/modules/org-foo-new.jar", "org.foo.new", "org.foo.parser", false);
+        updated = ModuleGraph.of(netbeans, ModuleIndex.load(netbeans, 2, PatchListener.NONE));
+        assertEquals(6, updated.size());
+        assertEquals(Arrays.asList("ide/modules/org-foo-parser.jar", "ide/modules/org-foo-editor.jar"),
+                closure(updated, "org.foo.new"));
+    }
+
+    private static List<String> closure(ModuleGraph graph, String codeNameBase) {
+        List<String> jars = new ArrayList<String>();
+        for (ModuleIndex.Entry module : graph.getFriendOnlyClosure(Collections.singleton(codeNameBase))) {
+            jars.add(module.getPath());
+        }
+        return jars;
+    }
+
+    private void jar(String path, String codeName, String dependencies, boolean friendOnly) throws IOException {
+        TestFiles.jar().codeName(codeName).attribute("OpenIDE-Module-Module-Dependencies", dependencies)
+                .friends(friendOnly ? "org.foo.friend" : null).write(new File(netbeans, path));
+    }
+}
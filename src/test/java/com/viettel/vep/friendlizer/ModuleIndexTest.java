@@ -0,0 +1,84 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import junit.framework.TestCase;
+
+/**
+ * Module index test
+ */
+public class ModuleIndexTest extends TestCase {
+
+    private File netbeans;
+
+    @Override
+    protected void setUp() throws Exception {
+        netbeans = TestFiles.createFolder();
+        jar("platform/lib/org-openide-util.jar", "org.openide.util");
+        jar("ide/modules/org-netbeans-modules-web-common.jar", "org.netbeans.modules.web.common/1");
+        jar("ide/modules/ext/library.jar", null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestFiles.delete(netbeans);
+    }
+
+    public void testResolveCodeNamesAndMovedJars() {
+        ModuleIndex index = ModuleIndex.load(netbeans, 2, PatchListener.NONE);
+        assertEquals(2, index.getModules().size());
+        assertEquals("org.netbeans.modules.web.common/1", index.find("org.netbeans.modules.web.common").getCodeName());
+        assertEquals("1.2", index.find("org.openide.util").getSpecificationVersion());
+
+        assertEquals("ide/modules/org-netbeans-modules-web-common.jar",
+                index.resolve("org.netbeans.modules.web.common"));
+        assertEquals("ide/modules/org-netbeans-modules-web-common.jar",
+                index.resolve("webcommon/modules/org-netbeans-modules-web-common.jar"));
+        assertNull(index.resolve("org.netbeans.modules.missing"));
+    }
+
+    public void testCachedIndexOnlyReadsChangedJars() throws IOException {
+        assertEquals(2, ModuleIndex.load(netbeans, 2, PatchListener.NONE).getScanned());
+        assertEquals(0, ModuleIndex.load(netbeans, 2, PatchListener.NONE).getScanned());
+
+        File jar = new File(netbeans, "platform/lib/org-openide-util.jar");
+        assertTrue(jar.setLastModified(jar.lastModified() - 10000));
+        ModuleIndex index = ModuleIndex.load(netbeans, 2, PatchListener.NONE);
+        assertEquals(1, index.getScanned());
+        assertEquals(2, index.getModules().size());
+    }
+
+    public void testMalformedJarIsNotAModule() throws IOException {
+        // Name running past the central directory, data past the central directory
+        corrupt("ide/modules/org-netbeans-modules-web-common.jar", 28, 0xFFFF);
+        jar("ide/modules/org-netbeans-modules-broken.jar", "org.netbeans.modules.broken");
+        corrupt("ide/modules/org-netbeans-modules-broken.jar", 20, 0x7FFF);
+
+        ModuleIndex index = ModuleIndex.load(netbeans, 2, PatchListener.NONE);
+        assertEquals(1, index.getModules().size());
+        assertNull(index.find("org.netbeans.modules.web.common"));
+        assertNull(index.getJar("ide/modules/org-netbeans-modules-broken.jar").getCodeName());
+    }
+
+    private void jar(String path, String codeName) throws IOException {
+        TestFiles.jar().codeName(codeName)
+                .attribute("OpenIDE-Module-Specification-Version", codeName != null ? "1.2" : null)
+                .write(new File(netbeans, path));
+    }
+
+    /**
+     * Overwrite a 16 bit field of the first central directory header
+     */
+    private void corrupt(String path, int field, int value) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(netbeans, path), "rw");
+        try {
+            long position = ZipDirectory.read(file.getChannel()).getCentralOffset() + field;
+            file.seek(position);
+            file.write(value & 0xFF);
+            file.write(value >> 8);
+        } finally {
+            file.close();
+        }
+    }
+}
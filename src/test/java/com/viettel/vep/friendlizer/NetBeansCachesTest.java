@@ -0,0 +1,57 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * NetBeans module caches invalidation test
+ */
+public class NetBeansCachesTest extends TestCase {
+
+    private File folder;
+    private File netbeans;
+
+    @Override
+    protected void setUp() throws Exception {
+        folder = TestFiles.createFolder();
+        netbeans = new File(folder, "netbeans");
+        new File(netbeans, "etc").mkdirs();
+        new File(netbeans, "ide/modules").mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestFiles.delete(folder);
+    }
+
+    public void testOnlyModuleCachesAreDeleted() throws IOException {
+        File userdir = new File(folder, "userdir");
+        File cache = new File(userdir, "var/cache");
+        new File(cache, "index").mkdirs();
+        for (String name : new String[]{"all-manifests.dat", "all-modules.dat", "all-layers.dat", "index/segments"}) {
+            Files.write(new File(cache, name).toPath(), new byte[1]);
+        }
+        Files.write(new File(netbeans, "etc/netbeans.conf").toPath(), ("# NetBeans launcher\n"
+                + "netbeans_default_userdir=\"" + userdir.getPath() + "\"\n"
+                + "netbeans_default_cachedir=\"${DEFAULT_CACHEDIR_ROOT}/missing\"\n").getBytes(ZipDirectory.UTF8));
+
+        assertEquals(Arrays.asList(cache), NetBeansCaches.findCacheFolders(netbeans));
+        assertEquals(2, NetBeansCaches.invalidate(netbeans, Arrays.asList("ide/modules/module.jar"),
+                PatchListener.NONE).size());
+        assertFalse(new File(cache, "all-manifests.dat").exists());
+        assertFalse(new File(cache, "all-modules.dat").exists());
+        assertTrue(new File(cache, "all-layers.dat").exists());
+        assertTrue(new File(cache, "index/segments").exists());
+        assertFalse(new File(netbeans, "ide/" + NetBeansCaches.CLUSTER_STAMP).exists());
+    }
+
+    public void testClusterStampIsTouchedWithoutUserdir() {
+        assertTrue(NetBeansCaches.invalidate(netbeans, Arrays.<String>asList(), PatchListener.NONE).isEmpty());
+        assertEquals(Arrays.asList(new File(netbeans, "ide/" + NetBeansCaches.CLUSTER_STAMP)),
+                NetBeansCaches.invalidate(netbeans, Arrays.asList("ide/modules/module.jar"), PatchListener.NONE));
+        assertTrue(new File(netbeans, "ide/" + NetBeansCaches.CLUSTER_STAMP).isFile());
+    }
+}
@@ -0,0 +1,130 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.zip.ZipEntry;
+import junit.framework.TestCase;
+
+/**
+ * Parallel recompression test
+ */
+public class ParallelJarWriterTest extends TestCase {
+
+    private final Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+    private File jar;
+    private File patched;
+
+    @Override
+    protected void setUp() throws Exception {
+        jar = File.createTempFile("friendlizer", ".jar");
+        patched = new File(jar.getPath() + ".patched");
+
+        // Compressible content over several blocks, with matches across blocks
+        Random random = new Random(1);
+        byte[] words = new byte[ParallelJarWriter.BLOCK_SIZE * 3 + 1234];
+        byte[] word = new byte[64];
+        for (int i = 0; i < words.length; i += word.length) {
+            if (random.nextInt(4) == 0) {
+                random.nextBytes(word);
+            }
+            System.arraycopy(word, 0, words, i, Math.min(word.length, words.length - i));
+        }
+        contents.put("org/foo/", new byte[0]);
+        contents.put("org/foo/Large.bin", words);
+        contents.put("org/foo/Empty.txt", new byte[0]);
+        contents.put("org/foo/Small.class", "small class".getBytes("UTF-8"));
+        byte[] noise = new byte[3000];
+        random.nextBytes(noise);
+        contents.put("org/foo/Noise.bin", noise);
+
+        TestFiles.Jar builder = TestFiles.jar().friends("org.foo");
+        for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+            if (content.getKey().endsWith(".class")) {
+                builder.storedEntry(content.getKey(), content.getValue());
+            } else {
+                builder.entry(content.getKey(), content.getValue());
+            }
+        }
+        builder.write(jar);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        jar.delete();
+        patched.delete();
+    }
+
+    public void testEntriesAreRecompressedInOrder() throws IOException {
+        JarFile jarfile = new JarFile(jar);
+        ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        jarfile.getManifest().write(manifestBytes);
+        byte[] manifest = new ManifestEditor(manifestBytes.toByteArray())
+                .addFriends(Collections.singleton("com.viettel.vep.tools"));
+        ParallelJarWriter writer = new ParallelJarWriter(9, 4);
+        FileOutputStream out = new FileOutputStream(patched);
+        try {
+            assertEquals(writer.rewrite(jarfile, manifest, out.getChannel()), out.getChannel().size());
+        } finally {
+            out.close();
+            jarfile.close();
+        }
+        assertEquals(contents.size(), writer.getEntriesCopied());
+
+        // Sequential readers use the local headers, in the original order
+        JarInputStream in = new JarInputStream(new FileInputStream(patched));
+        try {
+            assertEquals("org.foo, com.viettel.vep.tools",
+                    in.getManifest().getMainAttributes().getValue("OpenIDE-Module-Friends"));
+            for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+                JarEntry entry = in.getNextJarEntry();
+                assertEquals(content.getKey(), entry.getName());
+                assertTrue(content.getKey(), Arrays.equals(content.getValue(), TestFiles.read(in)));
+            }
+            assertNull(in.getNextJarEntry());
+        } finally {
+            in.close();
+        }
+
+        JarFile result = new JarFile(patched);
+        try {
+            JarEntry large = result.getJarEntry("org/foo/Large.bin");
+            assertEquals(ZipEntry.DEFLATED, large.getMethod());
+            assertTrue(large.getCompressedSize() < large.getSize() / 2);
+            assertEquals(ZipEntry.STORED, result.getJarEntry("org/foo/Noise.bin").getMethod());
+            InputStream stream = result.getInputStream(large);
+            try {
+                assertTrue(Arrays.equals(contents.get("org/foo/Large.bin"), TestFiles.read(stream)));
+            } finally {
+                stream.close();
+            }
+        } finally {
+            result.close();
+        }
+        JarVerifier.verify(jar, patched, Collections.singleton("com.viettel.vep.tools"));
+
+        // The pool shared by all jars writes the same bytes
+        byte[] expected = Files.readAllBytes(patched.toPath());
+        jarfile = new JarFile(jar);
+        out = new FileOutputStream(patched);
+        try {
+            ParallelJarWriter.shared(9).rewrite(jarfile, manifest, out.getChannel());
+        } finally {
+            out.close();
+            jarfile.close();
+        }
+        assertTrue(Arrays.equals(expected, Files.readAllBytes(patched.toPath())));
+    }
+}
@@ -0,0 +1,126 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import junit.framework.TestCase;
+
+/**
+ * Patched copies cache test
+ */
+public class PatchCacheTest extends TestCase {
+
+    private static final Collection<String> KEYS = Arrays.asList("com.viettel.vep.tools", "com.viettel.vep.core");
+    private File folder;
+    private PatchOptions options;
+
+    @Override
+    protected void setUp() throws Exception {
+        folder = TestFiles.createFolder();
+        options = new PatchOptions();
+        options.setCacheFolder(new File(folder, "cache"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestFiles.delete(folder);
+    }
+
+    public void testIdenticalJarIsCopiedFromCache() throws IOException {
+        File first = jar("first.jar", "org.foo");
+        File second = new File(folder, "second.jar");
+        Files.copy(first.toPath(), second.toPath());
+
+        JarMetrics patched = new JarMetrics();
+        assertEquals(JarPatchResult.Status.PATCHED, FriendlizerUtilities.patchingModuleJarFile(first.getPath(), KEYS,
+                options, PatchListener.NONE, patched, null));
+        assertTrue(patched.getEntriesCopied() > 0);
+        // Stored as a link to the patched jar, given its own file once used
+        String key = PatchCache.key(second, KEYS, options);
+        File object = new File(new File(options.getCacheFolder(), key.substring(0, 2)), key + ".jar");
+        assertEquals(2, Files.getAttribute(object.toPath(), "unix:nlink"));
+
+        // Same keys in another order: same cache key, nothing read from the jar
+        JarMetrics cached = new JarMetrics();
+        assertEquals(JarPatchResult.Status.PATCHED, FriendlizerUtilities.patchingModuleJarFile(second.getPath(),
+                Arrays.asList("com.viettel.vep.core", "com.viettel.vep.tools"), options, PatchListener.NONE,
+                cached, null));
+        assertEquals(0, cached.getEntriesCopied());
+        assertEquals(0, cached.getManifestNanos());
+        assertTrue(Arrays.equals(Files.readAllBytes(first.toPath()), Files.readAllBytes(second.toPath())));
+        assertEquals(1, Files.getAttribute(object.toPath(), "unix:nlink"));
+
+        // Other keys or another compression: other cache keys
+        assertFalse(PatchCache.key(first, KEYS, options).equals(
+                PatchCache.key(first, Arrays.asList("com.viettel.vep.tools"), options)));
+        PatchOptions recompress = PatchOptions.copyOf(options);
+        recompress.setRecompress(true);
+        assertFalse(PatchCache.key(first, KEYS, options).equals(PatchCache.key(first, KEYS, recompress)));
+    }
+
+    public void testUnchangedJarIsRemembered() throws IOException {
+        File jar = jar("public.jar", null);
+        assertEquals(JarPatchResult.Status.UNCHANGED, FriendlizerUtilities.patchingModuleJarFile(jar.getPath(), KEYS,
+                options, PatchListener.NONE, new JarMetrics(), null));
+        assertTrue(PatchCache.open(options.getCacheFolder()).isUnchanged(PatchCache.key(jar, KEYS, options)));
+        JarMetrics cached = new JarMetrics();
+        assertEquals(JarPatchResult.Status.UNCHANGED, FriendlizerUtilities.patchingModuleJarFile(jar.getPath(), KEYS,
+                options, PatchListener.NONE, cached, null));
+        assertEquals(0, cached.getManifestNanos());
+    }
+
+    public void testOnlyVerifiedCopiesAreCached() throws IOException {
+        File jar = jar("module.jar", "org.foo");
+        File copy = new File(jar.getPath() + FriendlizerUtilities.SUBFIX_VEP_TOOL_TEMPLATE_ZIP_FILE);
+        File fetched = new File(folder, "fetched.jar");
+        PatchCache cache = PatchCache.open(options.getCacheFolder());
+        String key = PatchCache.key(jar, KEYS, options);
+
+        // Copy failing verification: not stored
+        PatchCache.Slot slot = new PatchCache.Slot();
+        assertNull(FriendlizerUtilities.copyingModuleJarFile(jar.getPath(), KEYS, options, PatchListener.NONE,
+                new JarMetrics(), null, slot));
+        Files.copy(jar.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        assertEquals(JarPatchResult.Status.FAILED, FriendlizerUtilities.replacingModuleJarFile(jar.getPath(), KEYS,
+                options, PatchListener.NONE, new JarMetrics(), slot));
+        assertFalse(cache.fetch(key, fetched));
+
+        // Cached copy failing verification: evicted, the jar is patched next time
+        cache.store(key, jar);
+        assertEquals(JarPatchResult.Status.FAILED, FriendlizerUtilities.patchingModuleJarFile(jar.getPath(), KEYS,
+                options, PatchListener.NONE, new JarMetrics(), null));
+        assertFalse(cache.fetch(key, fetched));
+        assertEquals(JarPatchResult.Status.PATCHED, FriendlizerUtilities.patchingModuleJarFile(jar.getPath(), KEYS,
+                options, PatchListener.NONE, new JarMetrics(), null));
+        assertTrue(cache.fetch(key, fetched));
+        assertTrue(Arrays.equals(Files.readAllBytes(jar.toPath()), Files.readAllBytes(fetched.toPath())));
+    }
+
+    public void testLeastRecentlyUsedCopiesAreEvicted() throws IOException {
+        PatchCache cache = PatchCache.open(options.getCacheFolder());
+        File jar = jar("module.jar", "org.foo");
+        File fetched = new File(folder, "fetched.jar");
+        String[] keys = new String[3];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = PatchCache.key(FileFingerprint.hash("jar " + i), KEYS, options);
+            cache.store(keys[i], jar);
+            assertTrue(cache.fetch(keys[i], fetched));
+            File object = new File(new File(options.getCacheFolder(), keys[i].substring(0, 2)), keys[i] + ".jar");
+            assertTrue(object.setLastModified(System.currentTimeMillis() - (3 - i) * 60000L));
+        }
+        assertTrue(cache.fetch(keys[0], fetched));
+
+        assertEquals(0, cache.trim(3 * jar.length()));
+        assertEquals(1, cache.trim(2 * jar.length()));
+        assertTrue(cache.fetch(keys[0], fetched));
+        assertFalse(cache.fetch(keys[1], fetched));
+        assertTrue(cache.fetch(keys[2], fetched));
+    }
+
+    private File jar(String name, String friends) throws IOException {
+        return TestFiles.jar().friends(friends).classes(3, 5000).write(new File(folder, name));
+    }
+}
@@ -0,0 +1,84 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Fleet of installations test
+ */
+public class PatchFleetTest extends TestCase {
+
+    private File folder;
+    private SyntheticInstallation installation;
+    private List<String> jars;
+
+    @Override
+    protected void setUp() throws Exception {
+        folder = TestFiles.createFolder();
+        installation = new SyntheticInstallation().setClusters(2).setJars(6).setEntries(1, 5)
+                .setFriendShapes(SyntheticInstallation.FriendShape.SHORT, SyntheticInstallation.FriendShape.NONE);
+        for (String name : new String[]{"nb-8.2", "nb-12.0", "other"}) {
+            jars = installation.generate(new File(folder, name));
+        }
+        new File(folder, "nb-notes.txt").createNewFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestFiles.delete(folder);
+    }
+
+    public void testPatternsAreExpanded() throws IOException {
+        String nb12 = new File(folder, "nb-12.0").getPath();
+        assertEquals(Arrays.asList(nb12, new File(folder, "nb-8.2").getPath()), PatchFleet.expand(
+                Arrays.asList(folder.getPath() + File.separator + "nb-*", nb12 + File.separator + "."),
+                PatchListener.NONE));
+        assertEquals(Arrays.asList(new File(folder, "other").getPath()), PatchFleet.expand(
+                Arrays.asList(new File(folder, "o?her").getPath(), new File(folder, "x*").getPath()),
+                PatchListener.NONE));
+        assertTrue(PatchFleet.isPattern("/opt/netbeans-{8,12}*"));
+        assertFalse(PatchFleet.isPattern("/opt/netbeans"));
+    }
+
+    public void testInstallationsArePatchedInOneRun() throws IOException {
+        PatchOptions options = new PatchOptions();
+        options.setBackup(false);
+        options.setCache(false);
+        options.setReport(false);
+        options.setDeviceParallelism(2);
+        PatchPlan plan = new PatchPlan();
+        for (String jar : jars) {
+            plan.add(jar, installation.getModuleKey());
+        }
+        List<String> netbeansPaths = PatchFleet.expand(Arrays.asList(new File(folder, "*").getPath()),
+                PatchListener.NONE);
+        final AtomicInteger started = new AtomicInteger();
+        FleetRun fleet = new PatchFleet(options, new StreamPatchListener(new PrintStream(new ByteArrayOutputStream()), true) {
+            @Override
+            public void runStarted(String netbeansPath, int jars) {
+                started.addAndGet(jars);
+            }
+        }).patch(netbeansPaths, plan);
+
+        assertTrue(fleet.isSuccessful());
+        assertEquals(1, fleet.getDevices());
+        assertEquals(3, fleet.getRuns().size());
+        PatchRun total = fleet.getTotal();
+        assertEquals(18, total.getResults().size());
+        assertEquals(18, started.get());
+        assertEquals(Integer.valueOf(9), total.getStatusCounts().get(JarPatchResult.Status.PATCHED));
+        assertEquals(Integer.valueOf(9), total.getStatusCounts().get(JarPatchResult.Status.UNCHANGED));
+        for (PatchRun run : fleet.getRuns()) {
+            assertEquals(6, run.getResults().size());
+            assertTrue(TestFiles.friends(new File(run.getNetbeansPath(), jars.get(0)))
+                    .contains(installation.getModuleKey()));
+        }
+        assertTrue(fleet.getSummary(), fleet.getSummary().startsWith("3 installations on 1 disks"));
+    }
+}
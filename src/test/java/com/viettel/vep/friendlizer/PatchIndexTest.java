@@ -0,0 +1,60 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Patched jars index test
+ */
+public class PatchIndexTest extends TestCase {
+
+    private static final String DEPENDENCY = "ide/modules/module.jar";
+    private File netbeans;
+    private File jar;
+
+    @Override
+    protected void setUp() throws Exception {
+        netbeans = TestFiles.createFolder();
+        new File(netbeans, "ide/modules").mkdirs();
+        jar = new File(netbeans, DEPENDENCY);
+        write("patched");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestFiles.delete(netbeans);
+    }
+
+    public void testJarIsSkippedWhileUnchanged() throws IOException {
+        PatchIndex index = PatchIndex.load(netbeans);
+        assertFalse(index.isPatched(DEPENDENCY, jar, Arrays.asList("org.foo")));
+        index.record(DEPENDENCY, jar, Arrays.asList("org.foo", "org.bar"));
+        index.save();
+
+        // Same size and modification time, only for recorded keys
+        index = PatchIndex.load(netbeans);
+        assertTrue(index.isPatched(DEPENDENCY, jar, Arrays.asList("org.bar")));
+        assertTrue(index.isPatched(DEPENDENCY, jar, Arrays.asList("org.foo", "org.bar")));
+        assertFalse(index.isPatched(DEPENDENCY, jar, Arrays.asList("org.foo", "org.baz")));
+
+        // Touched, same content
+        assertTrue(jar.setLastModified(jar.lastModified() - 60000L));
+        assertTrue(index.isPatched(DEPENDENCY, jar, Arrays.asList("org.foo")));
+
+        // Changed, same size or not
+        write("updated");
+        assertFalse(index.isPatched(DEPENDENCY, jar, Arrays.asList("org.foo")));
+        write("updated again");
+        assertFalse(index.isPatched(DEPENDENCY, jar, Arrays.asList("org.foo")));
+    }
+
+    private void write(String content) throws IOException {
+        long lastModified = jar.lastModified();
+        Files.write(jar.toPath(), content.getBytes(ZipDirectory.UTF8));
+        // Coarse file system clocks: always a new modification time
+        jar.setLastModified(Math.max(lastModified + 2000L, jar.lastModified()));
+    }
+}
@@ -0,0 +1,88 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import junit.framework.TestCase;
+
+/**
+ * Rollback journal test
+ */
+public class PatchJournalTest extends TestCase {
+
+    private File folder;
+    private File jar;
+
+    @Override
+    protected void setUp() throws Exception {
+        folder = TestFiles.createFolder();
+        new File(folder, "ide/modules").mkdirs();
+        jar = new File(folder, "ide/modules/module.jar");
+        Files.write(jar.toPath(), "original".getBytes(ZipDirectory.UTF8));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        PatchJournal.rollback(folder, PatchListener.NONE);
+        TestFiles.delete(folder);
+    }
+
+    public void testUnfinishedRunIsRecovered() throws IOException {
+        PatchJournal journal = PatchJournal.begin(folder, null);
+        journal.snapshot(jar, null);
+        replace("patched");
+        // No commit: the run was killed
+
+        assertEquals(Arrays.asList("ide/modules/module.jar"), PatchJournal.recover(folder, PatchListener.NONE));
+        assertEquals("original", content());
+    }
+
+    public void testCommittedRunIsKeptUntilRollback() throws IOException {
+        PatchJournal journal = PatchJournal.begin(folder, null);
+        journal.recordAppend(jar, null);
+        Files.write(jar.toPath(), " appended".getBytes(ZipDirectory.UTF8), StandardOpenOption.APPEND);
+        journal.commit();
+
+        assertEquals(Collections.emptyList(), PatchJournal.recover(folder, PatchListener.NONE));
+        assertEquals("original appended", content());
+        assertEquals(Arrays.asList("ide/modules/module.jar"), PatchJournal.rollback(folder, PatchListener.NONE));
+        assertEquals("original", content());
+    }
+
+    public void testLinkedJarIsNotWrittenThrough() throws IOException {
+        // Patch in place without backup a jar linked to the backup store
+        File module = TestFiles.jar().friends("org.foo").classes(2, 1000).write(new File(folder, "module.jar"));
+        File stored = new File(folder, "stored.jar");
+        Files.createLink(stored.toPath(), module.toPath());
+        byte[] original = Files.readAllBytes(module.toPath());
+        PatchOptions options = new PatchOptions();
+        options.setInPlace(true);
+        assertEquals(JarPatchResult.Status.PATCHED, FriendlizerUtilities.patchingModuleJarFile(module.getPath(),
+                Arrays.asList("org.bar"), options, PatchListener.NONE, new JarMetrics(), null));
+        assertTrue(Arrays.equals(original, Files.readAllBytes(stored.toPath())));
+
+        // Roll back an append of a jar linked since
+        PatchJournal journal = PatchJournal.begin(folder, null);
+        journal.recordAppend(jar, null);
+        Files.write(jar.toPath(), " appended".getBytes(ZipDirectory.UTF8), StandardOpenOption.APPEND);
+        journal.commit();
+        File shared = new File(folder, "shared.jar");
+        Files.createLink(shared.toPath(), jar.toPath());
+        assertEquals(Arrays.asList("ide/modules/module.jar"), PatchJournal.rollback(folder, PatchListener.NONE));
+        assertEquals("original", content());
+        assertEquals("original appended", new String(Files.readAllBytes(shared.toPath()), ZipDirectory.UTF8));
+    }
+
+    private void replace(String content) throws IOException {
+        File patched = new File(jar.getPath() + FriendlizerUtilities.SUBFIX_VEP_TOOL_TEMPLATE_ZIP_FILE);
+        Files.write(patched.toPath(), content.getBytes(ZipDirectory.UTF8));
+        PatchJournal.move(patched.toPath(), jar.toPath());
+    }
+
+    private String content() throws IOException {
+        return new String(Files.readAllBytes(jar.toPath()), ZipDirectory.UTF8);
+    }
+}
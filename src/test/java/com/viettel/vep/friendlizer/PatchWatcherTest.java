@@ -0,0 +1,80 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/**
+ * Watch mode test
+ */
+public class PatchWatcherTest extends TestCase {
+
+    private static final String KEY = "com.viettel.vep.tools";
+    private File folder;
+    private File jar;
+
+    @Override
+    protected void setUp() throws Exception {
+        folder = TestFiles.createFolder();
+        jar = TestFiles.jar().friends("org.foo").write(new File(folder, "ide/modules/module.jar"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestFiles.delete(folder);
+    }
+
+    public void testReplacedJarIsPatchedAgain() throws Exception {
+        byte[] original = Files.readAllBytes(jar.toPath());
+        PatchOptions options = new PatchOptions();
+        options.setBackup(false);
+        options.setCache(false);
+        options.setReport(false);
+        options.setWatchDelay(100);
+        final Semaphore runs = new Semaphore(0);
+        final PatchWatcher watcher = new PatchWatcher(options, new StreamPatchListener(System.out, true) {
+            @Override
+            public void runFinished(PatchRun run) {
+                runs.release();
+            }
+        });
+        final PatchPlan plan = new PatchPlan();
+        plan.add("ide/modules/module.jar", KEY);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    watcher.watch(Arrays.asList(folder.getPath()), plan);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        thread.start();
+        try {
+            assertTrue(runs.tryAcquire(10, TimeUnit.SECONDS));
+            assertTrue(friends(), friends().contains(KEY));
+
+            // Auto Update brings back a jar without the friend
+            Files.write(new File(folder, "ide/modules/other.jar").toPath(), original);
+            Files.write(jar.toPath(), original);
+            assertFalse(friends().contains(KEY));
+            assertTrue(runs.tryAcquire(10, TimeUnit.SECONDS));
+            assertTrue(friends(), friends().contains(KEY));
+            // Only the jar of the plan was patched, the replacement is not patched twice
+            assertFalse(runs.tryAcquire(500, TimeUnit.MILLISECONDS));
+        } finally {
+            watcher.stop();
+            thread.join(10000);
+        }
+        assertFalse(thread.isAlive());
+    }
+
+    private String friends() throws IOException {
+        return TestFiles.friends(jar);
+    }
+}
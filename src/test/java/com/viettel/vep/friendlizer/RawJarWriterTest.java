@@ -0,0 +1,112 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import junit.framework.TestCase;
+
+/**
+ * Raw jar rewrite test
+ */
+public class RawJarWriterTest extends TestCase {
+
+    private File jar;
+    private File patched;
+
+    @Override
+    protected void setUp() throws Exception {
+        jar = File.createTempFile("friendlizer", ".jar");
+        patched = new File(jar.getPath() + ".patched");
+
+        TestFiles.jar().friends("org.foo").entry("org/foo/Deflated.class", content(10000))
+                .storedEntry("org/foo/Stored.properties", content(300)).write(jar);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        jar.delete();
+        patched.delete();
+    }
+
+    public void testRewriteKeepsEntriesAndReplacesManifest() throws IOException {
+        FileInputStream in = new FileInputStream(jar);
+        FileOutputStream out = new FileOutputStream(patched);
+        try {
+            FileChannel source = in.getChannel();
+            RawJarWriter.rewrite(source, ZipDirectory.read(source), newManifest(), out.getChannel());
+        } finally {
+            in.close();
+            out.close();
+        }
+        assertPatched(patched);
+    }
+
+    public void testAppendKeepsExistingBytes() throws IOException {
+        long originalSize = jar.length();
+        RandomAccessFile file = new RandomAccessFile(jar, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            long appended = RawJarWriter.append(channel, ZipDirectory.read(channel), newManifest());
+            assertEquals(originalSize + appended, channel.size());
+        } finally {
+            file.close();
+        }
+        assertPatched(jar);
+    }
+
+    private static byte[] newManifest() throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue("OpenIDE-Module-Friends", "org.foo, com.viettel.vep.tools");
+        ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        manifest.write(manifestBytes);
+        return manifestBytes.toByteArray();
+    }
+
+    private static void assertPatched(File patched) throws IOException {
+        JarFile result = new JarFile(patched);
+        try {
+            assertEquals("org.foo, com.viettel.vep.tools",
+                    result.getManifest().getMainAttributes().getValue("OpenIDE-Module-Friends"));
+            assertEquals(3, result.size());
+            assertTrue(equals(content(10000), result.getInputStream(result.getEntry("org/foo/Deflated.class"))));
+            assertTrue(equals(content(300), result.getInputStream(result.getEntry("org/foo/Stored.properties"))));
+        } finally {
+            result.close();
+        }
+
+        JarInputStream stream = new JarInputStream(new FileInputStream(patched));
+        try {
+            assertNotNull(stream.getManifest());
+            assertEquals("org/foo/Deflated.class", stream.getNextJarEntry().getName());
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) ((i * 31) % 17 + 'a');
+        }
+        return content;
+    }
+
+    private static boolean equals(byte[] expected, InputStream actual) throws IOException {
+        try {
+            return Arrays.equals(expected, TestFiles.read(actual));
+        } finally {
+            actual.close();
+        }
+    }
+}
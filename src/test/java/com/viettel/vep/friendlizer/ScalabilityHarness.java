@@ -0,0 +1,317 @@
+package com.viettel.vep.friendlizer;
+
+import com.viettel.vep.friendlizer.ModuleConfiguration.Module;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * End to end scalability harness: patch synthetic installations of growing
+ * size and record wall clock time, throughput, peak heap and peak open file
+ * handles of every run. The curve can be checked against a baseline curve.
+ *
+ * Run from the test classes, sizes in jars:
+ * java -cp target/classes:target/test-classes com.viettel.vep.friendlizer.ScalabilityHarness
+ * [--baseline scalability.csv] [--tolerance 0.25] [--output scalability.csv] 10 100 1000 10000
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class ScalabilityHarness {
+
+    private static final String CSV_HEADER = "jars,bytes,wall_ms,mb_per_s,peak_heap_bytes,peak_open_files";
+
+    private ScalabilityHarness() {
+    }
+
+    /**
+     * Generate an installation and patch all its jars with the module key of
+     * the generator
+     *
+     * @param netbeansFolder empty folder for the installation
+     * @param installation generator settings
+     * @param options patching options
+     * @return measurement of the patch run, generation excluded
+     * @throws IOException generating error
+     */
+    public static Measurement measure(File netbeansFolder, SyntheticInstallation installation, PatchOptions options)
+            throws IOException {
+        List<String> jars = installation.generate(netbeansFolder);
+        long bytes = 0;
+        for (String jar : jars) {
+            bytes += new File(netbeansFolder, jar).length();
+        }
+        Module module = new ModuleConfiguration(Collections.<File>emptyList()).new Module();
+        module.setKey(installation.getModuleKey());
+        module.setDependences(jars.toArray(new String[jars.size()]));
+
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        OpenFilesSampler sampler = new OpenFilesSampler();
+        sampler.start();
+        long start = System.nanoTime();
+        PatchRun run;
+        try {
+            run = FriendlizerUtilities.patchingNetBeans(netbeansFolder.getPath(), new Module[]{module}, options,
+                    PatchListener.NONE);
+        } finally {
+            sampler.finish();
+        }
+        long wallNanos = System.nanoTime() - start;
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+        return new Measurement(jars.size(), bytes, wallNanos, peakHeap, sampler.getPeak(), run);
+    }
+
+    /**
+     * Measure every size in a fresh temporary installation, then delete it
+     *
+     * @param sizes number of jars of each run
+     * @param template generator settings, the number of jars is replaced
+     * @param options patching options
+     * @param out receive one line per run
+     * @return measurements, in size order
+     * @throws IOException generating error
+     */
+    public static List<Measurement> curve(int[] sizes, SyntheticInstallation template, PatchOptions options,
+            PrintStream out) throws IOException {
+        List<Measurement> curve = new ArrayList<Measurement>();
+        for (int size : sizes) {
+            File folder = TestFiles.createFolder();
+            try {
+                Measurement measurement = measure(folder, template.setJars(size), options);
+                if (out != null) {
+                    out.println(measurement);
+                }
+                curve.add(measurement);
+            } finally {
+                TestFiles.delete(folder);
+            }
+        }
+        return curve;
+    }
+
+    /**
+     * Compare a curve with a baseline curve, by number of jars
+     *
+     * @param curve measured curve
+     * @param baseline baseline throughput by number of jars, as read by readCsv
+     * @param tolerance accepted throughput loss, 0.25 for 25%
+     * @return one line per regression, empty if none
+     */
+    public static List<String> regressions(List<Measurement> curve, Map<Integer, Double> baseline, double tolerance) {
+        List<String> regressions = new ArrayList<String>();
+        for (Measurement measurement : curve) {
+            Double expected = baseline.get(measurement.getJars());
+            if (expected != null && measurement.getMegabytesPerSecond() < expected * (1 - tolerance)) {
+                regressions.add(String.format(Locale.ENGLISH, "%d jars: %.1f MB/s, baseline %.1f MB/s",
+                        measurement.getJars(), measurement.getMegabytesPerSecond(), expected));
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * Throughput by number of jars of a curve written by writeCsv
+     */
+    public static Map<Integer, Double> readCsv(File csv) throws IOException {
+        Map<Integer, Double> throughputs = new LinkedHashMap<Integer, Double>();
+        for (String line : Files.readAllLines(csv.toPath(), ZipDirectory.UTF8)) {
+            String[] columns = line.split(",");
+            if (columns.length >= 4 && !line.equals(CSV_HEADER)) {
+                throughputs.put(Integer.parseInt(columns[0].trim()), Double.parseDouble(columns[3].trim()));
+            }
+        }
+        return throughputs;
+    }
+
+    public static void writeCsv(List<Measurement> curve, File csv) throws IOException {
+        StringBuilder lines = new StringBuilder(CSV_HEADER).append('\n');
+        for (Measurement measurement : curve) {
+            lines.append(measurement.toCsv()).append('\n');
+        }
+        Files.write(csv.toPath(), lines.toString().getBytes(ZipDirectory.UTF8));
+    }
+
+    public static void main(String[] args) throws IOException {
+        File baseline = null;
+        File output = new File("scalability.csv");
+        double tolerance = 0.25;
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--baseline".equals(args[i])) {
+                baseline = new File(args[++i]);
+            } else if ("--output".equals(args[i])) {
+                output = new File(args[++i]);
+            } else if ("--tolerance".equals(args[i])) {
+                tolerance = Double.parseDouble(args[++i]);
+            } else {
+                sizes.add(Integer.parseInt(args[i]));
+            }
+        }
+        if (sizes.isEmpty()) {
+            sizes.addAll(Arrays.asList(10, 100, 1000, 10000));
+        }
+        int[] jars = new int[sizes.size()];
+        for (int i = 0; i < jars.length; i++) {
+            jars[i] = sizes.get(i);
+        }
+
+        PatchOptions options = new PatchOptions();
+        options.setBackup(false);
+        options.setCache(false);
+        options.setReport(false);
+        SyntheticInstallation template = new SyntheticInstallation().setClusters(10)
+                .setFriendShapes(SyntheticInstallation.FriendShape.SHORT, SyntheticInstallation.FriendShape.LONG,
+                        SyntheticInstallation.FriendShape.SHORT, SyntheticInstallation.FriendShape.NONE,
+                        SyntheticInstallation.FriendShape.PATCHED);
+        System.out.println(CSV_HEADER);
+        List<Measurement> curve = curve(jars, template, options, System.out);
+        writeCsv(curve, output);
+        System.out.println("Curve written to " + output);
+        if (baseline != null) {
+            List<String> regressions = regressions(curve, readCsv(baseline), tolerance);
+            for (String regression : regressions) {
+                System.out.println("Regression: " + regression);
+            }
+            System.exit(regressions.isEmpty() ? 0 : 1);
+        }
+    }
+
+    /**
+     * Measurement of one patch run
+     */
+    public static class Measurement {
+
+        private final int jars;
+        private final long bytes;
+        private final long wallNanos;
+        private final long peakHeapBytes;
+        private final long peakOpenFiles;
+        private final PatchRun run;
+
+        Measurement(int jars, long bytes, long wallNanos, long peakHeapBytes, long peakOpenFiles, PatchRun run) {
+            this.jars = jars;
+            this.bytes = bytes;
+            this.wallNanos = wallNanos;
+            this.peakHeapBytes = peakHeapBytes;
+            this.peakOpenFiles = peakOpenFiles;
+            this.run = run;
+        }
+
+        public int getJars() {
+            return jars;
+        }
+
+        /**
+         * @return size of the generated jars
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        public double getMegabytesPerSecond() {
+            return bytes / 1e6 / Math.max(wallNanos / 1e9, 1e-9);
+        }
+
+        /**
+         * @return sum of the peak usages of the heap memory pools
+         */
+        public long getPeakHeapBytes() {
+            return peakHeapBytes;
+        }
+
+        /**
+         * @return peak open file descriptors of the process, -1 if unknown
+         */
+        public long getPeakOpenFiles() {
+            return peakOpenFiles;
+        }
+
+        public PatchRun getRun() {
+            return run;
+        }
+
+        String toCsv() {
+            return String.format(Locale.ENGLISH, "%d,%d,%d,%.2f,%d,%d", jars, bytes, wallNanos / 1000000,
+                    getMegabytesPerSecond(), peakHeapBytes, peakOpenFiles);
+        }
+
+        @Override
+        public String toString() {
+            return toCsv();
+        }
+    }
+
+    /**
+     * Sample the open file descriptors of the process during a run
+     */
+    private static class OpenFilesSampler extends Thread {
+
+        private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        private volatile boolean finished;
+        private long peak = -1;
+
+        OpenFilesSampler() {
+            setDaemon(true);
+            sample();
+        }
+
+        @Override
+        public void run() {
+            while (!finished) {
+                sample();
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private synchronized void sample() {
+            if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+                peak = Math.max(peak, ((com.sun.management.UnixOperatingSystemMXBean) os)
+                        .getOpenFileDescriptorCount());
+            }
+        }
+
+        void finish() {
+            finished = true;
+            interrupt();
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sample();
+        }
+
+        synchronized long getPeak() {
+            return peak;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * End to end patching of synthetic installations, small sizes of the
+ * scalability curve
+ */
+public class ScalabilityTest extends TestCase {
+
+    public void testCurve() throws IOException {
+        PatchOptions options = new PatchOptions();
+        options.setBackup(false);
+        options.setCache(false);
+        options.setReport(false);
+        SyntheticInstallation template = new SyntheticInstallation().setClusters(4).setEntries(1, 40)
+                .setEntrySize(512).setFriendShapes(SyntheticInstallation.FriendShape.SHORT,
+                        SyntheticInstallation.FriendShape.LONG, SyntheticInstallation.FriendShape.NONE,
+                        SyntheticInstallation.FriendShape.PATCHED);
+        List<ScalabilityHarness.Measurement> curve = ScalabilityHarness.curve(new int[]{10, 200}, template, options,
+                null);
+
+        assertEquals(2, curve.size());
+        ScalabilityHarness.Measurement large = curve.get(1);
+        assertEquals(200, large.getJars());
+        Map<JarPatchResult.Status, Integer> counts = large.getRun().getStatusCounts();
+        assertEquals(Integer.valueOf(100), counts.get(JarPatchResult.Status.PATCHED));
+        assertEquals(Integer.valueOf(100), counts.get(JarPatchResult.Status.UNCHANGED));
+        assertTrue(large.getMegabytesPerSecond() > 0);
+        assertTrue(large.getPeakHeapBytes() > 0);
+        // Jars are closed as they are done, handles do not grow with the installation
+        if (large.getPeakOpenFiles() >= 0) {
+            assertTrue(large.getPeakOpenFiles() + " open files",
+                    large.getPeakOpenFiles() < curve.get(0).getPeakOpenFiles() + 100);
+        }
+
+        File csv = File.createTempFile("scalability", ".csv");
+        try {
+            ScalabilityHarness.writeCsv(curve, csv);
+            Map<Integer, Double> baseline = ScalabilityHarness.readCsv(csv);
+            assertEquals(2, baseline.size());
+            assertTrue(ScalabilityHarness.regressions(curve, baseline, 0.25).isEmpty());
+            baseline.put(200, large.getMegabytesPerSecond() * 2);
+            assertEquals(1, ScalabilityHarness.regressions(curve, baseline, 0.25).size());
+            assertTrue(ScalabilityHarness.regressions(curve, Collections.<Integer, Double>emptyMap(), 0).isEmpty());
+        } finally {
+            csv.delete();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generator of NetBeans installations made of synthetic module jars, for
+ * tests at any scale. Jars are spread over the clusters in turn, their number
+ * of entries follows the size distribution and their friend lists take the
+ * friend shapes in turn. The same settings always generate the same jars.
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public class SyntheticInstallation {
+
+    /**
+     * Number of entries of a jar, between the minimum and maximum entries
+     */
+    public enum SizeDistribution {
+
+        /** Every jar has the maximum entries */
+        FIXED,
+        /** Any number of entries, with the same probability */
+        UNIFORM,
+        /** Mostly small jars and a few very large ones, like a NetBeans installation */
+        SKEWED
+    }
+
+    /**
+     * Friend list of the generated manifests
+     */
+    public enum FriendShape {
+
+        /** No friend list: public module, left unchanged */
+        NONE,
+        /** A few friends on one line */
+        SHORT,
+        /** Hundreds of friends, the manifest value spans many lines */
+        LONG,
+        /** Friend list already holding the patched key, left unchanged */
+        PATCHED
+    }
+
+    private int clusters = 3;
+    private int jars = 10;
+    private int minEntries = 10;
+    private int maxEntries = 100;
+    private int entrySize = 2048;
+    private SizeDistribution distribution = SizeDistribution.SKEWED;
+    private FriendShape[] friendShapes = {FriendShape.SHORT};
+    private String moduleKey = "com.viettel.vep.tools";
+    private long seed = 42;
+
+    public SyntheticInstallation setClusters(int clusters) {
+        this.clusters = clusters;
+        return this;
+    }
+
+    public SyntheticInstallation setJars(int jars) {
+        this.jars = jars;
+        return this;
+    }
+
+    public SyntheticInstallation setEntries(int minEntries, int maxEntries) {
+        this.minEntries = minEntries;
+        this.maxEntries = maxEntries;
+        return this;
+    }
+
+    public SyntheticInstallation setEntrySize(int entrySize) {
+        this.entrySize = entrySize;
+        return this;
+    }
+
+    public SyntheticInstallation setDistribution(SizeDistribution distribution) {
+        this.distribution = distribution;
+        return this;
+    }
+
+    public SyntheticInstallation setFriendShapes(FriendShape... friendShapes) {
+        this.friendShapes = friendShapes.clone();
+        return this;
+    }
+
+    /**
+     * @param moduleKey key already in the friend lists of PATCHED jars
+     */
+    public SyntheticInstallation setModuleKey(String moduleKey) {
+        this.moduleKey = moduleKey;
+        return this;
+    }
+
+    public SyntheticInstallation setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public int getJars() {
+        return jars;
+    }
+
+    public String getModuleKey() {
+        return moduleKey;
+    }
+
+    /**
+     * Write the installation
+     *
+     * @param netbeansFolder folder to create the clusters in
+     * @return jar paths relative to the installation, in generation order
+     * @throws IOException writing error
+     */
+    public List<String> generate(File netbeansFolder) throws IOException {
+        Random random = new Random(seed);
+        List<String> paths = new ArrayList<String>(jars);
+        for (int i = 0; i < clusters; i++) {
+            new File(netbeansFolder, "cluster" + i + "/modules").mkdirs();
+        }
+        byte[] content = new byte[entrySize];
+        for (int i = 0; i < jars; i++) {
+            String codeNameBase = "org.example.synthetic.m" + i;
+            String path = "cluster" + (i % clusters) + "/modules/" + codeNameBase.replace('.', '-') + ".jar";
+            writeJar(new File(netbeansFolder, path), codeNameBase, entries(random),
+                    friendShapes[i % friendShapes.length], random, content);
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    private int entries(Random random) {
+        int range = maxEntries - minEntries;
+        switch (distribution) {
+            case FIXED:
+                return maxEntries;
+            case UNIFORM:
+                return minEntries + random.nextInt(range + 1);
+            default:
+                // Cube of a uniform value: about half of the jars get an eighth of the range
+                double x = random.nextDouble();
+                return minEntries + (int) Math.round(range * x * x * x);
+        }
+    }
+
+    private void writeJar(File jar, String codeNameBase, int entries, FriendShape friendShape, Random random,
+            byte[] content) throws IOException {
+        TestFiles.Jar builder = TestFiles.jar().codeName(codeNameBase)
+                .attribute("OpenIDE-Module-Specification-Version", "1.0").friends(friends(friendShape));
+        String folder = codeNameBase.replace('.', '/');
+        for (int i = 0; i < entries; i++) {
+            // Half random, half repeated: compresses about like class files
+            random.nextBytes(content);
+            for (int j = content.length / 2; j < content.length; j++) {
+                content[j] = content[j % 64];
+            }
+            builder.entry(folder + "/C" + i + ".class", content.clone());
+        }
+        builder.write(jar);
+    }
+
+    private String friends(FriendShape friendShape) {
+        switch (friendShape) {
+            case NONE:
+                return null;
+            case LONG:
+                StringBuilder friends = new StringBuilder();
+                for (int i = 0; i < 300; i++) {
+                    friends.append(i == 0 ? "" : ", ").append("org.example.friend.f").append(i);
+                }
+                return friends.toString();
+            case PATCHED:
+                return "org.example.friend.a, " + moduleKey;
+            default:
+                return "org.example.friend.a, org.example.friend.b, org.example.friend.c";
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.viettel.vep.friendlizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * Temporary folders and jars of the tests
+ *
+ * @author quanghx2@viettel.com.vn
+ */
+public final class TestFiles {
+
+    static final String FRIEND_KEY = "OpenIDE-Module-Friends";
+
+    private TestFiles() {
+    }
+
+    /**
+     * @return new empty temporary folder
+     * @throws IOException creation error
+     */
+    public static File createFolder() throws IOException {
+        return Files.createTempDirectory("friendlizer").toFile();
+    }
+
+    /**
+     * Delete a file or a folder with everything in it, nothing if it does not
+     * exist
+     *
+     * @param file file or folder
+     * @throws IOException deleting error
+     */
+    public static void delete(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        Files.walkFileTree(file.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * @return builder of a jar with an empty manifest and no entry
+     */
+    public static Jar jar() {
+        return new Jar();
+    }
+
+    /**
+     * @param jar jar file
+     * @return friend list of the jar manifest, null if none
+     * @throws IOException reading error
+     */
+    public static String friends(File jar) throws IOException {
+        JarFile jarFile = new JarFile(jar);
+        try {
+            return jarFile.getManifest().getMainAttributes().getValue(FRIEND_KEY);
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    /**
+     * Read a stream to its end, the stream is left open
+     *
+     * @param in stream
+     * @return bytes read
+     * @throws IOException reading error
+     */
+    public static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            content.write(buffer, 0, read);
+        }
+        return content.toByteArray();
+    }
+
+    /**
+     * Jar builder. Entries are written in the order they are added.
+     */
+    public static class Jar {
+
+        private final Manifest manifest = new Manifest();
+        private final List<Entry> entries = new ArrayList<Entry>();
+
+        Jar() {
+            manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        }
+
+        /**
+         * @param name main attribute name
+         * @param value value, null to leave the attribute out
+         */
+        public Jar attribute(String name, String value) {
+            if (value != null) {
+                manifest.getMainAttributes().putValue(name, value);
+            }
+            return this;
+        }
+
+        /**
+         * @param codeName OpenIDE-Module code name, null for a plain library
+         */
+        public Jar codeName(String codeName) {
+            return attribute("OpenIDE-Module", codeName);
+        }
+
+        /**
+         * @param friends friend list, null for a public module
+         */
+        public Jar friends(String friends) {
+            return attribute(FRIEND_KEY, friends);
+        }
+
+        /**
+         * Deflated entry
+         */
+        public Jar entry(String name, byte[] content) {
+            entries.add(new Entry(name, content, false));
+            return this;
+        }
+
+        /**
+         * Stored entry
+         */
+        public Jar storedEntry(String name, byte[] content) {
+            entries.add(new Entry(name, content, true));
+            return this;
+        }
+
+        /**
+         * Deflated entries org/foo/Class&lt;i&gt;.class, each filled with its
+         * index
+         *
+         * @param count number of entries
+         * @param size size of each entry
+         */
+        public Jar classes(int count, int size) {
+            for (int i = 0; i < count; i++) {
+                byte[] content = new byte[size];
+                Arrays.fill(content, (byte) i);
+                entry("org/foo/Class" + i + ".class", content);
+            }
+            return this;
+        }
+
+        /**
+         * @return jar content
+         * @throws IOException writing error
+         */
+        public byte[] toBytes() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            write(bytes);
+            return bytes.toByteArray();
+        }
+
+        /**
+         * Write the jar, its folder is created if needed
+         *
+         * @param file jar file, replaced
+         * @return the jar file
+         * @throws IOException writing error
+         */
+        public File write(File file) throws IOException {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            write(new FileOutputStream(file));
+            return file;
+        }
+
+        private void write(OutputStream stream) throws IOException {
+            JarOutputStream out = new JarOutputStream(stream, manifest);
+            try {
+                for (Entry entry : entries) {
+                    JarEntry jarEntry = new JarEntry(entry.name);
+                    if (entry.stored) {
+                        CRC32 crc = new CRC32();
+                        crc.update(entry.content);
+                        jarEntry.setMethod(ZipEntry.STORED);
+                        jarEntry.setSize(entry.content.length);
+                        jarEntry.setCrc(crc.getValue());
+                    }
+                    out.putNextEntry(jarEntry);
+                    out.write(entry.content);
+                    out.closeEntry();
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Entry of a jar being built
+     */
+    private static class Entry {
+
+        private final String name;
+        private final byte[] content;
+        private final boolean stored;
+
+        Entry(String name, byte[] content, boolean stored) {
+            this.name = name;
+            this.content = content;
+            this.stored = stored;
+        }
+    }
+}